@@ -0,0 +1,112 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletRequest;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Support of the Servlet 3 asynchronous requests: when the webapp started an asynchronous cycle, a listener is added to
+ * the AsyncContext, and the exchange is completed once the cycle is complete.
+ * <p/>
+ * Errors and timeouts are recorded as the failure of the exchange, which is completed on onComplete, always notified
+ * after them, once the status of the response is final.
+ */
+final class AsyncSupport {
+
+    private AsyncSupport() {
+    }
+
+    /**
+     * Callback notified once the asynchronous cycle of a request is complete.
+     */
+    interface CompletionListener {
+        /**
+         * @param failure error thrown during the asynchronous cycle, or TimeoutException if it timed out, null if none
+         */
+        void onComplete(Throwable failure);
+    }
+
+    /**
+     * Registers the listener to be notified once the asynchronous cycle of the request is complete, if the webapp
+     * started one.
+     *
+     * @return true if the request is asynchronous and the listener registered, false if the exchange is complete
+     */
+    static boolean whenComplete(final ServletRequest request, final CompletionListener listener) {
+        if (!request.isAsyncStarted()) {
+            return false;
+        }
+        request.getAsyncContext().addListener(new Listener(listener));
+        return true;
+    }
+
+    /**
+     * Runs the task on a container thread through the AsyncContext of the request.
+     *
+     * @throws IllegalStateException if the request is not in asynchronous mode
+     */
+    static void start(final ServletRequest request, final Runnable task) {
+        if (!request.isAsyncStarted()) {
+            throw new IllegalStateException("Request is not in asynchronous mode");
+        }
+        request.getAsyncContext().start(task);
+    }
+
+    /**
+     * Listener of the asynchronous cycle, following the new cycles the webapp starts.
+     */
+    private static final class Listener implements AsyncListener {
+        private final CompletionListener listener;
+        private final AtomicBoolean completed = new AtomicBoolean(false);
+        private volatile Throwable failure = null;
+
+        Listener(final CompletionListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onComplete(final AsyncEvent event) {
+            if (completed.compareAndSet(false, true)) {
+                listener.onComplete(failure);
+            }
+        }
+
+        @Override
+        public void onError(final AsyncEvent event) {
+            final Throwable throwable = event.getThrowable();
+            failure = throwable != null ? throwable : new IllegalStateException("Asynchronous request failed");
+        }
+
+        @Override
+        public void onTimeout(final AsyncEvent event) {
+            failure = new TimeoutException("Asynchronous request timed out");
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event) {
+            // listeners are dropped when a new cycle starts, listen to the new one
+            final AsyncContext asyncContext = event.getAsyncContext();
+            if (asyncContext != null) {
+                asyncContext.addListener(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,1163 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class keeps a copy of the bytes flowing through one of the logging wrappers.
+ * Bytes are kept up to the limit, anything written after that is only counted.
+ * <p/>
+ * Bytes are stored in segments borrowed from a CaptureBufferPool, they must be given back with release()
+ * once the capture has been dumped. The capture is reference counted: segments go back to the pool when every holder,
+ * the wrapper and the dumps, has released it. When the pool has no segment left, a limited capture stops keeping bytes
+ * while an unlimited one falls back to heap segments, since it is used to replay the body to the webapp.
+ * <p/>
+ * If the pool has a budget, each segment is reserved from it before being taken from the pool. Once the budget is
+ * exhausted a limited capture is truncated, which is noted in its dump. An unlimited capture only reserves segments
+ * for the bytes it may dump: the bytes beyond, or the ones the budget or the pool has no segment for, are only kept
+ * to be replayed to the webapp, and go to a spill file, in the spill directory of the pool if it has one.
+ * <p/>
+ * If the pool has spill settings, once the capture holds threshold bytes in memory the next bytes are staged in a
+ * single segment written to a temporary file through a FileChannel when full. The file is memory mapped to be read
+ * back, so the heap used by a capture stays flat whatever the size of the body. The file is deleted on release.
+ * <p/>
+ * Dumps are decoded straight from the segments with the charset of the body, through a decoder and buffers reused by
+ * the dumps built on the same thread. When the dump is truncated, it stops on a character boundary.
+ * <p/>
+ * A capture can be compressed once complete: compress() builds a capture holding its kept bytes deflated in a single
+ * heap array, through a deflater reused by the captures compressed on the same thread. The bytes are inflated again
+ * only when the compressed capture is read.
+ * <p/>
+ * Bodies encoded by the webapp, like gzip responses, are kept encoded. They are inflated only when dumped, and only up
+ * to the max dump size of inflated bytes, through inflaters reused on the same thread.
+ * <p/>
+ * A capture of a JSON body can keep a projection of it instead of its bytes: the bytes written are then only fed to
+ * a JsonProjection.Projector, which keeps the values found at the projected paths.
+ */
+class BodyCapture {
+
+    private static final Logger logger = LoggerFactory.getLogger(BodyCapture.class);
+
+    private static final ThreadLocal<DecodingBuffers> DECODING_BUFFERS = new ThreadLocal<DecodingBuffers>() {
+        @Override
+        protected DecodingBuffers initialValue() {
+            return new DecodingBuffers();
+        }
+    };
+
+    private static final ThreadLocal<CompressionBuffers> COMPRESSION_BUFFERS = new ThreadLocal<CompressionBuffers>() {
+        @Override
+        protected CompressionBuffers initialValue() {
+            return new CompressionBuffers();
+        }
+    };
+
+    static final int UNLIMITED = Integer.MAX_VALUE;
+
+    // content encodings of the captured bytes
+    static final byte IDENTITY = 0;
+    static final byte GZIP = 1;
+    static final byte DEFLATE = 2;
+    static final byte UNSUPPORTED_ENCODING = 3;
+
+    // flags of a capture, see getFlags()
+    static final byte EXHAUSTED = 1;
+    static final byte OVER_BUDGET = 2;
+    static final byte PROJECTED = 4;
+
+    // spill settings of the unlimited captures whose pool has none, used once they can not keep bytes in memory
+    private static final CaptureSpill REPLAY_SPILL = new CaptureSpill(UNLIMITED, null);
+
+    private final CaptureBufferPool pool;
+    private final int limit;
+    // number of bytes kept in segments reserved from the budget of the pool, the limit for a limited capture
+    private final int budgeted;
+    private ByteBuffer[] segments = new ByteBuffer[4];
+    private int segmentCount = 0;
+    private ByteBuffer current = null;
+    private int size = 0;
+    private long total = 0;
+    private boolean released = false;
+    private boolean exhausted = false;
+    private boolean overBudget = false;
+    private long reservedBytes = 0;
+    private final CaptureSpill spill;
+    private File spillFile = null;
+    private FileChannel spillChannel = null;
+    // bytes waiting to be written to the spill file, following the ones already written
+    private ByteBuffer staging = null;
+    private int spilled = 0;
+    private MappedByteBuffer mapped = null;
+    private IOException spillFailure = null;
+    // kept bytes deflated by compress(), null when they are kept in segments
+    private byte[] deflated = null;
+    // content encoding of the kept bytes, inflated when they are dumped
+    private byte contentEncoding = IDENTITY;
+    // keeps the projected values instead of the bytes written, null when the bytes are kept
+    private JsonProjection.Projector projector = null;
+    private boolean projected = false;
+    // number of bytes of the projection, including the ones beyond the limit
+    private long projectedBytes = 0;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    BodyCapture(final int limit, final CaptureBufferPool pool) {
+        this(limit, pool, limit);
+    }
+
+    /**
+     * @param budgeted number of bytes which may be dumped, the only ones an unlimited capture keeps in segments
+     *                 reserved from the budget of the pool
+     */
+    BodyCapture(final int limit, final CaptureBufferPool pool, final int budgeted) {
+        this.limit = limit;
+        this.budgeted = budgeted;
+        this.pool = pool;
+        this.spill = pool.getSpill();
+    }
+
+    /**
+     * Makes the capture keep the values of the projected paths instead of the bytes written, must be called before
+     * the first byte is written.
+     */
+    void project(final JsonProjection projection) {
+        projector = projection.newProjector(this);
+        projected = true;
+    }
+
+    /**
+     * @return true if the capture keeps a JSON projection of the bytes written
+     */
+    boolean isProjected() {
+        return projected;
+    }
+
+    void write(final int b) {
+        total++;
+        if (projector != null) {
+            projector.write(b);
+        } else {
+            keep(b);
+        }
+    }
+
+    void write(final byte[] b, final int off, final int len) {
+        total += len;
+        if (projector != null) {
+            projector.write(b, off, len);
+        } else {
+            keep(b, off, len);
+        }
+    }
+
+    /**
+     * Keeps a byte without counting it as written, used by the projector.
+     */
+    void keep(final int b) {
+        if (projected) {
+            projectedBytes++;
+        }
+        if (size < limit && ensureSegment()) {
+            current.put((byte) b);
+            size++;
+        }
+    }
+
+    void keep(final byte[] b, final int off, final int len) {
+        if (projected) {
+            projectedBytes += len;
+        }
+        int offset = off;
+        int toKeep = (int) Math.min(len, (long) limit - size);
+        while (toKeep > 0 && ensureSegment()) {
+            final int n = Math.min(toKeep, current.remaining());
+            current.put(b, offset, n);
+            offset += n;
+            toKeep -= n;
+            size += n;
+        }
+    }
+
+    private boolean ensureSegment() {
+        if (released || exhausted || deflated != null) {
+            return false;
+        }
+        if (current == null || !current.hasRemaining()) {
+            final int inMemory = segmentCount * pool.getSegmentSize();
+            if (staging != null || (spill != null && inMemory >= spill.getThreshold())) {
+                return spillCurrent();
+            }
+            if (limit == UNLIMITED && pool.getBudget() != null && inMemory >= budgeted) {
+                // the bytes beyond the ones dumped are only kept to be replayed, out of the budget
+                return spillCurrent();
+            }
+            if (segmentCount == segments.length) {
+                final ByteBuffer[] newSegments = new ByteBuffer[segmentCount << 1];
+                System.arraycopy(segments, 0, newSegments, 0, segmentCount);
+                segments = newSegments;
+            }
+            final ByteBuffer segment = acquireSegment();
+            if (segment == null) {
+                if (limit != UNLIMITED) {
+                    exhausted = true;
+                    return false;
+                }
+                // the body must still be replayed whole, without growing the heap beyond the budget
+                return spillCurrent();
+            }
+            current = segment;
+            segments[segmentCount++] = current;
+        }
+        return true;
+    }
+
+    /**
+     * Writes the staging segment to the spill file, creating both on the first call.
+     */
+    private boolean spillCurrent() {
+        try {
+            if (staging == null) {
+                spillFile = (spill != null ? spill : REPLAY_SPILL).createFile();
+                spillChannel = new RandomAccessFile(spillFile, "rw").getChannel();
+                staging = ByteBuffer.allocate(pool.getSegmentSize());
+            } else {
+                final ByteBuffer pending = staging.duplicate();
+                pending.flip();
+                int written = 0;
+                while (pending.hasRemaining()) {
+                    written += spillChannel.write(pending);
+                }
+                spilled += written;
+                staging.clear();
+            }
+            current = staging;
+            return true;
+        } catch (IOException e) {
+            logger.error("IO caught while spilling capture to {}", spillFile, e);
+            spillFailure = e;
+            exhausted = true;
+            return false;
+        }
+    }
+
+    private ByteBuffer acquireSegment() {
+        final CaptureBudget budget = pool.getBudget();
+        if (budget == null) {
+            return pool.acquire();
+        }
+        if (!budget.tryReserve(pool.getSegmentSize())) {
+            // an unlimited capture spills the bytes instead, nothing is lost
+            if (!overBudget && limit != UNLIMITED) {
+                overBudget = true;
+                budget.degraded();
+            }
+            return null;
+        }
+        final ByteBuffer segment = pool.acquire();
+        if (segment == null) {
+            budget.release(pool.getSegmentSize());
+        } else {
+            reservedBytes += pool.getSegmentSize();
+        }
+        return segment;
+    }
+
+    /**
+     * Counts bytes which went through without being kept, used when the capture is rebuilt from a journal.
+     */
+    void countSkipped(final long bytes) {
+        total += bytes;
+    }
+
+    /**
+     * @return true if bytes were dropped because the pool had no segment left or the budget was exhausted
+     */
+    boolean isExhausted() {
+        return exhausted;
+    }
+
+    /**
+     * @return true if some bytes have been written to a spill file
+     */
+    boolean isSpilled() {
+        return spillFile != null;
+    }
+
+    /**
+     * @return the error which made the capture drop bytes while spilling them, null if none
+     */
+    IOException getSpillFailure() {
+        return spillFailure;
+    }
+
+    /**
+     * @return true if the capture could not reserve a segment from the budget of the pool
+     */
+    boolean isOverBudget() {
+        return overBudget;
+    }
+
+    /**
+     * @return the EXHAUSTED, OVER_BUDGET and PROJECTED flags of the capture, kept with its bytes in a journal
+     */
+    byte getFlags() {
+        return (byte) ((exhausted ? EXHAUSTED : 0) | (overBudget ? OVER_BUDGET : 0) | (projected ? PROJECTED : 0));
+    }
+
+    /**
+     * @return number of bytes the projection kept, 0 if the capture is not projected
+     */
+    long getProjectedBytes() {
+        return projectedBytes;
+    }
+
+    /**
+     * Restores the flags of a capture rebuilt from a journal, so that its dump gets the same notes.
+     */
+    void setFlags(final byte flags, final long projectedBytes) {
+        exhausted = (flags & EXHAUSTED) != 0;
+        overBudget = (flags & OVER_BUDGET) != 0;
+        projected = (flags & PROJECTED) != 0;
+        this.projectedBytes = projectedBytes;
+    }
+
+    /**
+     * @return the content encoding of the kept bytes, IDENTITY if they are not encoded
+     */
+    byte getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * Sets the content encoding of the kept bytes. They are kept as they are, and inflated only when dumped.
+     */
+    void setContentEncoding(final byte contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * @return the content encoding named by a Content-Encoding header, IDENTITY if it is null
+     */
+    static byte contentEncodingOf(final String header) {
+        if (header == null) {
+            return IDENTITY;
+        }
+        final String encoding = header.trim().toLowerCase(Locale.ENGLISH);
+        if (encoding.length() == 0 || "identity".equals(encoding)) {
+            return IDENTITY;
+        }
+        if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+            return GZIP;
+        }
+        return "deflate".equals(encoding) ? DEFLATE : UNSUPPORTED_ENCODING;
+    }
+
+    /**
+     * @return true if the kept bytes are deflated, see compress()
+     */
+    boolean isCompressed() {
+        return deflated != null;
+    }
+
+    /**
+     * @return number of bytes the kept bytes are deflated to, or the number of kept bytes if they are not compressed
+     */
+    int getCompressedSize() {
+        return deflated == null ? size : deflated.length;
+    }
+
+    /**
+     * Builds a capture holding the first maxBytes kept bytes deflated in the heap, the bytes beyond being counted as
+     * skipped. This capture is left untouched, it must still be released by its holders.
+     */
+    BodyCapture compress(final int maxBytes) {
+        final CompressionBuffers buffers = COMPRESSION_BUFFERS.get();
+        final Deflater deflater = buffers.deflater;
+        deflater.reset();
+        final byte[] input = buffers.input;
+        final int kept = Math.min(size, maxBytes);
+        int remaining = kept;
+        int length = 0;
+        for (int i = 0; i < chunkCount() && remaining > 0; i++) {
+            final ByteBuffer view = view(i);
+            while (view.hasRemaining() && remaining > 0) {
+                // segments may be direct or mapped, the deflater only reads arrays
+                final int n = Math.min(Math.min(view.remaining(), remaining), input.length);
+                view.get(input, 0, n);
+                remaining -= n;
+                deflater.setInput(input, 0, n);
+                while (!deflater.needsInput()) {
+                    length = buffers.deflate(length);
+                }
+            }
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            length = buffers.deflate(length);
+        }
+        final BodyCapture compressed = compressed(Arrays.copyOf(buffers.output, length), kept, total);
+        compressed.exhausted = exhausted;
+        compressed.overBudget = overBudget;
+        compressed.projected = projected;
+        compressed.projectedBytes = projectedBytes;
+        buffers.trim();
+        return compressed;
+    }
+
+    /**
+     * Builds a copy in the heap of the first maxBytes kept bytes, the bytes beyond being counted as skipped, so that a
+     * dump kept for a while does not hold a whole body, its pooled segments or its spill file. Encoded bytes are
+     * copied as they are. This capture is left untouched, it must still be released by its holders.
+     *
+     * @return the copy, or this capture if it is compressed, or keeps at most maxBytes bytes without a spill file
+     */
+    BodyCapture truncate(final int maxBytes) {
+        if (deflated != null || (size <= maxBytes && spillFile == null)) {
+            return this;
+        }
+        final int kept = Math.min(size, maxBytes);
+        final ByteBuffer segment = ByteBuffer.allocate(kept);
+        copyTo(segment, kept);
+        segment.flip();
+        final BodyCapture truncated = heapCopy(segment, total);
+        // bytes beyond maxBytes are skipped by the max dump size limit, not by the pool or budget
+        truncated.exhausted = kept == size && exhausted;
+        truncated.overBudget = kept == size && overBudget;
+        truncated.projected = projected;
+        truncated.projectedBytes = projectedBytes;
+        truncated.contentEncoding = contentEncoding;
+        return truncated;
+    }
+
+    /**
+     * Builds a copy in the heap of the first maxBytes kept bytes, with the values of the fields found by the redactor
+     * masked, the bytes beyond being counted as skipped. The bytes are scanned first without being copied, so a body
+     * with nothing to redact costs a single pass over the bytes dumped. Bodies encoded by the webapp are inflated up to
+     * maxBytes, and up to the limit of the capture, to be scanned: the copy then holds the inflated bytes. This capture
+     * is left untouched, it must still be released by its holders.
+     *
+     * @return the redacted copy, or this capture if there is nothing to redact in the bytes dumped
+     */
+    BodyCapture redact(final Redactor redactor, final int maxBytes) {
+        if (contentEncoding == GZIP || contentEncoding == DEFLATE) {
+            return redactInflated(redactor, Math.min(maxBytes, limit));
+        }
+        final int kept = Math.min(size, maxBytes);
+        final Redactor.Scan scan = redactor.newScan();
+        int remaining = kept;
+        for (int i = 0; i < chunkCount() && remaining > 0; i++) {
+            final ByteBuffer view = view(i);
+            if (view.remaining() > remaining) {
+                view.limit(view.position() + remaining);
+            }
+            remaining -= view.remaining();
+            scan.scan(view, false);
+        }
+        if (scan.getMasked() == 0) {
+            return this;
+        }
+        final ByteBuffer segment = ByteBuffer.allocate(kept);
+        copyTo(segment, kept);
+        segment.flip();
+        redactor.newScan().scan(segment, true);
+        final BodyCapture redacted = heapCopy(segment, total);
+        // bytes beyond maxBytes are skipped by the max dump size limit, not by the pool or budget
+        redacted.exhausted = kept == size && exhausted;
+        redacted.overBudget = kept == size && overBudget;
+        redacted.projected = projected;
+        redacted.projectedBytes = projectedBytes;
+        return redacted;
+    }
+
+    /**
+     * Scans the first maxBytes inflated bytes of an encoded body, masking them in a copy.
+     */
+    private BodyCapture redactInflated(final Redactor redactor, final int maxBytes) {
+        final HeapChunks inflated = new HeapChunks();
+        final int consumed = inflateKept(maxBytes, inflated);
+        final ByteBuffer segment = ByteBuffer.wrap(inflated.bytes, 0, inflated.length);
+        final Redactor.Scan scan = redactor.newScan();
+        scan.scan(segment, true);
+        if (scan.getMasked() == 0) {
+            return this;
+        }
+        // the encoded bytes which were not inflated are counted as skipped, as when the body is dumped
+        final BodyCapture redacted = heapCopy(segment.slice(),
+                inflated.length + (inflated.finished ? 0 : Math.max(0, total - consumed)));
+        redacted.exhausted = !inflated.finished && exhausted;
+        redacted.overBudget = !inflated.finished && overBudget;
+        return redacted;
+    }
+
+    /**
+     * @return a capture holding the bytes of the segment, from its position to its limit
+     */
+    private static BodyCapture heapCopy(final ByteBuffer segment, final long total) {
+        final int length = segment.remaining();
+        final BodyCapture copy = new BodyCapture(length, CaptureBufferPool.UNPOOLED);
+        segment.position(segment.limit());
+        copy.segments[0] = segment;
+        copy.segmentCount = 1;
+        copy.current = segment;
+        copy.size = length;
+        copy.total = total;
+        return copy;
+    }
+
+    /**
+     * Builds a capture in the heap holding the projection of the kept bytes, used when the bytes are kept whole, like
+     * the body of a buffered request replayed to the webapp. This capture is left untouched, it must still be released
+     * by its holders.
+     *
+     * @param maxBytes max number of bytes of the projection
+     */
+    BodyCapture project(final JsonProjection projection, final int maxBytes) {
+        final BodyCapture projected = new BodyCapture(maxBytes, CaptureBufferPool.UNPOOLED);
+        projected.project(projection);
+        final byte[] input = COMPRESSION_BUFFERS.get().input;
+        for (int i = 0; i < chunkCount(); i++) {
+            final ByteBuffer view = view(i);
+            while (view.hasRemaining()) {
+                final int n = Math.min(view.remaining(), input.length);
+                view.get(input, 0, n);
+                projected.write(input, 0, n);
+            }
+        }
+        projected.total = total;
+        return projected;
+    }
+
+    /**
+     * Builds a capture from bytes deflated by compress(), used when the capture is rebuilt from a journal.
+     *
+     * @param deflated bytes deflated by compress()
+     * @param size     number of kept bytes once inflated
+     * @param total    number of bytes that went through the capture
+     */
+    static BodyCapture compressed(final byte[] deflated, final int size, final long total) {
+        final BodyCapture compressed = new BodyCapture(size, CaptureBufferPool.UNPOOLED);
+        compressed.deflated = deflated;
+        compressed.size = size;
+        compressed.total = total;
+        return compressed;
+    }
+
+    /**
+     * Copies the deflated bytes to the target.
+     *
+     * @return number of bytes copied
+     * @throws java.nio.BufferOverflowException if the target has not enough room, nothing being copied then
+     */
+    int copyCompressedTo(final ByteBuffer target) {
+        target.put(deflated);
+        return deflated.length;
+    }
+
+    private byte[] inflate() {
+        final Inflater inflater = COMPRESSION_BUFFERS.get().inflater;
+        inflater.reset();
+        inflater.setInput(deflated);
+        final byte[] bytes = new byte[size];
+        int length = 0;
+        try {
+            while (length < size && !inflater.finished()) {
+                final int n = inflater.inflate(bytes, length, size - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            logger.error("Corrupted compressed capture, dumping the bytes inflated so far", e);
+        }
+        return length == size ? bytes : Arrays.copyOf(bytes, length);
+    }
+
+    /**
+     * @return number of bytes kept
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return number of bytes that went through the capture, including the ones beyond the limit
+     */
+    long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return number of bytes that went through the capture but were not kept
+     */
+    long getSkipped() {
+        return total - size;
+    }
+
+    byte[] toByteArray() {
+        final byte[] copy = new byte[size];
+        int offset = 0;
+        for (int i = 0; i < chunkCount(); i++) {
+            final ByteBuffer view = view(i);
+            final int n = view.remaining();
+            view.get(copy, offset, n);
+            offset += n;
+        }
+        return copy;
+    }
+
+    /**
+     * Copies the first maxBytes kept bytes to the target, without decoding them.
+     *
+     * @return number of bytes copied
+     * @throws java.nio.BufferOverflowException if the target has not enough room, nothing being copied then
+     */
+    int copyTo(final ByteBuffer target, final int maxBytes) {
+        final int length = Math.min(size, maxBytes);
+        if (target.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        int remaining = length;
+        for (int i = 0; i < chunkCount() && remaining > 0; i++) {
+            final ByteBuffer view = view(i);
+            if (view.remaining() > remaining) {
+                view.limit(view.position() + remaining);
+            }
+            remaining -= view.remaining();
+            target.put(view);
+        }
+        return length;
+    }
+
+    /**
+     * @return a stream reading the kept bytes straight from the segments
+     */
+    InputStream newInputStream() {
+        return new InputStream() {
+            private int index = 0;
+            private ByteBuffer view = chunkCount() > 0 ? view(0) : null;
+
+            @Override
+            public int read() {
+                if (!nextView()) {
+                    return -1;
+                }
+                return view.get() & 0xFF;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!nextView()) {
+                    return -1;
+                }
+                final int n = Math.min(len, view.remaining());
+                view.get(b, off, n);
+                return n;
+            }
+
+            @Override
+            public int available() {
+                int available = view == null ? 0 : view.remaining();
+                for (int i = index + 1; i < chunkCount(); i++) {
+                    available += chunkSize(i);
+                }
+                return available;
+            }
+
+            private boolean nextView() {
+                while (view != null && !view.hasRemaining()) {
+                    view = ++index < chunkCount() ? view(index) : null;
+                }
+                return view != null;
+            }
+        };
+    }
+
+    /**
+     * Builds the dump of the kept bytes, followed by a note on the skipped bytes if the limit was reached.
+     */
+    String toDumpString() {
+        return toDumpString(limit, Charset.defaultCharset());
+    }
+
+    /**
+     * Builds the dump of the first maxBytes kept bytes, followed by a note on the skipped bytes if any.
+     */
+    String toDumpString(final int maxBytes) {
+        return toDumpString(maxBytes, Charset.defaultCharset());
+    }
+
+    /**
+     * Builds the dump of the first maxBytes kept bytes decoded with the charset, followed by a note on the skipped
+     * bytes if any. Bytes of a character cut by the limit are counted as skipped.
+     */
+    String toDumpString(final int maxBytes, final Charset charset) {
+        final StringBuilder body = new StringBuilder(Math.min(size, maxBytes) + 64);
+        final int decoded = appendTo(body, maxBytes, charset);
+        if (projected) {
+            if (body.length() > 0 && body.charAt(body.length() - 1) != '\n') {
+                body.append('\n');
+            }
+            body.append("-- JSON projection of ").append(total).append(" bytes")
+                    .append(decoded < projectedBytes ? ", truncated by max dump size limit" : "");
+        } else if (total > decoded) {
+            body.append("\n-- ").append(total - decoded)
+                    .append(!exhausted ? " more bytes skipped from dump by max dump size limit"
+                            : overBudget ? " more bytes skipped from dump, capture memory budget exhausted"
+                            : " more bytes skipped from dump, no capture buffer left");
+        }
+        return body.toString();
+    }
+
+    /**
+     * Appends the first maxBytes kept bytes decoded with the charset, stopping on a character boundary.
+     *
+     * @return number of bytes decoded
+     */
+    int appendTo(final StringBuilder out, final int maxBytes, final Charset charset) {
+        final DecodingBuffers buffers = DECODING_BUFFERS.get();
+        final CharsetDecoder decoder = buffers.decoder(charset);
+        if (contentEncoding == GZIP || contentEncoding == DEFLATE) {
+            return appendInflated(out, maxBytes, buffers, decoder);
+        }
+        if (contentEncoding == UNSUPPORTED_ENCODING) {
+            // the bytes would only give garbage, they are all counted as skipped
+            return 0;
+        }
+        int remaining = Math.min(size, maxBytes);
+        int decoded = remaining;
+        for (int i = 0; i < chunkCount() && remaining > 0; i++) {
+            final ByteBuffer in = view(i);
+            if (in.remaining() > remaining) {
+                in.limit(in.position() + remaining);
+            }
+            remaining -= in.remaining();
+            buffers.decode(decoder, in, out);
+        }
+        // when the dump is truncated, the bytes of the last character are not all there
+        decoded -= buffers.finish(decoder, out, decoded < total);
+        return decoded;
+    }
+
+    /**
+     * Appends the kept bytes inflated according to the content encoding, up to maxBytes inflated bytes, and decoded
+     * with the charset. Only the kept bytes needed for maxBytes inflated bytes are inflated.
+     *
+     * @return number of kept bytes consumed, all the bytes that went through the capture if the body was fully inflated
+     */
+    private int appendInflated(final StringBuilder out, final int maxBytes, final DecodingBuffers buffers,
+                               final CharsetDecoder decoder) {
+        return inflateKept(maxBytes, new InflatedChunks() {
+            @Override
+            public void append(final ByteBuffer chunk) {
+                buffers.decode(decoder, chunk, out);
+            }
+
+            @Override
+            public void end(final boolean finished) {
+                buffers.finish(decoder, out, !finished);
+            }
+        });
+    }
+
+    /**
+     * Receives the bytes inflated from the kept bytes of an encoded body.
+     */
+    private interface InflatedChunks {
+        void append(ByteBuffer chunk);
+
+        /**
+         * @param finished true if the whole body was inflated
+         */
+        void end(boolean finished);
+    }
+
+    /**
+     * Collects inflated bytes in a heap array.
+     */
+    private static final class HeapChunks implements InflatedChunks {
+        byte[] bytes = new byte[RequestLoggerFilter.BUFFER_SIZE];
+        int length = 0;
+        boolean finished = false;
+
+        @Override
+        public void append(final ByteBuffer chunk) {
+            if (length + chunk.remaining() > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + chunk.remaining()));
+            }
+            final int n = chunk.remaining();
+            chunk.get(bytes, length, n);
+            length += n;
+        }
+
+        @Override
+        public void end(final boolean finished) {
+            this.finished = finished;
+        }
+    }
+
+    /**
+     * Inflates the kept bytes according to the content encoding, up to maxBytes inflated bytes. Only the kept bytes
+     * needed for maxBytes inflated bytes are inflated.
+     *
+     * @return number of kept bytes consumed, all the bytes that went through the capture if the body was fully inflated
+     */
+    private int inflateKept(final int maxBytes, final InflatedChunks chunks) {
+        final CompressionBuffers compression = COMPRESSION_BUFFERS.get();
+        final byte[] input = compression.input;
+        final InputStream in = newInputStream();
+        int n = read(in, input);
+        if (n <= 0) {
+            return 0;
+        }
+        int header = 0;
+        Inflater inflater = compression.inflater;
+        if (contentEncoding == GZIP) {
+            header = gzipHeaderLength(input, n);
+        } else if (n >= 2 && (input[0] & 0x0F) == 8 && ((input[0] & 0xFF) << 8 | input[1] & 0xFF) % 31 == 0) {
+            // deflate is meant to be wrapped in zlib, some servers send it raw
+            inflater = compression.zlibInflater;
+        }
+        inflater.reset();
+        if (header < 0) {
+            logger.debug("Malformed gzip header, body not inflated");
+            chunks.end(false);
+            return 0;
+        }
+        inflater.setInput(input, header, n - header);
+        final ByteBuffer inflated = ByteBuffer.wrap(compression.inflated);
+        int remaining = maxBytes;
+        try {
+            while (remaining > 0 && !inflater.finished()) {
+                if (inflater.needsInput()) {
+                    n = read(in, input);
+                    if (n < 0) {
+                        // body truncated by the limit of the capture
+                        break;
+                    }
+                    inflater.setInput(input, 0, n);
+                }
+                final int length = inflater.inflate(compression.inflated, 0, Math.min(remaining, compression.inflated.length));
+                if (length == 0 && inflater.needsDictionary()) {
+                    break;
+                }
+                remaining -= length;
+                inflated.clear();
+                inflated.limit(length);
+                chunks.append(inflated);
+            }
+        } catch (DataFormatException e) {
+            logger.debug("Corrupted {} body, dumping the bytes inflated so far", contentEncoding == GZIP ? "gzip" : "deflate", e);
+        }
+        final boolean finished = inflater.finished();
+        chunks.end(finished);
+        return finished ? (int) Math.min(total, Integer.MAX_VALUE) : (int) (header + inflater.getBytesRead());
+    }
+
+    private static int read(final InputStream in, final byte[] bytes) {
+        try {
+            return in.read(bytes, 0, bytes.length);
+        } catch (IOException e) {
+            // streams over the segments do not throw
+            return -1;
+        }
+    }
+
+    /**
+     * @return length of the gzip header at the start of the bytes, -1 if it is malformed or not complete
+     */
+    static int gzipHeaderLength(final byte[] bytes, final int length) {
+        if (length < 10 || (bytes[0] & 0xFF) != 0x1F || (bytes[1] & 0xFF) != 0x8B || bytes[2] != 8) {
+            return -1;
+        }
+        final int flags = bytes[3];
+        int position = 10;
+        if ((flags & 4) != 0) {
+            // extra field
+            if (position + 2 > length) {
+                return -1;
+            }
+            position += 2 + ((bytes[position] & 0xFF) | (bytes[position + 1] & 0xFF) << 8);
+        }
+        for (int flag = 8; flag <= 16; flag <<= 1) {
+            if ((flags & flag) != 0) {
+                // zero terminated file name or comment
+                while (position < length && bytes[position] != 0) {
+                    position++;
+                }
+                position++;
+            }
+        }
+        if ((flags & 2) != 0) {
+            // header crc
+            position += 2;
+        }
+        return position <= length ? position : -1;
+    }
+
+    /**
+     * @return the charset named by the encoding, or the platform default if it is null or not supported
+     */
+    static Charset charsetOf(final String encoding) {
+        if (encoding != null) {
+            try {
+                return Charset.forName(encoding.trim());
+            } catch (IllegalArgumentException e) {
+                logger.debug("Unsupported charset {}, dumping body with default charset", encoding);
+            }
+        }
+        return Charset.defaultCharset();
+    }
+
+    /**
+     * @return the charset parameter of the content type, null if there is none
+     */
+    static String charsetParameter(final String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        final int index = contentType.toLowerCase(Locale.ENGLISH).indexOf("charset=");
+        if (index < 0) {
+            return null;
+        }
+        int end = contentType.indexOf(';', index);
+        if (end < 0) {
+            end = contentType.length();
+        }
+        final String charset = contentType.substring(index + "charset=".length(), end).trim();
+        return charset.length() > 1 && charset.charAt(0) == '"' && charset.endsWith("\"")
+                ? charset.substring(1, charset.length() - 1) : charset;
+    }
+
+    private static void decode(final CharsetDecoder decoder, final ByteBuffer in, final CharBuffer chars,
+                               final StringBuilder out, final boolean endOfInput) {
+        while (decoder.decode(in, chars, endOfInput).isOverflow()) {
+            chars.flip();
+            out.append(chars);
+            chars.clear();
+        }
+    }
+
+    /**
+     * @return number of chunks of kept bytes: the segments, then the spill file and the staging segment if any
+     */
+    private int chunkCount() {
+        if (deflated != null) {
+            return size > 0 ? 1 : 0;
+        }
+        return staging == null ? segmentCount : segmentCount + 2;
+    }
+
+    private int chunkSize(final int index) {
+        if (deflated != null) {
+            return size;
+        }
+        if (index == segmentCount) {
+            return spilled;
+        }
+        return index < segmentCount ? segments[index].position() : staging.position();
+    }
+
+    private ByteBuffer view(final int index) {
+        if (deflated != null) {
+            return ByteBuffer.wrap(inflate());
+        }
+        if (index == segmentCount) {
+            return spilledView();
+        }
+        final ByteBuffer view = (index < segmentCount ? segments[index] : staging).duplicate();
+        view.flip();
+        return view;
+    }
+
+    private ByteBuffer spilledView() {
+        if (spilled == 0) {
+            return ByteBuffer.allocate(0);
+        }
+        try {
+            if (mapped == null || mapped.capacity() != spilled) {
+                mapped = spillChannel.map(FileChannel.MapMode.READ_ONLY, 0, spilled);
+            }
+            return mapped.duplicate();
+        } catch (IOException e) {
+            logger.error("IO caught while mapping spill file {}", spillFile, e);
+            return ByteBuffer.allocate(0);
+        }
+    }
+
+    /**
+     * Adds a holder to the capture, which will have to call release() too.
+     */
+    BodyCapture retain() {
+        references.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Gives the segments back to the pool once every holder has released the capture.
+     * Bytes written after that are only counted.
+     */
+    void release() {
+        if (references.decrementAndGet() == 0 && !released) {
+            released = true;
+            for (int i = 0; i < segmentCount; i++) {
+                pool.release(segments[i]);
+                segments[i] = null;
+            }
+            segmentCount = 0;
+            current = null;
+            size = 0;
+            deflated = null;
+            if (reservedBytes > 0) {
+                pool.getBudget().release(reservedBytes);
+                reservedBytes = 0;
+            }
+            if (spillFile != null) {
+                deleteSpillFile();
+            }
+        }
+    }
+
+    /**
+     * Decoder and buffers reused by the dumps built on a thread.
+     */
+    private static final class DecodingBuffers {
+        final CharBuffer chars = CharBuffer.allocate(RequestLoggerFilter.BUFFER_SIZE);
+        final ByteBuffer carry = ByteBuffer.allocate(16);
+        private CharsetDecoder decoder = null;
+
+        CharsetDecoder decoder(final Charset charset) {
+            if (decoder == null || !decoder.charset().equals(charset)) {
+                decoder = charset.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            }
+            chars.clear();
+            carry.clear();
+            return decoder.reset();
+        }
+
+        /**
+         * Decodes the bytes into out, keeping the bytes of a character split with the next chunk in the carry.
+         */
+        void decode(final CharsetDecoder decoder, final ByteBuffer in, final StringBuilder out) {
+            while (carry.position() > 0 && in.hasRemaining()) {
+                carry.put(in.get());
+                carry.flip();
+                BodyCapture.decode(decoder, carry, chars, out, false);
+                carry.compact();
+            }
+            BodyCapture.decode(decoder, in, chars, out, false);
+            carry.put(in);
+        }
+
+        /**
+         * Decodes the last bytes and flushes the decoder into out.
+         *
+         * @param truncated true if the bytes stop before the end of the body, the bytes of a character cut by the end
+         *                  being dropped then
+         * @return number of bytes dropped
+         */
+        int finish(final CharsetDecoder decoder, final StringBuilder out, final boolean truncated) {
+            carry.flip();
+            int dropped = 0;
+            if (truncated) {
+                dropped = carry.remaining();
+                carry.position(carry.limit());
+            }
+            BodyCapture.decode(decoder, carry, chars, out, true);
+            decoder.flush(chars);
+            chars.flip();
+            out.append(chars);
+            return dropped;
+        }
+    }
+
+    /**
+     * Deflater, inflater and buffers reused by the captures compressed or read on a thread.
+     */
+    private static final class CompressionBuffers {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        final Inflater inflater = new Inflater(true);
+        final Inflater zlibInflater = new Inflater();
+        final byte[] input = new byte[RequestLoggerFilter.SEGMENT_SIZE];
+        final byte[] inflated = new byte[RequestLoggerFilter.BUFFER_SIZE];
+        byte[] output = new byte[RequestLoggerFilter.SEGMENT_SIZE];
+
+        /**
+         * Deflates into the output after its first length bytes, growing it when full.
+         *
+         * @return number of bytes in the output
+         */
+        int deflate(final int length) {
+            if (length == output.length) {
+                output = Arrays.copyOf(output, length << 1);
+            }
+            return length + deflater.deflate(output, length, output.length - length);
+        }
+
+        /**
+         * Drops the output if it grew beyond FormatBuffers.MAX_RETAINED_CAPACITY, so that a large body does not stay
+         * referenced by the thread.
+         */
+        void trim() {
+            if (output.length > FormatBuffers.MAX_RETAINED_CAPACITY) {
+                output = new byte[RequestLoggerFilter.SEGMENT_SIZE];
+            }
+        }
+    }
+
+    private void deleteSpillFile() {
+        if (spillChannel != null) {
+            try {
+                spillChannel.close();
+            } catch (IOException e) {
+                logger.error("IO caught while closing spill file {}", spillFile, e);
+            }
+        }
+        if (!spillFile.delete()) {
+            logger.warn("Could not delete spill file {}", spillFile);
+        }
+        spillChannel = null;
+        spillFile = null;
+        staging = null;
+        mapped = null;
+        spilled = 0;
+    }
+}
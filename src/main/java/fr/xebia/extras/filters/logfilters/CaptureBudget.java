@@ -0,0 +1,75 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bound on the bytes held by all the body captures of a filter, whatever the pool they come from.
+ * <p/>
+ * Captures reserve the size of a segment before taking it from the pool and give it back when they are released.
+ * Reservations are made with compare and set on a single counter, so the budget is never exceeded.
+ */
+class CaptureBudget {
+
+    private final long limit;
+    private final AtomicLong reserved = new AtomicLong();
+    private final AtomicLong degradedCaptures = new AtomicLong();
+
+    /**
+     * @param limit max number of bytes reserved at once
+     */
+    CaptureBudget(final long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * @return true if the bytes have been reserved, false if they would exceed the budget
+     */
+    boolean tryReserve(final long bytes) {
+        long current;
+        do {
+            current = reserved.get();
+            if (current + bytes > limit) {
+                return false;
+            }
+        } while (!reserved.compareAndSet(current, current + bytes));
+        return true;
+    }
+
+    void release(final long bytes) {
+        reserved.addAndGet(-bytes);
+    }
+
+    /**
+     * Counts a capture which could not keep all its bytes because of the budget.
+     */
+    void degraded() {
+        degradedCaptures.incrementAndGet();
+    }
+
+    long getLimit() {
+        return limit;
+    }
+
+    long getReserved() {
+        return reserved.get();
+    }
+
+    long getDegradedCaptures() {
+        return degradedCaptures.get();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pool of fixed size segments used by the BodyCapture of both wrappers.
+ * <p/>
+ * Free segments are kept in stripes of slots, a thread looks for a segment in the stripe selected by its id before
+ * allocating a new one. Slots are taken and given back with compare and set so the pool never locks, and it never
+ * keeps more than maxPooledSegments segments: segments released to a full stripe are left to the garbage collector.
+ */
+class CaptureBufferPool {
+
+    /**
+     * Pool keeping no segment, used by wrappers built without the filter.
+     */
+    static final CaptureBufferPool UNPOOLED = new CaptureBufferPool(RequestLoggerFilter.SEGMENT_SIZE, 0);
+
+    private final int segmentSize;
+    private final int stripeMask;
+    private final int slotsPerStripe;
+    private final AtomicReferenceArray<ByteBuffer> slots;
+    private final CaptureBudget budget;
+    private final CaptureSpill spill;
+
+    /**
+     * @param segmentSize       size in bytes of every segment
+     * @param maxPooledSegments max number of free segments kept by the pool, 0 disables pooling
+     */
+    CaptureBufferPool(final int segmentSize, final int maxPooledSegments) {
+        this(segmentSize, maxPooledSegments, null);
+    }
+
+    /**
+     * @param segmentSize       size in bytes of every segment
+     * @param maxPooledSegments max number of free segments kept by the pool, 0 disables pooling
+     * @param budget            bound on the bytes held by the captures using this pool, null if unbounded
+     */
+    CaptureBufferPool(final int segmentSize, final int maxPooledSegments, final CaptureBudget budget) {
+        this(segmentSize, maxPooledSegments, budget, null);
+    }
+
+    /**
+     * @param segmentSize       size in bytes of every segment
+     * @param maxPooledSegments max number of free segments kept by the pool, 0 disables pooling
+     * @param budget            bound on the bytes held by the captures using this pool, null if unbounded
+     * @param spill             settings of the captures spilling to disk, null if captures are kept in memory
+     */
+    CaptureBufferPool(final int segmentSize, final int maxPooledSegments, final CaptureBudget budget,
+                      final CaptureSpill spill) {
+        this.segmentSize = segmentSize;
+        this.budget = budget;
+        this.spill = spill;
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() * 2) {
+            stripes <<= 1;
+        }
+        stripeMask = stripes - 1;
+        slotsPerStripe = (maxPooledSegments + stripes - 1) / stripes;
+        slots = new AtomicReferenceArray<ByteBuffer>(stripes * slotsPerStripe);
+    }
+
+    int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * @return the budget captures must reserve their segments from, null if unbounded
+     */
+    CaptureBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return the settings of the captures spilling to disk, null if captures are kept in memory
+     */
+    CaptureSpill getSpill() {
+        return spill;
+    }
+
+    /**
+     * @return an empty segment, taken from the pool if one is free, or null if the pool has a fixed capacity
+     *         and all its segments are in use
+     */
+    ByteBuffer acquire() {
+        final int base = stripe();
+        ByteBuffer segment = take(base, base + slotsPerStripe);
+        if (segment == null) {
+            segment = allocate();
+        }
+        if (segment == null) {
+            // the pool cannot grow anymore, look for a segment released to another stripe
+            segment = take(0, slots.length());
+        }
+        return segment;
+    }
+
+    /**
+     * Gives a segment back to the pool. The segment must not be used anymore by the caller.
+     */
+    void release(final ByteBuffer segment) {
+        segment.clear();
+        final int base = stripe();
+        if (!give(segment, base, base + slotsPerStripe) && isFixedCapacity()) {
+            // segments of a fixed capacity pool can not be replaced, they must never be dropped
+            give(segment, 0, slots.length());
+        }
+    }
+
+    private ByteBuffer take(final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            final ByteBuffer segment = slots.get(i);
+            if (segment != null && slots.compareAndSet(i, segment, null)) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    private boolean give(final ByteBuffer segment, final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            if (slots.get(i) == null && slots.compareAndSet(i, null, segment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return number of free segments currently kept by the pool
+     */
+    int pooledSegments() {
+        int count = 0;
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return a new segment, or null if the pool can not allocate anymore
+     */
+    ByteBuffer allocate() {
+        return ByteBuffer.allocate(segmentSize);
+    }
+
+    /**
+     * @return true if the pool only owns a fixed set of segments, in which case acquire() may return null
+     */
+    boolean isFixedCapacity() {
+        return false;
+    }
+
+    private int stripe() {
+        return ((int) Thread.currentThread().getId() & stripeMask) * slotsPerStripe;
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Include and exclude rules selecting the requests to capture, defined by the captureRules init parameter.
+ * <p/>
+ * Rules are separated by ';' or new lines, each rule is made of whitespace separated tokens:
+ * <pre>
+ *   include /rest/orders/** method=POST,PUT contentType=application/json maxDumpSizeInKB=100
+ *   exclude /rest/*&#47;health
+ * </pre>
+ * The path is matched against the request URI without the context path, segment by segment: '*' matches one segment
+ * and a trailing '**' matches any number of segments. method and contentType are optional lists, a content type
+ * 'type/*' matching any subtype. maxDumpSizeInKB overrides the max dump size for the requests matching the rule.
+ * <p/>
+ * The first matching rule decides. When no rule matches, the request is captured only if there is no include rule.
+ * <p/>
+ * Paths are compiled into a tree of segments, so a request is matched in a single pass over its URI, following
+ * every branch matching the current segment at once.
+ */
+class CaptureRules {
+
+    private static final Logger logger = LoggerFactory.getLogger(CaptureRules.class);
+
+    /**
+     * Rule applied to requests that match no rule when there is no include rule.
+     */
+    static final Rule DEFAULT = new Rule(Integer.MAX_VALUE, true, null, null, -1);
+
+    static class Rule {
+        final int index;
+        final boolean include;
+        final String[] methods;
+        final String[] contentTypes;
+        final int maxDumpSizeInKB;
+
+        Rule(final int index, final boolean include, final String[] methods, final String[] contentTypes, final int maxDumpSizeInKB) {
+            this.index = index;
+            this.include = include;
+            this.methods = methods;
+            this.contentTypes = contentTypes;
+            this.maxDumpSizeInKB = maxDumpSizeInKB;
+        }
+
+        boolean matches(final String method, final String contentType) {
+            return matchesMethod(method) && matchesContentType(contentType);
+        }
+
+        private boolean matchesMethod(final String method) {
+            if (methods == null) {
+                return true;
+            }
+            for (String m : methods) {
+                if (m.equalsIgnoreCase(method)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean matchesContentType(final String contentType) {
+            if (contentTypes == null) {
+                return true;
+            }
+            if (contentType == null) {
+                return false;
+            }
+            int end = contentType.indexOf(';');
+            if (end < 0) {
+                end = contentType.length();
+            }
+            while (end > 0 && contentType.charAt(end - 1) == ' ') {
+                end--;
+            }
+            for (String type : contentTypes) {
+                if (type.endsWith("/*")) {
+                    if (contentType.regionMatches(true, 0, type, 0, type.length() - 1)) {
+                        return true;
+                    }
+                } else if (type.length() == end && contentType.regionMatches(true, 0, type, 0, end)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Node {
+        String[] keys = new String[0];
+        Node[] children = new Node[0];
+        Node wildcard = null;
+        // rules whose path ends on this node, and rules whose path ends with '**' after this node
+        final List<Rule> rules = new ArrayList<Rule>(1);
+        final List<Rule> tailRules = new ArrayList<Rule>(1);
+
+        Node child(final String key) {
+            if ("*".equals(key)) {
+                if (wildcard == null) {
+                    wildcard = new Node();
+                }
+                return wildcard;
+            }
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i].equals(key)) {
+                    return children[i];
+                }
+            }
+            final String[] newKeys = new String[keys.length + 1];
+            final Node[] newChildren = new Node[keys.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, keys.length);
+            System.arraycopy(children, 0, newChildren, 0, keys.length);
+            newKeys[keys.length] = key;
+            newChildren[keys.length] = new Node();
+            keys = newKeys;
+            children = newChildren;
+            return newChildren[keys.length - 1];
+        }
+    }
+
+    private final Node root = new Node();
+    private boolean hasIncludes = false;
+    private int ruleCount = 0;
+    // max number of nodes at the same depth, bounding the number of branches followed at once
+    private int width = 1;
+
+    /**
+     * @return the compiled rules, or null if the specification defines no valid rule
+     */
+    static CaptureRules parse(final String specification) {
+        final CaptureRules captureRules = new CaptureRules();
+        for (String ruleSpecification : specification.split("[;\\n]")) {
+            ruleSpecification = ruleSpecification.trim();
+            if (ruleSpecification.length() > 0) {
+                try {
+                    captureRules.add(ruleSpecification);
+                } catch (IllegalArgumentException e) {
+                    logger.warn("Bad format for captureRules parameter, ignoring rule '{}': {}", ruleSpecification, e.getMessage());
+                }
+            }
+        }
+        if (captureRules.ruleCount == 0) {
+            return null;
+        }
+        captureRules.width = captureRules.computeWidth();
+        return captureRules;
+    }
+
+    int size() {
+        return ruleCount;
+    }
+
+    private void add(final String specification) {
+        final String[] tokens = specification.split("\\s+");
+        if (tokens.length < 2) {
+            throw new IllegalArgumentException("expecting include or exclude followed by a path");
+        }
+        final boolean include;
+        if ("include".equalsIgnoreCase(tokens[0])) {
+            include = true;
+        } else if ("exclude".equalsIgnoreCase(tokens[0])) {
+            include = false;
+        } else {
+            throw new IllegalArgumentException("expecting include or exclude instead of " + tokens[0]);
+        }
+        String[] methods = null;
+        String[] contentTypes = null;
+        int maxDumpSizeInKB = -1;
+        for (int i = 2; i < tokens.length; i++) {
+            final int equals = tokens[i].indexOf('=');
+            final String key = equals < 0 ? tokens[i] : tokens[i].substring(0, equals);
+            final String value = equals < 0 ? "" : tokens[i].substring(equals + 1);
+            if ("method".equals(key)) {
+                methods = value.split(",");
+            } else if ("contentType".equals(key)) {
+                contentTypes = value.split(",");
+            } else if ("maxDumpSizeInKB".equals(key)) {
+                try {
+                    maxDumpSizeInKB = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("expecting positive Integer value for maxDumpSizeInKB");
+                }
+                if (maxDumpSizeInKB <= 0) {
+                    throw new IllegalArgumentException("expecting positive Integer value for maxDumpSizeInKB");
+                }
+            } else {
+                throw new IllegalArgumentException("unknown attribute " + key);
+            }
+        }
+
+        final Rule rule = new Rule(ruleCount, include, methods, contentTypes, maxDumpSizeInKB);
+        Node node = root;
+        final String[] segments = tokens[1].split("/");
+        for (int i = 0; i < segments.length; i++) {
+            if ("**".equals(segments[i])) {
+                if (i != segments.length - 1) {
+                    throw new IllegalArgumentException("'**' is only allowed at the end of the path");
+                }
+                node.tailRules.add(rule);
+                node = null;
+                break;
+            } else if (segments[i].length() > 0) {
+                node = node.child(segments[i]);
+            }
+        }
+        if (node != null) {
+            node.rules.add(rule);
+        }
+        ruleCount++;
+        hasIncludes |= include;
+    }
+
+    private int computeWidth() {
+        int max = 1;
+        List<Node> level = new ArrayList<Node>();
+        level.add(root);
+        while (!level.isEmpty()) {
+            max = Math.max(max, level.size());
+            final List<Node> next = new ArrayList<Node>();
+            for (Node node : level) {
+                for (Node child : node.children) {
+                    next.add(child);
+                }
+                if (node.wildcard != null) {
+                    next.add(node.wildcard);
+                }
+            }
+            level = next;
+        }
+        return max;
+    }
+
+    /**
+     * @return the rule to apply to the request, or null if the request must not be captured
+     */
+    Rule select(final HttpServletRequest request) {
+        final Rule rule = match(request);
+        if (rule == null) {
+            return hasIncludes ? null : DEFAULT;
+        }
+        return rule.include ? rule : null;
+    }
+
+    /**
+     * @return the first rule matching the request URI without the context path, its method and content type, whether
+     *         it includes or excludes the request, or null if none matches
+     */
+    Rule match(final HttpServletRequest request) {
+        final String uri = request.getRequestURI();
+        final String contextPath = request.getContextPath();
+        final int start = contextPath != null && uri != null && uri.startsWith(contextPath) ? contextPath.length() : 0;
+        return match(uri == null ? "" : uri, start, request.getMethod(), request.getContentType());
+    }
+
+    /**
+     * @return the first rule matching the path starting at start in uri, the method and the content type, or null
+     */
+    Rule match(final String uri, final int start, final String method, final String contentType) {
+        Node[] active = new Node[width];
+        Node[] next = new Node[width];
+        active[0] = root;
+        int activeCount = 1;
+        Rule best = firstMatching(root.tailRules, null, method, contentType);
+
+        int position = start;
+        final int length = uri.length();
+        while (position < length && activeCount > 0) {
+            if (uri.charAt(position) == '/') {
+                position++;
+                continue;
+            }
+            int end = uri.indexOf('/', position);
+            if (end < 0) {
+                end = length;
+            }
+            final int segmentLength = end - position;
+            int nextCount = 0;
+            for (int i = 0; i < activeCount; i++) {
+                final Node node = active[i];
+                for (int k = 0; k < node.keys.length; k++) {
+                    if (node.keys[k].length() == segmentLength && uri.regionMatches(position, node.keys[k], 0, segmentLength)) {
+                        next[nextCount++] = node.children[k];
+                        best = firstMatching(node.children[k].tailRules, best, method, contentType);
+                        break;
+                    }
+                }
+                if (node.wildcard != null) {
+                    next[nextCount++] = node.wildcard;
+                    best = firstMatching(node.wildcard.tailRules, best, method, contentType);
+                }
+            }
+            final Node[] swap = active;
+            active = next;
+            next = swap;
+            activeCount = nextCount;
+            position = end;
+        }
+        for (int i = 0; i < activeCount; i++) {
+            best = firstMatching(active[i].rules, best, method, contentType);
+        }
+        return best;
+    }
+
+    private static Rule firstMatching(final List<Rule> rules, Rule best, final String method, final String contentType) {
+        for (int i = 0; i < rules.size(); i++) {
+            final Rule rule = rules.get(i);
+            if ((best == null || rule.index < best.index) && rule.matches(method, contentType)) {
+                best = rule;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Settings of the captures spilling their bytes to disk once they have kept threshold bytes in memory.
+ */
+class CaptureSpill {
+
+    private final int threshold;
+    private final File directory;
+
+    /**
+     * @param threshold number of bytes kept in memory before spilling
+     * @param directory directory of the spill files, null for the default temporary directory
+     */
+    CaptureSpill(final int threshold, final File directory) {
+        this.threshold = threshold;
+        this.directory = directory;
+    }
+
+    int getThreshold() {
+        return threshold;
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return a new empty spill file, the capture deletes it when released
+     */
+    File createFile() throws IOException {
+        return File.createTempFile("capture-", ".spill", directory);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshot of the data needed to dump one side of an exchange, detached from the wrappers so that it can be
+ * formatted on another thread. The dump holds a reference on the body capture until it is released.
+ */
+abstract class Dump {
+
+    final int id;
+    // time the dump was taken, in ms since the epoch
+    final long timestamp;
+    // null when headers are not dumped
+    final Map<String, List<String>> headers;
+    BodyCapture body;
+    boolean headersOnly = false;
+
+    Dump(final int id, final Map<String, List<String>> headers, final BodyCapture body) {
+        this(id, System.currentTimeMillis(), headers, body);
+    }
+
+    Dump(final int id, final long timestamp, final Map<String, List<String>> headers, final BodyCapture body) {
+        this.id = id;
+        this.timestamp = timestamp;
+        this.headers = headers;
+        this.body = body == null ? null : body.retain();
+    }
+
+    /**
+     * Replaces the body capture by a compressed copy of its first maxBytes kept bytes, and releases the capture so
+     * that its segments go back to the pool while the dump waits to be emitted.
+     */
+    void compressBody(final int maxBytes) {
+        // bodies encoded by the webapp are already compressed
+        if (body != null && !body.isCompressed() && !body.isProjected()
+                && body.getContentEncoding() == BodyCapture.IDENTITY) {
+            final BodyCapture compressed = body.compress(maxBytes);
+            body.release();
+            body = compressed;
+        }
+    }
+
+    /**
+     * @return max number of body bytes dumped, unlimited when the capture is already limited to the max dump size
+     */
+    int getMaxBodySize() {
+        return BodyCapture.UNLIMITED;
+    }
+
+    /**
+     * Replaces the body capture by a copy of its first maxBytes bytes, and releases the capture, if it keeps more
+     * bytes or has spilled them to a file. Used for the dumps kept for a while, so they hold at most maxBytes bytes.
+     */
+    void truncateBody(final int maxBytes) {
+        if (body != null) {
+            final BodyCapture truncated = body.truncate(maxBytes);
+            if (truncated != body) {
+                body.release();
+                body = truncated;
+            }
+        }
+    }
+
+    /**
+     * Replaces the body capture by its JSON projection, if it is not projected yet.
+     */
+    void projectBody(final JsonProjection projection, final int maxBytes) {
+        if (body != null && !body.isProjected() && !body.isCompressed()
+                && body.getContentEncoding() == BodyCapture.IDENTITY) {
+            final BodyCapture projected = body.project(projection, maxBytes);
+            body.release();
+            body = projected;
+        }
+    }
+
+    /**
+     * Replaces the body capture by a copy of its first maxBytes bytes with the values of the secret fields masked, if
+     * they have some. Bodies encoded by the webapp are scanned once inflated, a body whose encoding is not supported
+     * can not be scanned, it is dropped.
+     */
+    void redactBody(final Redactor redactor, final int maxBytes) {
+        if (body == null || !redactor.redactsBodies()) {
+            return;
+        }
+        if (body.getContentEncoding() == BodyCapture.UNSUPPORTED_ENCODING) {
+            dropBody();
+            return;
+        }
+        final BodyCapture redacted = body.redact(redactor, maxBytes);
+        if (redacted != body) {
+            body.release();
+            body = redacted;
+        }
+    }
+
+    /**
+     * Releases the body capture and marks the dump as dumping headers only.
+     */
+    void dropBody() {
+        release();
+        headersOnly = true;
+    }
+
+    /**
+     * Releases the body capture, must be called once the dump has been emitted or dropped.
+     */
+    void release() {
+        if (body != null) {
+            body.release();
+            body = null;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Condition checked once the chain returned to decide whether a captured exchange is dumped, used to dump only
+ * slow or failing exchanges. An exchange is dumped if the chain threw an exception, if its status matches one
+ * of the statuses or if it took more than the threshold.
+ */
+class DumpCondition {
+
+    private static final Logger logger = LoggerFactory.getLogger(DumpCondition.class);
+    private static final int MAX_STATUS = 600;
+
+    // indexed by status code, null when the status is not checked
+    private final boolean[] statuses;
+    // -1 when the elapsed time is not checked
+    private final long slowerThanNanos;
+
+    DumpCondition(final boolean[] statuses, final long slowerThanNanos) {
+        this.statuses = statuses;
+        this.slowerThanNanos = slowerThanNanos;
+    }
+
+    /**
+     * @param statusesSpecification comma separated list of status codes or status classes like 5xx, may be null
+     * @param slowerThanMs          threshold in milliseconds, 0 or less to disable
+     */
+    static DumpCondition parse(final String statusesSpecification, final int slowerThanMs) {
+        boolean[] statuses = null;
+        if (statusesSpecification != null) {
+            statuses = new boolean[MAX_STATUS];
+            for (String status : statusesSpecification.split(",")) {
+                status = status.trim();
+                try {
+                    if (status.length() == 3 && status.substring(1).equalsIgnoreCase("xx")) {
+                        final int statusClass = Integer.parseInt(status.substring(0, 1));
+                        for (int i = statusClass * 100; i < (statusClass + 1) * 100 && i < MAX_STATUS; i++) {
+                            statuses[i] = true;
+                        }
+                    } else if (status.length() > 0) {
+                        statuses[Integer.parseInt(status)] = true;
+                    }
+                } catch (RuntimeException e) {
+                    logger.warn("Bad format for dumpOnStatus parameter expecting status code or class like 5xx:{}", status);
+                }
+            }
+        }
+        return new DumpCondition(statuses, slowerThanMs > 0 ? slowerThanMs * 1000000L : -1);
+    }
+
+    /**
+     * @return true if the condition needs the status of the response, so the response must be wrapped
+     */
+    boolean needsStatus() {
+        return statuses != null;
+    }
+
+    boolean matches(final int status, final long elapsedNanos, final Throwable failure) {
+        return failure != null
+                || (statuses != null && status >= 0 && status < MAX_STATUS && statuses[status])
+                || (slowerThanNanos >= 0 && elapsedNanos > slowerThanNanos);
+    }
+}
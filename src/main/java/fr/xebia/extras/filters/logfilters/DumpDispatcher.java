@@ -0,0 +1,173 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands dumps over to background threads that format and log them, so that the request thread only pays for
+ * the capture.
+ * <p/>
+ * Dumps go through a bounded queue backed by a preallocated array. When the queue is full, the overflow policy
+ * decides what happens to the new dump: the request thread waits for some room, the dump is dropped, or it is
+ * emitted right away without its body. Queued dumps keep at most the max dump size of their body.
+ */
+class DumpDispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(DumpDispatcher.class);
+
+    enum OverflowPolicy {
+        BLOCK, DROP, HEADERS
+    }
+
+    /**
+     * Formats and logs the dumps, called from the dispatcher threads.
+     */
+    interface Emitter {
+        void emit(Dump dump);
+    }
+
+    // tells a worker to stop
+    private static final Dump STOP = new Dump(0, null, null) {
+    };
+
+    private final BlockingQueue<Dump> queue;
+    private final OverflowPolicy overflowPolicy;
+    private final Emitter emitter;
+    private final Thread[] workers;
+    private final AtomicLong droppedDumps = new AtomicLong();
+    private final AtomicLong degradedDumps = new AtomicLong();
+
+    DumpDispatcher(final int queueSize, final int threads, final OverflowPolicy overflowPolicy, final Emitter emitter) {
+        this.queue = new ArrayBlockingQueue<Dump>(queueSize);
+        this.overflowPolicy = overflowPolicy;
+        this.emitter = emitter;
+        this.workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "RequestLoggerFilter-dump-" + i);
+            workers[i].setDaemon(true);
+        }
+    }
+
+    void start() {
+        for (Thread worker : workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops the threads once they have emitted the dumps already queued, waiting at most a second for each of them.
+     *
+     * @return true if all the threads have terminated
+     */
+    boolean stop() {
+        try {
+            for (int i = 0; i < workers.length; i++) {
+                queue.put(STOP);
+            }
+            for (Thread worker : workers) {
+                worker.join(1000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Thread worker : workers) {
+            if (worker.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Queues the dump, its body being first truncated to the max dump size so that a queued dump does not hold a whole
+     * buffered request body or a spill file until it is emitted.
+     */
+    void dispatch(final Dump dump) {
+        dump.truncateBody(dump.getMaxBodySize());
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    queue.put(dump);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    drop(dump);
+                }
+                break;
+            case HEADERS:
+                if (!queue.offer(dump)) {
+                    degradedDumps.incrementAndGet();
+                    dump.dropBody();
+                    emit(dump);
+                }
+                break;
+            default:
+                if (!queue.offer(dump)) {
+                    drop(dump);
+                }
+        }
+    }
+
+    /**
+     * @return number of dumps dropped because the queue was full
+     */
+    long getDroppedDumps() {
+        return droppedDumps.get();
+    }
+
+    /**
+     * @return number of dumps emitted without their body because the queue was full
+     */
+    long getDegradedDumps() {
+        return degradedDumps.get();
+    }
+
+    private void drop(final Dump dump) {
+        droppedDumps.incrementAndGet();
+        dump.release();
+    }
+
+    private void emit(final Dump dump) {
+        try {
+            emitter.emit(dump);
+        } catch (RuntimeException e) {
+            logger.error("Error caught while dumping exchange {}", dump.id, e);
+        } finally {
+            dump.release();
+        }
+    }
+
+    private void work() {
+        try {
+            Dump dump;
+            while ((dump = queue.take()) != STOP) {
+                emit(dump);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
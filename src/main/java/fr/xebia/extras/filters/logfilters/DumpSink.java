@@ -0,0 +1,33 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+/**
+ * Destination of the dumps, selected by the dumpSink init parameter of the filter.
+ * <p/>
+ * write() is called by the threads emitting dumps, possibly concurrently, and must not keep the dump after it returns
+ * since its body is released then.
+ */
+interface DumpSink {
+
+    void write(Dump dump);
+
+    /**
+     * Flushes and releases the resources of the sink, called when the filter is destroyed. Dumps written once the
+     * sink is closed are dropped.
+     */
+    void close();
+}
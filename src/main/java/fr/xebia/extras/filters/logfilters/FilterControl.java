@@ -0,0 +1,139 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes the settings of the RequestLoggerFilter, and changes them through JMX.
+ * <p/>
+ * The current settings are held by a volatile field: the request threads read it without locking, while the changes,
+ * which are rare, are serialized so that two changes at once can not lose one another.
+ */
+class FilterControl implements FilterControlMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(FilterControl.class);
+
+    private volatile FilterSettings settings;
+
+    FilterControl(final FilterSettings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * @return the current settings, to be read once per request
+     */
+    FilterSettings getSettings() {
+        return settings;
+    }
+
+    synchronized void publish(final FilterSettings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Publishes the settings changed through JMX.
+     */
+    private void change(final FilterSettings settings) {
+        publish(settings);
+        logger.warn("RequestLoggerFilter settings changed to request capture {}, response capture {}, headers capture {}, "
+                + "maxDumpSizeInKB {}, sampling rate {}, probability {} and budget {} per second, capture rules {}",
+                new Object[]{settings.requestCapture, settings.responseCapture, settings.headersCapture,
+                        settings.maxDumpSizeInKB, settings.samplingRate, settings.samplingProbability,
+                        settings.samplingBudgetPerSecond, settings.captureRulesSpecification});
+    }
+
+    @Override
+    public String getRequestCapture() {
+        return settings.requestCapture.toString();
+    }
+
+    @Override
+    public synchronized void setRequestCapture(final String mode) {
+        change(settings.withRequestCapture(mode));
+    }
+
+    @Override
+    public String getResponseCapture() {
+        return settings.responseCapture.toString();
+    }
+
+    @Override
+    public synchronized void setResponseCapture(final String mode) {
+        change(settings.withResponseCapture(mode));
+    }
+
+    @Override
+    public String getHeadersCapture() {
+        return settings.headersCapture.toString();
+    }
+
+    @Override
+    public synchronized void setHeadersCapture(final String mode) {
+        change(settings.withHeadersCapture(mode));
+    }
+
+    @Override
+    public int getMaxDumpSizeInKB() {
+        return settings.maxDumpSizeInKB;
+    }
+
+    @Override
+    public synchronized void setMaxDumpSizeInKB(final int maxDumpSizeInKB) {
+        change(settings.withMaxDumpSizeInKB(maxDumpSizeInKB));
+    }
+
+    @Override
+    public int getSamplingRate() {
+        return settings.samplingRate;
+    }
+
+    @Override
+    public synchronized void setSamplingRate(final int rate) {
+        change(settings.withSampling(rate, settings.samplingProbability, settings.samplingBudgetPerSecond));
+    }
+
+    @Override
+    public double getSamplingProbability() {
+        return settings.samplingProbability;
+    }
+
+    @Override
+    public synchronized void setSamplingProbability(final double probability) {
+        change(settings.withSampling(settings.samplingRate, probability, settings.samplingBudgetPerSecond));
+    }
+
+    @Override
+    public int getSamplingBudgetPerSecond() {
+        return settings.samplingBudgetPerSecond;
+    }
+
+    @Override
+    public synchronized void setSamplingBudgetPerSecond(final int budgetPerSecond) {
+        change(settings.withSampling(settings.samplingRate, settings.samplingProbability, budgetPerSecond));
+    }
+
+    @Override
+    public String getCaptureRules() {
+        return settings.captureRulesSpecification;
+    }
+
+    @Override
+    public synchronized void setCaptureRules(final String specification) {
+        change(settings.withCaptureRules(specification));
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+/**
+ * JMX interface changing the settings of the RequestLoggerFilter while it runs. Each change takes effect from the next
+ * request, the requests in progress keeping the settings they started with.
+ */
+public interface FilterControlMBean {
+
+    /**
+     * @return logger when requests are captured if the request logger is enabled at debug level, on or off
+     */
+    String getRequestCapture();
+
+    void setRequestCapture(String mode);
+
+    /**
+     * @return logger when responses are captured if the response logger is enabled at debug level, on or off
+     */
+    String getResponseCapture();
+
+    void setResponseCapture(String mode);
+
+    /**
+     * @return logger when headers are dumped if the headers logger is enabled at debug level, on or off
+     */
+    String getHeadersCapture();
+
+    void setHeadersCapture(String mode);
+
+    int getMaxDumpSizeInKB();
+
+    void setMaxDumpSizeInKB(int maxDumpSizeInKB);
+
+    /**
+     * @return one request out of this rate is dumped, 1 if all are
+     */
+    int getSamplingRate();
+
+    void setSamplingRate(int rate);
+
+    /**
+     * @return probability of each request to be dumped, 1 if all are
+     */
+    double getSamplingProbability();
+
+    void setSamplingProbability(double probability);
+
+    /**
+     * @return max number of requests dumped per second for each request URI, 0 if there is no limit
+     */
+    int getSamplingBudgetPerSecond();
+
+    void setSamplingBudgetPerSecond(int budgetPerSecond);
+
+    /**
+     * @return the capture rules, see CaptureRules for the syntax, null if every request is captured
+     */
+    String getCaptureRules();
+
+    void setCaptureRules(String specification);
+}
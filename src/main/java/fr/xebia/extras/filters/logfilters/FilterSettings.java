@@ -0,0 +1,177 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Settings of the RequestLoggerFilter which can be changed while it runs, through the FilterControl MBean.
+ * <p/>
+ * Settings are immutable: a change builds a new instance, published at once by the FilterControl. The filter reads
+ * them once per request, so all the decisions taken for an exchange are made with the same settings.
+ * <p/>
+ * The capture of requests, responses and headers each follow the level of their logger by default, and can be forced
+ * on or off. The sampler is built with the settings and kept by the changes which do not touch sampling, so that its
+ * counters and budgets are not reset.
+ */
+class FilterSettings {
+
+    /**
+     * How a part of the exchanges is captured, named in lower case through the FilterControl MBean.
+     */
+    enum Capture {
+        LOGGER, ON, OFF;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    // max number of routes having their own sampling budget
+    static final int MAX_SAMPLED_ROUTES = 1024;
+
+    final Capture requestCapture;
+    final Capture responseCapture;
+    final Capture headersCapture;
+    final int maxDumpSizeInKB;
+    final int samplingRate;
+    final double samplingProbability;
+    final int samplingBudgetPerSecond;
+    // null when every request is dumped
+    final Sampler sampler;
+    final String captureRulesSpecification;
+    // null when every request is captured
+    final CaptureRules captureRules;
+
+    /**
+     * Builds the settings of a filter capturing what its loggers enable, without sampling nor capture rules.
+     */
+    FilterSettings(final int maxDumpSizeInKB) {
+        this(Capture.LOGGER, Capture.LOGGER, Capture.LOGGER, maxDumpSizeInKB, 1, 1, 0, null, null, null);
+    }
+
+    private FilterSettings(final Capture requestCapture, final Capture responseCapture, final Capture headersCapture,
+                           final int maxDumpSizeInKB, final int samplingRate, final double samplingProbability,
+                           final int samplingBudgetPerSecond, final Sampler sampler,
+                           final String captureRulesSpecification, final CaptureRules captureRules) {
+        this.requestCapture = requestCapture;
+        this.responseCapture = responseCapture;
+        this.headersCapture = headersCapture;
+        this.maxDumpSizeInKB = maxDumpSizeInKB;
+        this.samplingRate = samplingRate;
+        this.samplingProbability = samplingProbability;
+        this.samplingBudgetPerSecond = samplingBudgetPerSecond;
+        this.sampler = sampler;
+        this.captureRulesSpecification = captureRulesSpecification;
+        this.captureRules = captureRules;
+    }
+
+    /**
+     * @return true if the part of the exchanges captured in this mode must be captured now
+     */
+    static boolean captures(final Capture mode, final Logger logger) {
+        return mode == Capture.LOGGER ? logger.isDebugEnabled() : mode == Capture.ON;
+    }
+
+    /**
+     * @return the capture mode named, whatever its case
+     * @throws IllegalArgumentException if the mode is not logger, on or off
+     */
+    static Capture captureMode(final String mode) {
+        final String trimmed = mode == null ? "" : mode.trim();
+        for (Capture known : Capture.values()) {
+            if (known.name().equalsIgnoreCase(trimmed)) {
+                return known;
+            }
+        }
+        throw new IllegalArgumentException("expecting logger, on or off instead of " + mode);
+    }
+
+    FilterSettings withRequestCapture(final String mode) {
+        return new FilterSettings(captureMode(mode), responseCapture, headersCapture, maxDumpSizeInKB, samplingRate,
+                samplingProbability, samplingBudgetPerSecond, sampler, captureRulesSpecification, captureRules);
+    }
+
+    FilterSettings withResponseCapture(final String mode) {
+        return new FilterSettings(requestCapture, captureMode(mode), headersCapture, maxDumpSizeInKB, samplingRate,
+                samplingProbability, samplingBudgetPerSecond, sampler, captureRulesSpecification, captureRules);
+    }
+
+    FilterSettings withHeadersCapture(final String mode) {
+        return new FilterSettings(requestCapture, responseCapture, captureMode(mode), maxDumpSizeInKB, samplingRate,
+                samplingProbability, samplingBudgetPerSecond, sampler, captureRulesSpecification, captureRules);
+    }
+
+    FilterSettings withMaxDumpSizeInKB(final int maxDumpSizeInKB) {
+        if (maxDumpSizeInKB <= 0) {
+            throw new IllegalArgumentException("expecting positive Integer value for maxDumpSizeInKB");
+        }
+        return new FilterSettings(requestCapture, responseCapture, headersCapture, maxDumpSizeInKB, samplingRate,
+                samplingProbability, samplingBudgetPerSecond, sampler, captureRulesSpecification, captureRules);
+    }
+
+    /**
+     * @param rate              dumps one request out of rate, 1 to dump them all
+     * @param probability       dumps each request with this probability, 1 to dump them all
+     * @param budgetPerSecond   dumps at most this number of requests per second for each route, 0 for no limit
+     */
+    FilterSettings withSampling(final int rate, final double probability, final int budgetPerSecond) {
+        if (rate < 1) {
+            throw new IllegalArgumentException("expecting positive Integer value for samplingRate");
+        }
+        if (!(probability >= 0 && probability <= 1)) {
+            throw new IllegalArgumentException("expecting value between 0 and 1 for samplingProbability");
+        }
+        if (budgetPerSecond < 0) {
+            throw new IllegalArgumentException("expecting positive Integer value for samplingBudgetPerSecond");
+        }
+        final List<Sampler> samplers = new ArrayList<Sampler>();
+        if (rate > 1) {
+            samplers.add(new Sampler.RateSampler(rate));
+        }
+        if (probability < 1) {
+            samplers.add(new Sampler.ProbabilisticSampler(probability));
+        }
+        if (budgetPerSecond > 0) {
+            samplers.add(new Sampler.RouteBudgetSampler(budgetPerSecond, MAX_SAMPLED_ROUTES));
+        }
+        final Sampler sampler = samplers.isEmpty() ? null : samplers.size() == 1 ? samplers.get(0)
+                : new Sampler.AllSampler(samplers.toArray(new Sampler[samplers.size()]));
+        return new FilterSettings(requestCapture, responseCapture, headersCapture, maxDumpSizeInKB, rate,
+                probability, budgetPerSecond, sampler, captureRulesSpecification, captureRules);
+    }
+
+    /**
+     * @param specification capture rules in the CaptureRules syntax, null or blank to capture every request
+     * @throws IllegalArgumentException if the specification defines no valid rule
+     */
+    FilterSettings withCaptureRules(final String specification) {
+        CaptureRules rules = null;
+        if (specification != null && specification.trim().length() > 0) {
+            rules = CaptureRules.parse(specification);
+            if (rules == null) {
+                throw new IllegalArgumentException("expecting at least one valid rule in captureRules");
+            }
+        }
+        return new FilterSettings(requestCapture, responseCapture, headersCapture, maxDumpSizeInKB, samplingRate,
+                samplingProbability, samplingBudgetPerSecond, sampler, rules == null ? null : specification, rules);
+    }
+}
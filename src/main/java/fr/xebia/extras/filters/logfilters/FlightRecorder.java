@@ -0,0 +1,131 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the dumps of the last exchanges captured, so that they can be dumped on demand instead of being logged.
+ * <p/>
+ * Exchanges are kept in a ring of fixed capacity: each new exchange takes the next slot with an atomic increment and
+ * replaces the oldest exchange, which is released. Bodies are truncated to the max dump size when recorded, buffered
+ * request bodies being captured whole to be replayed to the webapp, so memory is bounded by the capacity and the max
+ * dump size, and recording never locks.
+ */
+class FlightRecorder implements FlightRecorderMBean {
+
+    /**
+     * Request and response dumps of one exchange, any of them may be null if that side is not dumped.
+     */
+    static class Entry {
+        final RequestDump request;
+        final ResponseDump response;
+
+        Entry(final RequestDump request, final ResponseDump response) {
+            this.request = request;
+            this.response = response;
+        }
+
+        void release() {
+            if (request != null) {
+                request.release();
+            }
+            if (response != null) {
+                response.release();
+            }
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> ring;
+    private final AtomicLong sequence = new AtomicLong();
+    private final DumpDispatcher.Emitter emitter;
+
+    /**
+     * @param capacity number of exchanges kept
+     * @param emitter  called for each dump when the recorder is dumped
+     */
+    FlightRecorder(final int capacity, final DumpDispatcher.Emitter emitter) {
+        this.ring = new AtomicReferenceArray<Entry>(capacity);
+        this.emitter = emitter;
+    }
+
+    void record(final RequestDump request, final ResponseDump response) {
+        if (request != null) {
+            request.truncateBody(request.getMaxBodySize());
+        }
+        if (response != null) {
+            // the response capture is already limited to the max dump size, but it may have spilled to a file
+            response.truncateBody(response.getMaxBodySize());
+        }
+        final int slot = (int) (sequence.getAndIncrement() % ring.length());
+        final Entry oldest = ring.getAndSet(slot, new Entry(request, response));
+        if (oldest != null) {
+            oldest.release();
+        }
+    }
+
+    /**
+     * Takes the exchanges out of the recorder, oldest first.
+     */
+    List<Entry> drain() {
+        final List<Entry> entries = new ArrayList<Entry>(ring.length());
+        final long next = sequence.get();
+        for (int i = 0; i < ring.length(); i++) {
+            final Entry entry = ring.getAndSet((int) ((next + i) % ring.length()), null);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public int getCapacity() {
+        return ring.length();
+    }
+
+    @Override
+    public int getRecordedExchanges() {
+        int count = 0;
+        for (int i = 0; i < ring.length(); i++) {
+            if (ring.get(i) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized int dump() {
+        final List<Entry> entries = drain();
+        for (Entry entry : entries) {
+            try {
+                if (entry.request != null) {
+                    emitter.emit(entry.request);
+                }
+                if (entry.response != null) {
+                    emitter.emit(entry.response);
+                }
+            } finally {
+                entry.release();
+            }
+        }
+        return entries.size();
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+/**
+ * JMX interface of the flight recorder keeping the last exchanges captured by the RequestLoggerFilter.
+ */
+public interface FlightRecorderMBean {
+
+    /**
+     * @return max number of exchanges kept
+     */
+    int getCapacity();
+
+    /**
+     * @return number of exchanges currently kept
+     */
+    int getRecordedExchanges();
+
+    /**
+     * Dumps the exchanges kept and empties the recorder.
+     *
+     * @return number of exchanges dumped
+     */
+    int dump();
+}
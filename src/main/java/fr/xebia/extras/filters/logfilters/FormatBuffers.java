@@ -0,0 +1,67 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+/**
+ * Builders reused by the dumps formatted on a thread, instead of allocating writers for each dump.
+ * <p/>
+ * Builders which grew beyond MAX_RETAINED_CAPACITY are dropped once used, so that a large body does not stay
+ * referenced by the thread.
+ */
+final class FormatBuffers {
+
+    static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final ThreadLocal<FormatBuffers> BUFFERS = new ThreadLocal<FormatBuffers>() {
+        @Override
+        protected FormatBuffers initialValue() {
+            return new FormatBuffers();
+        }
+    };
+
+    // the formatted dump
+    StringBuilder out = new StringBuilder(INITIAL_CAPACITY);
+    // scratch builder, used to decode a body before escaping it
+    StringBuilder body = new StringBuilder(INITIAL_CAPACITY);
+
+    private FormatBuffers() {
+    }
+
+    /**
+     * @return the empty builders of the current thread
+     */
+    static FormatBuffers get() {
+        final FormatBuffers buffers = BUFFERS.get();
+        buffers.out.setLength(0);
+        buffers.body.setLength(0);
+        return buffers;
+    }
+
+    /**
+     * @return the formatted dump, dropping the builders that grew too much
+     */
+    String release() {
+        final String dump = out.toString();
+        if (out.capacity() > MAX_RETAINED_CAPACITY) {
+            out = new StringBuilder(INITIAL_CAPACITY);
+        }
+        if (body.capacity() > MAX_RETAINED_CAPACITY) {
+            body = new StringBuilder(INITIAL_CAPACITY);
+        }
+        return dump;
+    }
+}
@@ -18,37 +18,78 @@ package fr.xebia.extras.filters.logfilters;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.ReadListener;
 import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * This class is used by the RequestLoggerFilter to dump request body into a byte buffer.
- * The byte buffer is then used to build a ServletInputStream for the HttpServletRequest it wraps.
+ * This class is used by the RequestLoggerFilter to dump request body.
+ * <p/>
+ * In buffered mode, the body is read into a capture when the wrapper is built. The capture is then used
+ * to build a ServletInputStream for the HttpServletRequest it wraps. Large bodies can be spilled to disk
+ * by the capture, they are then replayed from the memory mapped spill file.
+ * <p/>
+ * In streaming mode, nothing is read up front: the ServletInputStream given to the webapp copies the bytes
+ * as they are read, up to the max dump size. The listener is notified once the body has been fully read,
+ * and the bytes the webapp did not read are only counted in the dump.
+ * <p/>
+ * Both modes support the non blocking I/O of Servlet 3.1. In streaming mode, the bytes are copied as the webapp reads
+ * them from its ReadListener, and the body is consumed once the listener is told all data has been read. Buffered mode
+ * blocks: the constructor reads the whole body before the webapp can set its listener, which is then told the whole
+ * body is available from a thread started through the AsyncContext. Webapps reading large or slow bodies in non
+ * blocking mode should run with the filter in streaming mode.
  */
 class HttpServletRequestLoggingWrapper extends HttpServletRequestWrapper {
 
     private static final Logger logger = LoggerFactory.getLogger(HttpServletRequestLoggingWrapper.class);
-    private final ServletInputStream inputStream;
-    private final ByteArrayOutputStream buffer;
     private final int maxDumpSizeInKB;
+    private final boolean streaming;
+    private final BodyConsumedListener listener;
+    private final AtomicBoolean bodyConsumed = new AtomicBoolean(false);
+    private ServletInputStream inputStream;
+    private BufferedReader reader = null;
+    private final BodyCapture capture;
     private IOException caughtExceptionOnRead = null;
 
     public HttpServletRequestLoggingWrapper(final HttpServletRequest servletRequest, final int _maxDumpSizeInKB) {
+        this(servletRequest, _maxDumpSizeInKB, CaptureBufferPool.UNPOOLED);
+    }
+
+    /**
+     * Builds a wrapper in buffered mode.
+     *
+     * @param servletRequest   request to wrap
+     * @param _maxDumpSizeInKB max size of the dumped body
+     * @param pool             pool the capture borrows its segments from
+     */
+    public HttpServletRequestLoggingWrapper(final HttpServletRequest servletRequest, final int _maxDumpSizeInKB,
+                                            final CaptureBufferPool pool) {
         super(servletRequest);
 
         maxDumpSizeInKB = _maxDumpSizeInKB * 1000;
-        buffer = new ByteArrayOutputStream(RequestLoggerFilter.BUFFER_SIZE);
+        streaming = false;
+        listener = null;
+        // the whole body is kept to be replayed to the webapp, the dump is limited when it is built, and only the bytes
+        // dumped are kept in memory reserved from the capture budget
+        capture = new BodyCapture(BodyCapture.UNLIMITED, pool, maxDumpSizeInKB);
         InputStream stream = null;
         try {
             stream = super.getInputStream();
+            final byte[] bytes = new byte[RequestLoggerFilter.BUFFER_SIZE];
             int n;
-            while ((n = stream.read()) != -1) {
-                buffer.write(n);
+            while ((n = stream.read(bytes, 0, bytes.length)) != -1) {
+                capture.write(bytes, 0, n);
+            }
+            if (capture.getSpillFailure() != null) {
+                // the capture lost part of the body, it can not be replayed to the webapp
+                caughtExceptionOnRead = capture.getSpillFailure();
             }
         } catch (final IOException e) {
             logger.error("IO caught while dumping request", e);
@@ -65,27 +106,160 @@ class HttpServletRequestLoggingWrapper extends HttpServletRequestWrapper {
 
 
         inputStream = new ServletInputStream() {
-            final ByteArrayInputStream stream = new ByteArrayInputStream(buffer.toByteArray());
+            final InputStream stream = capture.newInputStream();
 
             @Override
             public int read() throws IOException {
                 return stream.read();
             }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                return stream.read(b, off, len);
+            }
+
+            @Override
+            public int available() throws IOException {
+                return stream.available();
+            }
+
+            @Override
+            public boolean isFinished() {
+                try {
+                    return stream.available() == 0;
+                } catch (IOException e) {
+                    return true;
+                }
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(final ReadListener listener) {
+                setReplayReadListener(listener);
+            }
         };
     }
 
+    /**
+     * Notifies the listener of the webapp that the whole body can be read. The body has already been read, so the
+     * listener is notified right away, from a container thread of the asynchronous cycle as the contract of
+     * ReadListener requires.
+     *
+     * @throws IllegalStateException if the request is not in asynchronous mode
+     */
+    private void setReplayReadListener(final ReadListener listener) {
+        AsyncSupport.start(getRequest(), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.onDataAvailable();
+                    listener.onAllDataRead();
+                } catch (IOException e) {
+                    listener.onError(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Builds a wrapper in streaming mode.
+     *
+     * @param servletRequest   request to wrap
+     * @param _maxDumpSizeInKB max size of the dumped body
+     * @param pool             pool the capture borrows its segments from
+     * @param listener         notified once the webapp has read the whole body, may be null
+     */
+    public HttpServletRequestLoggingWrapper(final HttpServletRequest servletRequest, final int _maxDumpSizeInKB,
+                                            final CaptureBufferPool pool, final BodyConsumedListener listener) {
+        this(servletRequest, _maxDumpSizeInKB, pool, listener, null);
+    }
+
+    /**
+     * Builds a wrapper in streaming mode, keeping the projection of a JSON body instead of its bytes.
+     *
+     * @param projection paths kept from a JSON body, null to keep the bytes
+     */
+    public HttpServletRequestLoggingWrapper(final HttpServletRequest servletRequest, final int _maxDumpSizeInKB,
+                                            final CaptureBufferPool pool, final BodyConsumedListener listener,
+                                            final JsonProjection projection) {
+        super(servletRequest);
+
+        maxDumpSizeInKB = _maxDumpSizeInKB * 1000;
+        streaming = true;
+        this.listener = listener;
+        capture = new BodyCapture(maxDumpSizeInKB, pool);
+        if (projection != null && servletRequest.getHeader("Content-Encoding") == null
+                && JsonProjection.isJson(servletRequest.getContentType())) {
+            capture.project(projection);
+        }
+    }
+
     String getBody() {
-        String body = null;
-        final byte[] bytes = buffer.toByteArray();
-        if (buffer.size() > maxDumpSizeInKB) {
-            body = new StringBuilder(new String(bytes, 0, maxDumpSizeInKB))
-                    .append("\n-- ").append(buffer.size() - maxDumpSizeInKB)
-                    .append(" more bytes skipped from dump by max dump size limit").toString();
-        } else {
-            body = new String(bytes, 0, bytes.length);
+        return getBody(capture, maxDumpSizeInKB, getUnreadBytes(), getBodyCharset());
+    }
+
+    static String getBody(final BodyCapture capture, final int maxDumpSize, final long unreadBytes, final Charset charset) {
+        final String dump = capture.toDumpString(maxDumpSize, charset);
+        if (unreadBytes <= 0) {
+            return dump;
+        }
+        final StringBuilder body = new StringBuilder(dump);
+        if (body.length() > 0) {
+            body.append('\n');
+        }
+        return body.append("-- ").append(unreadBytes).append(" more bytes not read by the application").toString();
+    }
+
+    BodyCapture getCapture() {
+        return capture;
+    }
+
+    /**
+     * @return the charset of the body given by the request, the platform default if none
+     */
+    Charset getBodyCharset() {
+        return BodyCapture.charsetOf(getCharacterEncoding());
+    }
+
+    int getMaxDumpSize() {
+        return maxDumpSizeInKB;
+    }
+
+    /**
+     * @return number of bytes of the body the webapp has not read, 0 in buffered mode or when the
+     *         content length is unknown
+     */
+    long getUnreadBytes() {
+        if (!streaming) {
+            return 0;
         }
+        final int contentLength = getContentLength();
+        return contentLength < 0 ? 0 : Math.max(0, contentLength - capture.getTotal());
+    }
+
+    /**
+     * Notifies the listener if it has not been notified yet. Called by the filter once the chain returned,
+     * whether the webapp has read the whole body or not.
+     */
+    void finish() {
+        fireBodyConsumed();
+    }
 
-        return body;
+    /**
+     * Gives the capture segments back to the pool, must be called once the chain returned and the request has been dumped.
+     */
+    void release() {
+        capture.release();
+    }
+
+    private void fireBodyConsumed() {
+        if (bodyConsumed.compareAndSet(false, true) && listener != null) {
+            listener.onBodyConsumed(this);
+        }
     }
 
     @Override
@@ -93,7 +267,116 @@ class HttpServletRequestLoggingWrapper extends HttpServletRequestWrapper {
         if (caughtExceptionOnRead != null) {
             throw new IOException("Error occured while reading request body", caughtExceptionOnRead);
         }
+        if (inputStream == null) {
+            inputStream = new TeeInputStream(super.getInputStream());
+        }
         return inputStream;
     }
 
+    @Override
+    public BufferedReader getReader() throws IOException {
+        if (reader == null) {
+            String encoding = getCharacterEncoding();
+            if (encoding == null || !Charset.isSupported(encoding)) {
+                encoding = HttpServletResponseLoggingWrapper.ISO_8859_1;
+            }
+            reader = new BufferedReader(new InputStreamReader(getInputStream(), encoding));
+        }
+        return reader;
+    }
+
+    /**
+     * Callback used in streaming mode to dump the request once its body has been read.
+     */
+    interface BodyConsumedListener {
+        void onBodyConsumed(HttpServletRequestLoggingWrapper request);
+    }
+
+    /**
+     * ServletInputStream copying the bytes read by the webapp into the capture.
+     */
+    private class TeeInputStream extends ServletInputStream {
+        private final ServletInputStream stream;
+
+        TeeInputStream(final ServletInputStream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int n = stream.read();
+            if (n == -1) {
+                fireBodyConsumed();
+            } else {
+                capture.write(n);
+                checkContentLengthReached();
+            }
+            return n;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int n = stream.read(b, off, len);
+            if (n == -1) {
+                fireBodyConsumed();
+            } else if (n > 0) {
+                capture.write(b, off, n);
+                checkContentLengthReached();
+            }
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return stream.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+
+        @Override
+        public boolean isFinished() {
+            final boolean finished = stream.isFinished();
+            if (finished) {
+                fireBodyConsumed();
+            }
+            return finished;
+        }
+
+        @Override
+        public boolean isReady() {
+            return stream.isReady();
+        }
+
+        @Override
+        public void setReadListener(final ReadListener listener) {
+            stream.setReadListener(new ReadListener() {
+                @Override
+                public void onDataAvailable() throws IOException {
+                    // the webapp reads through this stream, which copies the bytes
+                    listener.onDataAvailable();
+                }
+
+                @Override
+                public void onAllDataRead() throws IOException {
+                    fireBodyConsumed();
+                    listener.onAllDataRead();
+                }
+
+                @Override
+                public void onError(final Throwable t) {
+                    listener.onError(t);
+                }
+            });
+        }
+
+        private void checkContentLengthReached() {
+            final int contentLength = getContentLength();
+            if (contentLength >= 0 && capture.getTotal() >= contentLength) {
+                fireBodyConsumed();
+            }
+        }
+    }
 }
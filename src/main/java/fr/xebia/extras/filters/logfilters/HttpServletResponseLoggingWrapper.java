@@ -16,73 +16,195 @@
 package fr.xebia.extras.filters.logfilters;
 
 import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 /**
  * This class is used by the RequestLoggerFilter to wrap the HttpServletResponse.
  * It is in charge of intercepting headers added to the response and data written to the ServletOutputStream
- * or PrintWriter.
+ * or PrintWriter. Headers are kept in a ResponseHeaders table, including the int and date headers and the content
+ * type and length, and are only formatted when the response is dumped. Secret headers are masked or dropped by the
+ * redactor as they are set.
+ * <p/>
+ * The body and status may be written by other threads than the container one when the request is asynchronous, writes
+ * to the capture are synchronized on the stream so that the dump taken when the asynchronous cycle completes sees them.
  */
 class HttpServletResponseLoggingWrapper extends HttpServletResponseWrapper {
 
 
     public static final String ISO_8859_1 = "ISO-8859-1";
     private final int maxDumpSizeInB;
+    private final CaptureBufferPool pool;
+    private final Redactor redactor;
+    private final JsonProjection projection;
     protected PrintWriter writer = null;
+    private String writerEncoding = null;
     protected CacheResponseStream cache = null;
-    protected Map<String, List<String>> headers = new HashMap<String, List<String>>();
+    protected final ResponseHeaders headers = new ResponseHeaders();
     private final HttpServletResponse response;
-    String status = "200 OK";
+    volatile String status = "200 OK";
+    volatile int statusCode = SC_OK;
 
+    /**
+     * @return the headers set by the webapp, with their values formatted, in the order they were first set
+     */
     Map<String, List<String>> getHeaders() {
-        return headers;
+        return headers.toMap();
     }
 
     HttpServletResponseLoggingWrapper(final HttpServletResponse response, final int _maxDumpSizeInKB) {
+        this(response, _maxDumpSizeInKB, CaptureBufferPool.UNPOOLED);
+    }
+
+    HttpServletResponseLoggingWrapper(final HttpServletResponse response, final int _maxDumpSizeInKB, final CaptureBufferPool pool) {
+        this(response, _maxDumpSizeInKB, pool, null);
+    }
+
+    /**
+     * @param redactor masks or drops the secret headers as they are set, null to keep them all
+     */
+    HttpServletResponseLoggingWrapper(final HttpServletResponse response, final int _maxDumpSizeInKB,
+                                      final CaptureBufferPool pool, final Redactor redactor) {
+        this(response, _maxDumpSizeInKB, pool, redactor, null);
+    }
+
+    /**
+     * @param redactor   masks or drops the secret headers as they are set, null to keep them all
+     * @param projection paths kept from a JSON body instead of its bytes, null to keep the bytes
+     */
+    HttpServletResponseLoggingWrapper(final HttpServletResponse response, final int _maxDumpSizeInKB,
+                                      final CaptureBufferPool pool, final Redactor redactor,
+                                      final JsonProjection projection) {
         super(response);
         this.response = response;
+        this.pool = pool;
+        this.redactor = redactor;
+        this.projection = projection;
         maxDumpSizeInB = _maxDumpSizeInKB * 1000;
     }
 
     @Override
     public void setHeader(final String name, final String value) {
-        List<String> values = getHeaderValues(name);
-        values.clear(); // setHeader overwrite previous value
-        values.add(value);
+        record(name, value, true); // setHeader overwrite previous value
         super.setHeader(name, value);
     }
 
+    @Override
+    public void addHeader(final String name, final String value) {
+        record(name, value, false);
+        super.addHeader(name, value);
+    }
+
+    @Override
+    public void setIntHeader(final String name, final int value) {
+        recordInt(name, value);
+        super.setIntHeader(name, value);
+    }
+
+    @Override
+    public void addIntHeader(final String name, final int value) {
+        if (headerAction(name) == Redactor.KEEP) {
+            headers.addInt(name, value);
+        } else {
+            record(name, Redactor.MASK, false);
+        }
+        super.addIntHeader(name, value);
+    }
+
+    @Override
+    public void setDateHeader(final String name, final long date) {
+        if (headerAction(name) == Redactor.KEEP) {
+            headers.setDate(name, date);
+        } else {
+            record(name, Redactor.MASK, true);
+        }
+        super.setDateHeader(name, date);
+    }
+
+    @Override
+    public void addDateHeader(final String name, final long date) {
+        if (headerAction(name) == Redactor.KEEP) {
+            headers.addDate(name, date);
+        } else {
+            record(name, Redactor.MASK, false);
+        }
+        super.addDateHeader(name, date);
+    }
+
+    @Override
+    public void setContentType(final String type) {
+        record("Content-Type", type, true);
+        super.setContentType(type);
+    }
+
+    @Override
+    public void setCharacterEncoding(final String charset) {
+        super.setCharacterEncoding(charset);
+        recordEffectiveContentType();
+    }
+
+    @Override
+    public void setLocale(final Locale locale) {
+        super.setLocale(locale);
+        recordEffectiveContentType();
+    }
+
     /**
-     * Convenience method to get a header value list, initialize it and put it in the headers map
-     * if it does not exist
-     *
-     * @param name header name
-     * @return list containing values for this header
+     * Records the Content-Type as the container gives it once the charset or the locale changed it, the container
+     * ignoring the changes once the response is committed or its writer obtained.
      */
-    private List<String> getHeaderValues(String name) {
-        List<String> values = headers.get(name);
-        if (values == null) {
-            values = new ArrayList<String>();
-            headers.put(name, values);
+    private void recordEffectiveContentType() {
+        final String contentType = response.getContentType();
+        if (contentType != null) {
+            record("Content-Type", contentType, true);
         }
-        return values;
     }
 
     @Override
-    public void addHeader(final String name, final String value) {
-        List<String> values = getHeaderValues(name);
-        values.add(value);
-        super.addHeader(name, value);
+    public void setContentLength(final int length) {
+        recordInt("Content-Length", length);
+        super.setContentLength(length);
+    }
+
+    private void recordInt(final String name, final int value) {
+        if (headerAction(name) == Redactor.KEEP) {
+            headers.setInt(name, value);
+        } else {
+            record(name, Redactor.MASK, true);
+        }
+    }
+
+    /**
+     * Records a text value of a header, masked or not recorded at all if the header is a secret one.
+     *
+     * @param replace true if the value replaces the previous ones, a null value then removing them
+     */
+    private void record(final String name, final String value, final boolean replace) {
+        final int action = headerAction(name);
+        if (action == Redactor.DROP) {
+            return;
+        }
+        if (value == null) {
+            if (replace) {
+                headers.remove(name);
+            }
+        } else if (replace) {
+            headers.set(name, action == Redactor.REDACT ? Redactor.MASK : value);
+        } else {
+            headers.add(name, action == Redactor.REDACT ? Redactor.MASK : value);
+        }
+    }
+
+    private int headerAction(final String name) {
+        return redactor == null ? Redactor.KEEP : redactor.headerAction(name);
     }
 
     @Override
@@ -122,6 +244,7 @@ class HttpServletResponseLoggingWrapper extends HttpServletResponseWrapper {
         } else {
             encoding = ISO_8859_1;
         }
+        writerEncoding = encoding;
         writer = new PrintWriter(new OutputStreamWriter(cache, encoding));
         return writer;
     }
@@ -129,68 +252,132 @@ class HttpServletResponseLoggingWrapper extends HttpServletResponseWrapper {
     public String getContentAsInputString() {
         String body = null;
         if (cache != null) {
-            final byte[] bytes = cache.toByteArray();
-            if (bytes.length > maxDumpSizeInB) {
-                body = new StringBuilder(new String(bytes, 0, maxDumpSizeInB))
-                        .append("\n-- ").append(bytes.length - maxDumpSizeInB)
-                        .append(" more bytes skipped from dump by max dump size limit").toString();
-            } else {
-                body = new String(bytes, 0, bytes.length);
-            }
+            body = getCapture().toDumpString(BodyCapture.UNLIMITED, getBodyCharset());
         } else {
             body = "";
         }
         return body;
     }
 
+    /**
+     * @return bytes written to the response, limited to the max dump size
+     */
     public byte[] getContentAsBytes() {
-        return cache.toByteArray();
+        return cache.capture.toByteArray();
+    }
+
+    /**
+     * @return number of bytes written to the response, including the ones beyond the max dump size
+     */
+    public long getContentSize() {
+        return cache == null ? 0 : cache.capture.getTotal();
+    }
+
+    /**
+     * @return the capture of the body, with the content encoding of the response, null if the webapp did not ask
+     *         for the stream or writer
+     */
+    BodyCapture getCapture() {
+        if (cache == null) {
+            return null;
+        }
+        synchronized (cache) {
+            cache.capture.setContentEncoding(BodyCapture.contentEncodingOf(getContentEncoding()));
+            return cache.capture;
+        }
+    }
+
+    /**
+     * @return the Content-Encoding header set by the webapp, null if none
+     */
+    String getContentEncoding() {
+        return headers.getLast("Content-Encoding");
+    }
+
+    /**
+     * @return the charset the body was written with: the one of the writer if the webapp used it, else the charset
+     *         of the content type, else the platform default
+     */
+    Charset getBodyCharset() {
+        if (writerEncoding != null) {
+            return BodyCapture.charsetOf(writerEncoding);
+        }
+        return BodyCapture.charsetOf(BodyCapture.charsetParameter(getContentType()));
+    }
+
+    /**
+     * Gives the capture segments back to the pool, must be called once the response has been dumped.
+     */
+    void release() {
+        if (cache != null) {
+            cache.capture.release();
+        }
     }
 
     public String getStatusCode() {
         return status;
     }
 
+    /**
+     * @return the numeric status code set by the webapp, 200 if none was set
+     */
+    public int getStatus() {
+        return statusCode;
+    }
+
     @Override
     public void sendError(final int sc, final String msg) throws IOException {
         super.sendError(sc, msg);
         status = sc + " " + msg;
+        statusCode = sc;
     }
 
     @Override
     public void sendError(final int sc) throws IOException {
         super.sendError(sc);
         status = sc + " Error";
+        statusCode = sc;
     }
 
     @Override
     public void sendRedirect(final String location) throws IOException {
         super.sendRedirect(location);
-        List<String> values = getHeaderValues("Location");
-        values.add(location);
+        record("Location", location, false);
         status = "302 Redirect";
+        statusCode = SC_FOUND;
     }
 
     @Override
     public void setStatus(final int sc) {
         super.setStatus(sc);
         status = sc + "";
+        statusCode = sc;
     }
 
     @Override
     public void setStatus(final int sc, final String sm) {
         super.setStatus(sc, sm);
         status = sc + " " + sm;
+        statusCode = sc;
     }
 
 
+    /**
+     * ServletOutputStream writing through to the response stream while keeping a copy of the bytes
+     * up to the max dump size. Bytes beyond the limit are only counted. A JSON body, not encoded by the webapp, is
+     * projected if the wrapper has a projection. With the non blocking I/O of Servlet 3.1,
+     * the WriteListener of the webapp is given to the response stream, the bytes being copied as they are written.
+     */
     private class CacheResponseStream extends ServletOutputStream {
         protected final ServletOutputStream outputStream;
-        protected final ByteArrayOutputStream cache;
+        protected final BodyCapture capture;
 
         public CacheResponseStream(final ServletOutputStream outputStream) {
             this.outputStream = outputStream;
-            cache = new ByteArrayOutputStream(RequestLoggerFilter.BUFFER_SIZE);
+            capture = new BodyCapture(maxDumpSizeInB, pool);
+            if (projection != null && getContentEncoding() == null && JsonProjection.isJson(response.getContentType())) {
+                capture.project(projection);
+            }
         }
 
         @Override
@@ -203,15 +390,30 @@ class HttpServletResponseLoggingWrapper extends HttpServletResponseWrapper {
             outputStream.flush();
         }
 
+        @Override
+        public boolean isReady() {
+            return outputStream.isReady();
+        }
+
+        @Override
+        public void setWriteListener(final WriteListener listener) {
+            outputStream.setWriteListener(listener);
+        }
+
         @Override
         public void write(final int i) throws IOException {
             outputStream.write(i);
-            cache.write((byte) i);
+            synchronized (this) {
+                capture.write(i);
+            }
         }
 
-
-        public byte[] toByteArray() {
-            return cache.toByteArray();
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            outputStream.write(b, off, len);
+            synchronized (this) {
+                capture.write(b, off, len);
+            }
         }
     }
 }
@@ -0,0 +1,389 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sink appending dumps as binary records to journal files, to be rendered later by JournalReader.
+ * <p/>
+ * Each journal file is memory mapped with a fixed size and starts with MAGIC and VERSION. Records are written
+ * straight into the mapping: an int length followed by the record, bodies being copied raw from the captures without
+ * being decoded. A zero length ends the journal. When a record does not fit in the current file, a new file is started
+ * and the oldest files are deleted so that at most maxFiles files are kept. If the new file can not be started, dumps
+ * are dropped and counted, and starting it is retried on each write.
+ * <p/>
+ * Once a journal file is complete, its index is written next to it, see JournalIndexWriter and JournalIndex.
+ * <p/>
+ * Record layout, all numbers big endian and strings as an int length (-1 for null) followed by UTF-8 bytes:
+ * <pre>
+ *   byte type (REQUEST or RESPONSE), int id, long timestamp
+ *   request:  string user, string method, string url, string protocol, int maxDumpSize, long unreadBytes
+ *   response: string requestURI, string status, int statusCode, long elapsedNanos, string failure
+ *   int header count (-1 if headers are not dumped), then for each header: string name, int count, strings values
+ *   string charset, byte headersOnly, long body total (-1 if no body), byte content encoding, byte body flags,
+ *   long projected bytes, int body length, int compressed body length (-1 if the body is not compressed), body bytes,
+ *   deflated if the body is compressed
+ * </pre>
+ */
+class JournalDumpSink implements DumpSink {
+
+    private static final Logger logger = LoggerFactory.getLogger(JournalDumpSink.class);
+
+    static final int MAGIC = 0x584c464a;
+    static final int VERSION = 5;
+    static final int FILE_HEADER_SIZE = 8;
+    static final byte REQUEST = 1;
+    static final byte RESPONSE = 2;
+    static final String FILE_PREFIX = "dumps-";
+    static final String FILE_SUFFIX = ".journal";
+    static final String INDEX_SUFFIX = ".index";
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Pattern FILE_NAME = Pattern.compile(Pattern.quote(FILE_PREFIX) + "(\\d+)" + Pattern.quote(FILE_SUFFIX));
+
+    private final File directory;
+    private final int fileSize;
+    private final int maxFiles;
+    private final AtomicLong droppedDumps = new AtomicLong();
+    private long sequence;
+    private File file = null;
+    private FileChannel channel = null;
+    private MappedByteBuffer buffer = null;
+    private boolean closed = false;
+    // dumps dropped since the last file could not be started
+    private long droppedSinceFailure = 0;
+    private final JournalIndexWriter index = new JournalIndexWriter();
+
+    /**
+     * @param directory directory of the journal files
+     * @param fileSize  size in bytes of each journal file
+     * @param maxFiles  number of journal files kept
+     */
+    JournalDumpSink(final File directory, final int fileSize, final int maxFiles) throws IOException {
+        this.directory = directory;
+        this.fileSize = fileSize;
+        this.maxFiles = maxFiles;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create journal directory " + directory);
+        }
+        sequence = lastSequence(directory);
+        rotate();
+    }
+
+    /**
+     * @return sequence number of the last journal file in the directory, 0 if there is none
+     */
+    static long lastSequence(final File directory) {
+        long last = 0;
+        final String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                final long sequence = sequenceOf(name);
+                if (sequence > last) {
+                    last = sequence;
+                }
+            }
+        }
+        return last;
+    }
+
+    /**
+     * @return sequence number of the journal file, -1 if the name is not the one of a journal file
+     */
+    static long sequenceOf(final String name) {
+        final Matcher matcher = FILE_NAME.matcher(name);
+        return matcher.matches() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+
+    static File journalFile(final File directory, final long sequence) {
+        return new File(directory, FILE_PREFIX + sequence + FILE_SUFFIX);
+    }
+
+    /**
+     * @return the index file of the journal file
+     */
+    static File indexFile(final File journalFile) {
+        final String name = journalFile.getName();
+        final String baseName = name.endsWith(FILE_SUFFIX) ? name.substring(0, name.length() - FILE_SUFFIX.length()) : name;
+        return new File(journalFile.getParentFile(), baseName + INDEX_SUFFIX);
+    }
+
+    @Override
+    public synchronized void write(final Dump dump) {
+        if (closed || (buffer == null && !retryRotate())) {
+            drop();
+            return;
+        }
+        final int start = buffer.position();
+        try {
+            writeRecord(dump);
+            index.add(dump, start);
+            return;
+        } catch (BufferOverflowException e) {
+            // the previous record may have left less than the length of a record at the end of the file
+            if (start <= buffer.limit() - 4) {
+                buffer.putInt(start, 0);
+            }
+            buffer.position(start);
+        }
+        if (start > FILE_HEADER_SIZE) {
+            try {
+                rotate();
+                writeRecord(dump);
+                index.add(dump, FILE_HEADER_SIZE);
+                return;
+            } catch (IOException e) {
+                rotateFailed(e);
+                drop();
+                return;
+            } catch (BufferOverflowException e) {
+                if (FILE_HEADER_SIZE <= buffer.limit() - 4) {
+                    buffer.putInt(FILE_HEADER_SIZE, 0);
+                }
+                buffer.position(FILE_HEADER_SIZE);
+            }
+        }
+        logger.warn("Dump {} dropped, larger than the journal file size", dump.id);
+        droppedDumps.incrementAndGet();
+    }
+
+    private void drop() {
+        droppedDumps.incrementAndGet();
+        droppedSinceFailure++;
+    }
+
+    /**
+     * Starts the next journal file again after it failed to start, so that the journal resumes once the disk or the
+     * address space is available.
+     *
+     * @return true if the journal can be written again
+     */
+    private boolean retryRotate() {
+        try {
+            rotate();
+        } catch (IOException e) {
+            return false;
+        }
+        logger.warn("Journal resumed in {}, {} dumps were dropped", file, droppedSinceFailure);
+        droppedSinceFailure = 0;
+        return true;
+    }
+
+    private void rotateFailed(final IOException e) {
+        logger.error("IO caught while starting journal file {}, dumps are dropped until a file can be started",
+                journalFile(directory, sequence + 1), e);
+        droppedSinceFailure = 0;
+    }
+
+    private void writeRecord(final Dump dump) {
+        final int start = buffer.position();
+        buffer.putInt(0);
+        if (dump instanceof RequestDump) {
+            final RequestDump request = (RequestDump) dump;
+            writeHeader(REQUEST, dump);
+            putString(request.remoteUser);
+            putString(request.method);
+            putString(request.requestURL);
+            putString(request.protocol);
+            buffer.putInt(request.maxDumpSize);
+            buffer.putLong(request.unreadBytes);
+            writeContent(dump, request.charset, request.maxDumpSize);
+        } else {
+            final ResponseDump response = (ResponseDump) dump;
+            writeHeader(RESPONSE, dump);
+            putString(response.requestURI);
+            putString(response.status);
+            buffer.putInt(response.statusCode);
+            buffer.putLong(response.elapsedNanos);
+            putString(response.failure);
+            writeContent(dump, response.charset, BodyCapture.UNLIMITED);
+        }
+        final int end = buffer.position();
+        // the length of the next record, 0 until it is written
+        if (buffer.remaining() >= 4) {
+            buffer.putInt(end, 0);
+        }
+        buffer.putInt(start, end - start - 4);
+    }
+
+    private void writeHeader(final byte type, final Dump dump) {
+        buffer.put(type);
+        buffer.putInt(dump.id);
+        buffer.putLong(dump.timestamp);
+    }
+
+    private void writeContent(final Dump dump, final Charset charset, final int maxDumpSize) {
+        final Map<String, List<String>> headers = dump.headers;
+        if (headers == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(headers.size());
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                putString(header.getKey());
+                buffer.putInt(header.getValue().size());
+                for (String value : header.getValue()) {
+                    putString(value);
+                }
+            }
+        }
+        putString(charset == null ? null : charset.name());
+        buffer.put((byte) (dump.headersOnly ? 1 : 0));
+        if (dump.body == null) {
+            buffer.putLong(-1);
+        } else {
+            buffer.putLong(dump.body.getTotal());
+            buffer.put(dump.body.getContentEncoding());
+            buffer.put(dump.body.getFlags());
+            buffer.putLong(dump.body.getProjectedBytes());
+            if (dump.body.isCompressed()) {
+                // compressed bodies were already limited to the max dump size when compressed
+                buffer.putInt(dump.body.size());
+                buffer.putInt(dump.body.getCompressedSize());
+                dump.body.copyCompressedTo(buffer);
+            } else {
+                final int lengthPosition = buffer.position();
+                buffer.putInt(0);
+                buffer.putInt(-1);
+                buffer.putInt(lengthPosition, dump.body.copyTo(buffer, maxDumpSize));
+            }
+        }
+    }
+
+    private void putString(final String value) {
+        if (value == null) {
+            buffer.putInt(-1);
+        } else {
+            final byte[] bytes = value.getBytes(UTF_8);
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    /**
+     * Completes the current file, if any, and starts the next one. If the next file can not be started, it is deleted
+     * and nothing is written until a later call succeeds.
+     */
+    private void rotate() throws IOException {
+        closeFile();
+        writeIndex();
+        file = null;
+        final File next = journalFile(directory, sequence + 1);
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(next, "rw");
+        try {
+            channel = randomAccessFile.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        } catch (IOException e) {
+            randomAccessFile.close();
+            channel = null;
+            if (!next.delete()) {
+                logger.warn("Could not delete journal file {}", next);
+            }
+            throw e;
+        }
+        sequence++;
+        file = next;
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        deleteOldFiles();
+    }
+
+    private void deleteOldFiles() {
+        final String[] names = directory.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            final long fileSequence = sequenceOf(name);
+            if (fileSequence > 0 && fileSequence <= sequence - maxFiles) {
+                final File oldFile = new File(directory, name);
+                if (!oldFile.delete()) {
+                    logger.warn("Could not delete old journal file {}", name);
+                }
+                final File oldIndex = indexFile(oldFile);
+                if (oldIndex.exists() && !oldIndex.delete()) {
+                    logger.warn("Could not delete old journal index {}", oldIndex.getName());
+                }
+            }
+        }
+    }
+
+    private void closeFile() {
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.error("IO caught while closing journal file {}", file, e);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Writes the index of the records appended to the current journal file, and starts the index of the next one.
+     */
+    private void writeIndex() {
+        if (file == null) {
+            return;
+        }
+        try {
+            index.write(indexFile(file));
+        } catch (IOException e) {
+            logger.error("IO caught while writing index of journal file {}, it will be rebuilt when searched", file, e);
+        }
+        index.reset();
+    }
+
+    /**
+     * @return the journal file records are currently appended to
+     */
+    synchronized File getFile() {
+        return file;
+    }
+
+    long getDroppedDumps() {
+        return droppedDumps.get();
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (buffer == null) {
+            // already closed, or the index of the last file was written when it failed to rotate
+            return;
+        }
+        closeFile();
+        writeIndex();
+    }
+}
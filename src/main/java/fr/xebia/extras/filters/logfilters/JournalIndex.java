@@ -0,0 +1,337 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Index of the records of a journal file, written by the journal dump sink once the file is complete and rebuilt by
+ * scanning the journal for the file being written. Searches only read the records they return:
+ * <pre>
+ *   java -cp xebia-logfilter-extras.jar fr.xebia.extras.filters.logfilters.JournalIndex [-json] [id=42]
+ *       [from=2009-03-01T10:00:00] [to=2009-03-01T11:00:00] [route=/orders] [status=5xx] file-or-directory...
+ * </pre>
+ * A search by id is a binary search on the entries sorted by id, other searches a binary search of the start of the
+ * time range on the entries sorted by timestamp. Files whose range of ids or timestamps can not match are skipped
+ * without reading their records. A search by status returns the matching responses along with their requests.
+ */
+public class JournalIndex {
+
+    private final long minTimestamp;
+    private final long maxTimestamp;
+    private final int minId;
+    private final int maxId;
+    // entries sorted by timestamp
+    private final long[] timestamps;
+    private final int[] ids;
+    private final int[] offsets;
+    private final int[] statuses;
+    private final int[] routes;
+    // positions of the entries sorted by id
+    private final int[] byId;
+    private final String[] routeTable;
+
+    private JournalIndex(final ByteBuffer index) throws IOException {
+        if (index.remaining() < JournalIndexWriter.HEADER_SIZE || index.getInt() != JournalIndexWriter.MAGIC) {
+            throw new IOException("Not a journal index");
+        }
+        final int version = index.getInt();
+        if (version != JournalIndexWriter.VERSION) {
+            throw new IOException("Unsupported journal index version " + version);
+        }
+        minTimestamp = index.getLong();
+        maxTimestamp = index.getLong();
+        minId = index.getInt();
+        maxId = index.getInt();
+        final int count = index.getInt();
+        timestamps = new long[count];
+        ids = new int[count];
+        offsets = new int[count];
+        statuses = new int[count];
+        routes = new int[count];
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = index.getLong();
+            ids[i] = index.getInt();
+            offsets[i] = index.getInt();
+            statuses[i] = index.getInt();
+            routes[i] = index.getInt();
+        }
+        byId = new int[count];
+        for (int i = 0; i < count; i++) {
+            byId[i] = index.getInt();
+        }
+        routeTable = new String[index.getInt()];
+        for (int i = 0; i < routeTable.length; i++) {
+            final byte[] bytes = new byte[index.getInt()];
+            index.get(bytes);
+            routeTable[i] = new String(bytes, JournalDumpSink.UTF_8);
+        }
+    }
+
+    public static void main(final String[] args) throws IOException {
+        DumpFormatter formatter = new TextDumpFormatter();
+        final JournalQuery query = new JournalQuery();
+        final List<File> files = new ArrayList<File>();
+        for (String arg : args) {
+            if ("-json".equals(arg)) {
+                formatter = new JsonDumpFormatter();
+            } else if (!query.set(arg)) {
+                files.add(new File(arg));
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: JournalIndex [-json] [id=..] [from=..] [to=..] [route=..] [status=..] file-or-directory...");
+            System.exit(1);
+        }
+        final JournalReader.RecordHandler printer = JournalReader.printer(System.out, formatter);
+        for (File file : files) {
+            search(file, query, printer);
+        }
+        System.out.flush();
+    }
+
+    /**
+     * Gives the handler the records of the journal file, or of the journal files of the directory, matching the query,
+     * in the order of their timestamps within each file. A search by status gives the records of the exchanges of the
+     * matching responses, their requests being found in earlier files when the journal rotated in between.
+     */
+    static void search(final File file, final JournalQuery query, final JournalReader.RecordHandler handler) throws IOException {
+        final List<File> journalFiles = JournalReader.journalFiles(file);
+        final List<JournalIndex> indexes = new ArrayList<JournalIndex>(journalFiles.size());
+        for (File journalFile : journalFiles) {
+            indexes.add(open(journalFile));
+        }
+        final int[] exchanges = query.statuses == null ? null : exchangeIds(indexes, query);
+        for (int i = 0; i < journalFiles.size(); i++) {
+            final JournalIndex index = indexes.get(i);
+            final int[] recordOffsets;
+            if (exchanges != null) {
+                recordOffsets = index.searchExchanges(exchanges);
+            } else if (index.mayMatch(query)) {
+                recordOffsets = index.search(query);
+            } else {
+                continue;
+            }
+            if (recordOffsets.length == 0) {
+                continue;
+            }
+            final ByteBuffer journal = JournalReader.map(journalFiles.get(i));
+            for (int offset : recordOffsets) {
+                journal.position(offset);
+                final Dump dump = JournalReader.readRecord(journal);
+                if (dump != null) {
+                    try {
+                        handler.onRecord(dump, offset);
+                    } finally {
+                        dump.release();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the sorted ids of the entries of the indexes matching the query
+     */
+    private static int[] exchangeIds(final List<JournalIndex> indexes, final JournalQuery query) {
+        int[] exchanges = new int[0];
+        for (JournalIndex index : indexes) {
+            if (!index.mayMatch(query)) {
+                continue;
+            }
+            final int[] entries = index.matchingEntries(query);
+            final int count = exchanges.length;
+            exchanges = Arrays.copyOf(exchanges, count + entries.length);
+            for (int i = 0; i < entries.length; i++) {
+                exchanges[count + i] = index.ids[entries[i]];
+            }
+        }
+        Arrays.sort(exchanges);
+        return exchanges;
+    }
+
+    /**
+     * @return the index written next to the journal file, or the index built by scanning the journal if it has none
+     */
+    static JournalIndex open(final File journalFile) throws IOException {
+        final File indexFile = JournalDumpSink.indexFile(journalFile);
+        if (!indexFile.isFile()) {
+            return build(journalFile);
+        }
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(indexFile, "r");
+        try {
+            return new JournalIndex(randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length()));
+        } catch (IOException e) {
+            throw new IOException(e.getMessage() + ": " + indexFile);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    static JournalIndex build(final File journalFile) throws IOException {
+        final JournalIndexWriter writer = new JournalIndexWriter();
+        JournalReader.read(journalFile, new JournalReader.RecordHandler() {
+            @Override
+            public void onRecord(final Dump dump, final long offset) {
+                writer.add(dump, (int) offset);
+            }
+        });
+        return new JournalIndex(writer.toByteBuffer());
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * @return false if no record of the journal can match the query
+     */
+    boolean mayMatch(final JournalQuery query) {
+        return ids.length > 0
+                && (query.id == null || (query.id >= minId && query.id <= maxId))
+                && query.from <= maxTimestamp && query.to >= minTimestamp;
+    }
+
+    /**
+     * @return offsets in the journal of the records matching the query, in the order of their timestamps
+     */
+    int[] search(final JournalQuery query) {
+        final int[] entries = matchingEntries(query);
+        // the entries selected by id are sorted by timestamp
+        Arrays.sort(entries);
+        final int[] result = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            result[i] = offsets[entries[i]];
+        }
+        return result;
+    }
+
+    /**
+     * @param exchanges sorted ids of the exchanges
+     * @return offsets in the journal of the records of the exchanges, in the order of their timestamps
+     */
+    int[] searchExchanges(final int[] exchanges) {
+        if (ids.length == 0 || exchanges.length == 0 || exchanges[0] > maxId || exchanges[exchanges.length - 1] < minId) {
+            return new int[0];
+        }
+        int[] result = new int[16];
+        int count = 0;
+        for (int entry = 0; entry < ids.length; entry++) {
+            if (Arrays.binarySearch(exchanges, ids[entry]) >= 0) {
+                if (count == result.length) {
+                    result = Arrays.copyOf(result, count * 2);
+                }
+                result[count++] = offsets[entry];
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * @return positions of the entries matching the query, found by a walk on the ids or on the time range
+     */
+    private int[] matchingEntries(final JournalQuery query) {
+        final boolean[] routeMatches = routeMatches(query.route);
+        int[] entries = new int[16];
+        int count = 0;
+        int from;
+        int to;
+        if (query.id != null) {
+            from = firstById(query.id);
+            to = from;
+            while (to < byId.length && ids[byId[to]] == query.id) {
+                to++;
+            }
+        } else {
+            from = firstByTimestamp(query.from);
+            to = ids.length;
+        }
+        for (int i = from; i < to; i++) {
+            final int entry = query.id != null ? byId[i] : i;
+            if (query.id == null && timestamps[entry] > query.to) {
+                break;
+            }
+            if (matches(entry, query, routeMatches)) {
+                if (count == entries.length) {
+                    entries = Arrays.copyOf(entries, count * 2);
+                }
+                entries[count++] = entry;
+            }
+        }
+        return Arrays.copyOf(entries, count);
+    }
+
+    private boolean matches(final int entry, final JournalQuery query, final boolean[] routeMatches) {
+        return timestamps[entry] >= query.from && timestamps[entry] <= query.to
+                && (routeMatches == null || (routes[entry] >= 0 && routeMatches[routes[entry]]))
+                && (query.statuses == null || (statuses[entry] > 0 && query.statuses.matches(statuses[entry], 0, null)));
+    }
+
+    /**
+     * @return for each route of the table, whether it starts with the prefix, null if the prefix is null
+     */
+    private boolean[] routeMatches(final String prefix) {
+        if (prefix == null) {
+            return null;
+        }
+        final boolean[] routeMatches = new boolean[routeTable.length];
+        for (int i = 0; i < routeTable.length; i++) {
+            routeMatches[i] = routeTable[i].startsWith(prefix);
+        }
+        return routeMatches;
+    }
+
+    /**
+     * @return position in byId of the first entry with the id, or of the next greater id
+     */
+    private int firstById(final int id) {
+        int low = 0;
+        int high = byId.length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (ids[byId[middle]] < id) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return position of the first entry with a timestamp greater or equal to the given one
+     */
+    private int firstByTimestamp(final long timestamp) {
+        int low = 0;
+        int high = timestamps.length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (timestamps[middle] < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
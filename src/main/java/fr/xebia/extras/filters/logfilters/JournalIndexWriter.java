@@ -0,0 +1,223 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the index entries of the records appended to a journal file, and writes them as the index of the file.
+ * <p/>
+ * Index layout, all numbers big endian:
+ * <pre>
+ *   int MAGIC, int VERSION, long min timestamp, long max timestamp, int min id, int max id, int entry count
+ *   entries sorted by timestamp: long timestamp, int id, int offset, int status (0 for requests), int route
+ *   int positions of the entries sorted by id
+ *   int route count, then the routes as an int length followed by UTF-8 bytes
+ * </pre>
+ * Routes are the exact paths of the requests, without query string, and responses are indexed with the path of their
+ * request, so that a route query finds both sides of an exchange. Paths are not turned into templates: a query on a
+ * prefix like /orders finds all the orders, one on /orders/42 the exchanges of that order.
+ */
+class JournalIndexWriter {
+
+    static final int MAGIC = 0x584c4649;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 40;
+    static final int ENTRY_SIZE = 24;
+
+    private long[] timestamps = new long[256];
+    private int[] ids = new int[256];
+    private int[] offsets = new int[256];
+    private int[] statuses = new int[256];
+    private int[] routeIndexes = new int[256];
+    private int count = 0;
+    private final Map<String, Integer> routeIndexByRoute = new HashMap<String, Integer>();
+    private final List<String> routes = new ArrayList<String>();
+
+    void add(final Dump dump, final int offset) {
+        if (count == ids.length) {
+            grow();
+        }
+        final String route;
+        final int status;
+        if (dump instanceof RequestDump) {
+            route = route(((RequestDump) dump).requestURL);
+            status = 0;
+        } else {
+            route = ((ResponseDump) dump).requestURI;
+            status = ((ResponseDump) dump).statusCode;
+        }
+        timestamps[count] = dump.timestamp;
+        ids[count] = dump.id;
+        offsets[count] = offset;
+        statuses[count] = status;
+        routeIndexes[count] = routeIndex(route);
+        count++;
+    }
+
+    /**
+     * @return the path of the URL, without scheme and authority
+     */
+    static String route(final String url) {
+        if (url == null) {
+            return null;
+        }
+        final int scheme = url.indexOf("://");
+        if (scheme < 0) {
+            return url;
+        }
+        final int path = url.indexOf('/', scheme + 3);
+        return path < 0 ? "/" : url.substring(path);
+    }
+
+    private int routeIndex(final String route) {
+        if (route == null) {
+            return -1;
+        }
+        Integer index = routeIndexByRoute.get(route);
+        if (index == null) {
+            index = routes.size();
+            routes.add(route);
+            routeIndexByRoute.put(route, index);
+        }
+        return index;
+    }
+
+    private void grow() {
+        final int length = ids.length << 1;
+        timestamps = Arrays.copyOf(timestamps, length);
+        ids = Arrays.copyOf(ids, length);
+        offsets = Arrays.copyOf(offsets, length);
+        statuses = Arrays.copyOf(statuses, length);
+        routeIndexes = Arrays.copyOf(routeIndexes, length);
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * Forgets the entries, for the next journal file.
+     */
+    void reset() {
+        count = 0;
+        routes.clear();
+        routeIndexByRoute.clear();
+    }
+
+    /**
+     * @return the index of the entries added since the last reset
+     */
+    ByteBuffer toByteBuffer() {
+        final long[] timestampKeys = new long[count];
+        final long[] idKeys = new long[count];
+        long minTimestamp = Long.MAX_VALUE;
+        long maxTimestamp = Long.MIN_VALUE;
+        int minId = Integer.MAX_VALUE;
+        int maxId = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            timestampKeys[i] = timestamps[i];
+            idKeys[i] = ids[i];
+            minTimestamp = Math.min(minTimestamp, timestamps[i]);
+            maxTimestamp = Math.max(maxTimestamp, timestamps[i]);
+            minId = Math.min(minId, ids[i]);
+            maxId = Math.max(maxId, ids[i]);
+        }
+        final int[] byTimestamp = sortedPositions(timestampKeys);
+        final byte[][] routeBytes = new byte[routes.size()][];
+        int routesSize = 4;
+        for (int i = 0; i < routeBytes.length; i++) {
+            routeBytes[i] = routes.get(i).getBytes(JournalDumpSink.UTF_8);
+            routesSize += 4 + routeBytes[i].length;
+        }
+
+        final ByteBuffer index = ByteBuffer.allocate(HEADER_SIZE + count * (ENTRY_SIZE + 4) + routesSize);
+        index.putInt(MAGIC).putInt(VERSION);
+        index.putLong(minTimestamp).putLong(maxTimestamp).putInt(minId).putInt(maxId);
+        index.putInt(count);
+        // position of each entry once sorted by timestamp, to write the id order in terms of sorted entries
+        final int[] sortedPosition = new int[count];
+        for (int i = 0; i < count; i++) {
+            final int entry = byTimestamp[i];
+            sortedPosition[entry] = i;
+            index.putLong(timestamps[entry]).putInt(ids[entry]).putInt(offsets[entry])
+                    .putInt(statuses[entry]).putInt(routeIndexes[entry]);
+        }
+        for (int entry : sortedPositions(idKeys)) {
+            index.putInt(sortedPosition[entry]);
+        }
+        index.putInt(routeBytes.length);
+        for (byte[] route : routeBytes) {
+            index.putInt(route.length).put(route);
+        }
+        index.flip();
+        return index;
+    }
+
+    void write(final File file) throws IOException {
+        final ByteBuffer index = toByteBuffer();
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            final FileChannel channel = out.getChannel();
+            while (index.hasRemaining()) {
+                channel.write(index);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Sorts the positions of the keys with a stable merge sort, entries being added in journal order.
+     *
+     * @return positions of the keys in increasing order of keys
+     */
+    static int[] sortedPositions(final long[] keys) {
+        int[] positions = new int[keys.length];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = i;
+        }
+        int[] buffer = new int[keys.length];
+        for (int width = 1; width < positions.length; width <<= 1) {
+            for (int low = 0; low < positions.length; low += width << 1) {
+                final int middle = Math.min(low + width, positions.length);
+                final int high = Math.min(low + (width << 1), positions.length);
+                int left = low;
+                int right = middle;
+                for (int i = low; i < high; i++) {
+                    if (left < middle && (right >= high || keys[positions[left]] <= keys[positions[right]])) {
+                        buffer[i] = positions[left++];
+                    } else {
+                        buffer[i] = positions[right++];
+                    }
+                }
+            }
+            final int[] swap = positions;
+            positions = buffer;
+            buffer = swap;
+        }
+        return positions;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+/**
+ * Criteria of a search in the journal indexes. Records match when they match all the criteria given.
+ */
+class JournalQuery {
+
+    static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
+
+    // null when any id matches
+    Integer id = null;
+    long from = Long.MIN_VALUE;
+    long to = Long.MAX_VALUE;
+    // prefix of the path of the request URL, null when any route matches
+    String route = null;
+    // statuses of the responses, null when any status matches
+    DumpCondition statuses = null;
+
+    /**
+     * Sets the criterion given as name=value: id, from, to, route or status. Dates are given as milliseconds since
+     * the epoch or as yyyy-MM-dd'T'HH:mm:ss in the local time zone, statuses as for the dumpOnStatus parameter.
+     *
+     * @return false if the argument is not a criterion
+     * @throws IllegalArgumentException if the value of the criterion is malformed
+     */
+    boolean set(final String criterion) {
+        final int equals = criterion.indexOf('=');
+        if (equals < 0) {
+            return false;
+        }
+        final String name = criterion.substring(0, equals);
+        final String value = criterion.substring(equals + 1);
+        if ("id".equals(name)) {
+            id = Integer.parseInt(value);
+        } else if ("from".equals(name)) {
+            from = parseDate(value);
+        } else if ("to".equals(name)) {
+            to = parseDate(value);
+        } else if ("route".equals(name)) {
+            route = value;
+        } else if ("status".equals(name)) {
+            statuses = DumpCondition.parse(value, 0);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    static long parseDate(final String value) {
+        if (value.matches("\\d+")) {
+            return Long.parseLong(value);
+        }
+        try {
+            return new SimpleDateFormat(DATE_FORMAT).parse(value).getTime();
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Bad date, expecting milliseconds or " + DATE_FORMAT + ": " + value);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line reader rendering the journal files written by the journal dump sink:
+ * <pre>
+ *   java -cp xebia-logfilter-extras.jar fr.xebia.extras.filters.logfilters.JournalReader [-json] file-or-directory...
+ * </pre>
+ * Records are rendered with the text layout of the filter, or as JSON objects with -json. The files of a directory
+ * are read in the order they were written. Compressed bodies are inflated when their record is rendered.
+ */
+public class JournalReader {
+
+    /**
+     * Callback receiving the records of a journal, the dump is released once it returns.
+     */
+    interface RecordHandler {
+        void onRecord(Dump dump, long offset);
+    }
+
+    public static void main(final String[] args) throws IOException {
+        DumpFormatter formatter = new TextDumpFormatter();
+        final List<File> files = new ArrayList<File>();
+        for (String arg : args) {
+            if ("-json".equals(arg)) {
+                formatter = new JsonDumpFormatter();
+            } else {
+                files.addAll(journalFiles(new File(arg)));
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: JournalReader [-json] file-or-directory...");
+            System.exit(1);
+        }
+        final RecordHandler printer = printer(System.out, formatter);
+        for (File file : files) {
+            read(file, printer);
+        }
+        System.out.flush();
+    }
+
+    /**
+     * @return a handler printing the records with the formatter
+     */
+    static RecordHandler printer(final PrintStream out, final DumpFormatter formatter) {
+        return new RecordHandler() {
+            @Override
+            public void onRecord(final Dump dump, final long offset) {
+                out.println(dump instanceof RequestDump ? formatter.formatRequest((RequestDump) dump)
+                        : formatter.formatResponse((ResponseDump) dump));
+            }
+        };
+    }
+
+    /**
+     * @return the file, or the journal files of the directory in the order they were written
+     */
+    static List<File> journalFiles(final File file) {
+        if (!file.isDirectory()) {
+            return Arrays.asList(file);
+        }
+        final List<File> files = new ArrayList<File>();
+        final long last = JournalDumpSink.lastSequence(file);
+        for (long sequence = 1; sequence <= last; sequence++) {
+            final File journalFile = JournalDumpSink.journalFile(file, sequence);
+            if (journalFile.isFile()) {
+                files.add(journalFile);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Reads the records of the journal file in the order they were written.
+     */
+    static void read(final File file, final RecordHandler handler) throws IOException {
+        final ByteBuffer buffer = map(file);
+        while (buffer.remaining() >= 4) {
+            final int offset = buffer.position();
+            final Dump dump = readRecord(buffer);
+            if (dump == null) {
+                break;
+            }
+            try {
+                handler.onRecord(dump, offset);
+            } finally {
+                dump.release();
+            }
+        }
+    }
+
+    /**
+     * Maps the journal file read only, after checking its header.
+     *
+     * @return the mapping, positioned on the first record
+     */
+    static ByteBuffer map(final File file) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            final ByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+            if (buffer.remaining() < JournalDumpSink.FILE_HEADER_SIZE || buffer.getInt() != JournalDumpSink.MAGIC) {
+                throw new IOException("Not a journal file: " + file);
+            }
+            final int version = buffer.getInt();
+            if (version != JournalDumpSink.VERSION) {
+                throw new IOException("Unsupported journal version " + version + ": " + file);
+            }
+            return buffer;
+        } finally {
+            // the mapping stays valid once the file is closed
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Reads the record starting at the position of the buffer, and moves the buffer after it.
+     *
+     * @return the dump of the record, to be released by the caller, or null at the end of the journal
+     */
+    static Dump readRecord(final ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length <= 0 || length > buffer.remaining()) {
+            return null;
+        }
+        final ByteBuffer record = buffer.slice();
+        record.limit(length);
+        buffer.position(buffer.position() + length);
+
+        final byte type = record.get();
+        final int id = record.getInt();
+        final long timestamp = record.getLong();
+        final Dump dump;
+        if (type == JournalDumpSink.REQUEST) {
+            final String remoteUser = getString(record);
+            final String method = getString(record);
+            final String requestURL = getString(record);
+            final String protocol = getString(record);
+            final int maxDumpSize = record.getInt();
+            final long unreadBytes = record.getLong();
+            final Map<String, List<String>> headers = getHeaders(record);
+            final String charset = getString(record);
+            final boolean headersOnly = record.get() != 0;
+            final BodyCapture body = getBody(record);
+            dump = new RequestDump(id, timestamp, headers, body, remoteUser, method, requestURL, protocol, maxDumpSize,
+                    unreadBytes, BodyCapture.charsetOf(charset));
+            dump.headersOnly = headersOnly;
+            if (body != null) {
+                body.release();
+            }
+        } else {
+            final String requestURI = getString(record);
+            final String status = getString(record);
+            final int statusCode = record.getInt();
+            final long elapsedNanos = record.getLong();
+            final String failure = getString(record);
+            final Map<String, List<String>> headers = getHeaders(record);
+            final String charset = getString(record);
+            final boolean headersOnly = record.get() != 0;
+            final BodyCapture body = getBody(record);
+            dump = new ResponseDump(id, timestamp, headers, body, requestURI, status, statusCode, elapsedNanos, failure,
+                    BodyCapture.charsetOf(charset));
+            dump.headersOnly = headersOnly;
+            if (body != null) {
+                body.release();
+            }
+        }
+        return dump;
+    }
+
+    private static Map<String, List<String>> getHeaders(final ByteBuffer record) {
+        final int count = record.getInt();
+        if (count < 0) {
+            return null;
+        }
+        final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+        for (int i = 0; i < count; i++) {
+            final String name = getString(record);
+            final int valueCount = record.getInt();
+            final List<String> values = new ArrayList<String>(valueCount);
+            for (int j = 0; j < valueCount; j++) {
+                values.add(getString(record));
+            }
+            headers.put(name, values);
+        }
+        return headers;
+    }
+
+    private static BodyCapture getBody(final ByteBuffer record) {
+        final long total = record.getLong();
+        if (total < 0) {
+            return null;
+        }
+        final byte contentEncoding = record.get();
+        final byte flags = record.get();
+        final long projectedBytes = record.getLong();
+        final int length = record.getInt();
+        final int compressedLength = record.getInt();
+        if (compressedLength >= 0) {
+            // inflated only if the dump is rendered
+            final byte[] deflated = new byte[compressedLength];
+            record.get(deflated);
+            final BodyCapture body = BodyCapture.compressed(deflated, length, total);
+            body.setFlags(flags, projectedBytes);
+            return body;
+        }
+        final byte[] bytes = new byte[length];
+        record.get(bytes);
+        final BodyCapture body = new BodyCapture(length, CaptureBufferPool.UNPOOLED);
+        body.write(bytes, 0, length);
+        body.countSkipped(total - length);
+        body.setContentEncoding(contentEncoding);
+        body.setFlags(flags, projectedBytes);
+        return body;
+    }
+
+    private static String getString(final ByteBuffer record) {
+        final int length = record.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, JournalDumpSink.UTF_8);
+    }
+}
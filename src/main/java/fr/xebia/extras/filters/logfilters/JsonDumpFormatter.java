@@ -0,0 +1,163 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders dumps as single line JSON objects, to be ingested by log pipelines without parsing free text. Requests and
+ * responses both have a timestamp field, in milliseconds since the epoch.
+ * <p/>
+ * Objects are written by hand into the FormatBuffers of the thread, the body being decoded into the scratch builder
+ * before being escaped into the dump.
+ */
+class JsonDumpFormatter implements DumpFormatter {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    @Override
+    public String formatRequest(final RequestDump request) {
+        final FormatBuffers buffers = FormatBuffers.get();
+        final StringBuilder out = buffers.out;
+        out.append("{\"type\":\"request\",\"id\":").append(request.id);
+        out.append(",\"timestamp\":").append(request.timestamp);
+        appendField(out, "user", request.remoteUser);
+        appendField(out, "method", request.method);
+        appendField(out, "url", request.requestURL);
+        appendField(out, "protocol", request.protocol);
+        appendHeaders(out, request.headers);
+        appendBody(out, buffers.body, request, request.maxDumpSize, request.charset);
+        if (request.unreadBytes > 0) {
+            out.append(",\"bodyUnreadBytes\":").append(request.unreadBytes);
+        }
+        out.append('}');
+        return buffers.release();
+    }
+
+    @Override
+    public String formatResponse(final ResponseDump response) {
+        final FormatBuffers buffers = FormatBuffers.get();
+        final StringBuilder out = buffers.out;
+        out.append("{\"type\":\"response\",\"id\":").append(response.id);
+        out.append(",\"timestamp\":").append(response.timestamp);
+        out.append(",\"status\":").append(response.statusCode);
+        out.append(",\"elapsedMicros\":").append(response.elapsedNanos / 1000);
+        if (response.failure != null) {
+            appendField(out, "exception", response.failure);
+        }
+        appendHeaders(out, response.headers);
+        appendBody(out, buffers.body, response, BodyCapture.UNLIMITED, response.charset);
+        out.append('}');
+        return buffers.release();
+    }
+
+    private static void appendBody(final StringBuilder out, final StringBuilder text, final Dump dump,
+                                   final int maxDumpSize, final Charset charset) {
+        if (dump.headersOnly) {
+            out.append(",\"bodyDropped\":true");
+        } else if (dump.body != null) {
+            final int decoded = dump.body.appendTo(text, maxDumpSize, charset);
+            out.append(",\"body\":");
+            appendString(out, text);
+            out.append(",\"bodySkippedBytes\":").append(dump.body.getTotal() - decoded);
+            if (dump.body.isCompressed()) {
+                appendCompression(out, dump.body.size(), dump.body.getCompressedSize());
+            }
+        }
+    }
+
+    /**
+     * Appends the compressed size of the body and its compression ratio with one decimal.
+     */
+    private static void appendCompression(final StringBuilder out, final int size, final int compressedSize) {
+        out.append(",\"bodyCompressedBytes\":").append(compressedSize);
+        final long tenths = compressedSize == 0 ? 0 : size * 10L / compressedSize;
+        out.append(",\"bodyCompressionRatio\":").append(tenths / 10).append('.').append(tenths % 10);
+    }
+
+    private static void appendHeaders(final StringBuilder out, final Map<String, List<String>> headers) {
+        if (headers == null) {
+            return;
+        }
+        out.append(",\"headers\":{");
+        boolean first = true;
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            appendString(out, header.getKey());
+            out.append(":[");
+            final List<String> values = header.getValue();
+            for (int i = 0; i < values.size(); i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                appendString(out, values.get(i));
+            }
+            out.append(']');
+        }
+        out.append('}');
+    }
+
+    private static void appendField(final StringBuilder out, final String name, final String value) {
+        if (value != null) {
+            out.append(",\"").append(name).append("\":");
+            appendString(out, value);
+        }
+    }
+
+    /**
+     * Appends the characters as a JSON string, copying runs of characters which need no escaping at once.
+     */
+    static void appendString(final StringBuilder out, final CharSequence value) {
+        out.append('"');
+        int run = 0;
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+                continue;
+            }
+            out.append(value, run, i);
+            run = i + 1;
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    out.append("\\u").append(HEX[c >> 12]).append(HEX[(c >> 8) & 0xF])
+                            .append(HEX[(c >> 4) & 0xF]).append(HEX[c & 0xF]);
+            }
+        }
+        out.append(value, run, length);
+        out.append('"');
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * JSON paths kept from the JSON bodies, defined by the projectJsonPaths init parameter.
+ * <p/>
+ * Paths are separated by ',' or new lines, they start with '$' followed by steps: .name or ['name'] for a member of an
+ * object, [n] for an element of an array, .* or [*] for any member or element, like $.order.id or $.errors[*].
+ * <p/>
+ * A Projector runs a streaming tokenizer over the bytes as they go through a capture, and keeps only the values found
+ * at these paths, one per line after their concrete path, like "$.errors[1]: {"code":42}". Whitespace outside of
+ * strings is dropped from the values. Nothing else of the body is kept, so the memory used by the capture depends on
+ * the size of the values and not of the body. Malformed JSON does not stop the tokenizer, it just resynchronizes on the
+ * next structural byte.
+ * <p/>
+ * Values of members named like a redacted body field are kept as "****", whether they are selected by a path, like
+ * $.user.password, or nested in a selected value.
+ */
+class JsonProjection {
+
+    private static final Logger logger = LoggerFactory.getLogger(JsonProjection.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final int MAX_PATHS = 64;
+    // deeper containers are tokenized but nothing is matched in them
+    static final int MAX_DEPTH = 64;
+    // longer member names match no path
+    static final int MAX_NAME_BYTES = 256;
+
+    // step of a path matching any member or element
+    private static final byte[] ANY = new byte[0];
+
+    // for each path, its steps: the bytes of a name, ANY, or null for an index given by indexes
+    private final byte[][][] steps;
+    private final int[][] indexes;
+    // for each number of steps, the paths having that many steps
+    private final long[] lengthMasks = new long[MAX_DEPTH + 1];
+    private final long allPaths;
+    private final Redactor redactor;
+
+    private JsonProjection(final List<byte[][]> steps, final List<int[]> indexes, final Redactor redactor) {
+        this.redactor = redactor;
+        this.steps = steps.toArray(new byte[steps.size()][][]);
+        this.indexes = indexes.toArray(new int[indexes.size()][]);
+        long all = 0;
+        for (int p = 0; p < this.steps.length; p++) {
+            lengthMasks[this.steps[p].length] |= 1L << p;
+            all |= 1L << p;
+        }
+        allPaths = all;
+    }
+
+    /**
+     * @return the projection, or null if no valid path is defined
+     */
+    static JsonProjection parse(final String paths) {
+        return parse(paths, null);
+    }
+
+    /**
+     * @param redactor masks the values of the redacted body fields, may be null
+     * @return the projection, or null if no valid path is defined
+     */
+    static JsonProjection parse(final String paths, final Redactor redactor) {
+        final List<byte[][]> steps = new ArrayList<byte[][]>();
+        final List<int[]> indexes = new ArrayList<int[]>();
+        for (String path : paths.split("[,\\n]")) {
+            path = path.trim();
+            if (path.length() == 0) {
+                continue;
+            }
+            if (steps.size() == MAX_PATHS) {
+                logger.warn("Ignoring JSON path {}, at most {} paths can be projected", path, MAX_PATHS);
+                continue;
+            }
+            if (!parsePath(path, steps, indexes)) {
+                logger.warn("Ignoring JSON path {}, expecting $ followed by .name, ['name'], [n], .* or [*] steps", path);
+            }
+        }
+        return steps.isEmpty() ? null : new JsonProjection(steps, indexes, redactor);
+    }
+
+    private static boolean parsePath(final String path, final List<byte[][]> allSteps, final List<int[]> allIndexes) {
+        if (!path.startsWith("$")) {
+            return false;
+        }
+        final List<byte[]> steps = new ArrayList<byte[]>();
+        final List<Integer> indexes = new ArrayList<Integer>();
+        int i = 1;
+        while (i < path.length()) {
+            final char c = path.charAt(i);
+            if (c == '.') {
+                int end = i + 1;
+                while (end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[') {
+                    end++;
+                }
+                final String name = path.substring(i + 1, end);
+                if (name.length() == 0) {
+                    return false;
+                }
+                steps.add("*".equals(name) ? ANY : name.getBytes(UTF_8));
+                indexes.add(-1);
+                i = end;
+            } else if (c == '[') {
+                final int end = path.indexOf(']', i);
+                if (end < 0) {
+                    return false;
+                }
+                final String selector = path.substring(i + 1, end).trim();
+                if ("*".equals(selector)) {
+                    steps.add(ANY);
+                    indexes.add(-1);
+                } else if (selector.length() > 1 && (selector.charAt(0) == '\'' || selector.charAt(0) == '"')
+                        && selector.charAt(selector.length() - 1) == selector.charAt(0)) {
+                    steps.add(selector.substring(1, selector.length() - 1).getBytes(UTF_8));
+                    indexes.add(-1);
+                } else {
+                    try {
+                        final int index = Integer.parseInt(selector);
+                        if (index < 0) {
+                            return false;
+                        }
+                        steps.add(null);
+                        indexes.add(index);
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+                i = end + 1;
+            } else {
+                return false;
+            }
+        }
+        if (steps.size() > MAX_DEPTH) {
+            return false;
+        }
+        final int[] pathIndexes = new int[indexes.size()];
+        for (int s = 0; s < pathIndexes.length; s++) {
+            pathIndexes[s] = indexes.get(s);
+        }
+        allSteps.add(steps.toArray(new byte[steps.size()][]));
+        allIndexes.add(pathIndexes);
+        return true;
+    }
+
+    /**
+     * @return true if the content type is a JSON one, like application/json or application/problem+json
+     */
+    static boolean isJson(final String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int end = contentType.indexOf(';');
+        if (end < 0) {
+            end = contentType.length();
+        }
+        return contentType.substring(0, end).trim().toLowerCase(Locale.ENGLISH).endsWith("json");
+    }
+
+    /**
+     * @return a projector keeping the values of the paths in the capture
+     */
+    Projector newProjector(final BodyCapture capture) {
+        return new Projector(capture);
+    }
+
+    /**
+     * @return the paths among the mask whose step at level matches the member name, or the element index if name is null
+     */
+    private long matchStep(final long mask, final int level, final byte[] name, final int nameLength, final int index) {
+        long matching = 0;
+        for (long remaining = mask; remaining != 0; remaining &= remaining - 1) {
+            final int p = Long.numberOfTrailingZeros(remaining);
+            if (steps[p].length <= level) {
+                continue;
+            }
+            final byte[] step = steps[p][level];
+            if (step == ANY
+                    || (step == null ? name == null && indexes[p][level] == index : name != null && equal(step, name, nameLength))) {
+                matching |= 1L << p;
+            }
+        }
+        return matching;
+    }
+
+    private static boolean equal(final byte[] step, final byte[] name, final int length) {
+        if (step.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (step[i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tokenizer state of one body, fed with its bytes in order.
+     */
+    final class Projector {
+        // what the tokenizer expects
+        private static final int VALUE = 0;
+        private static final int NAME_OR_END = 1;
+        private static final int NAME = 2;
+        private static final int COLON = 3;
+        private static final int AFTER_VALUE = 4;
+        private static final int STRING = 5;
+        private static final int LITERAL = 6;
+
+        private final BodyCapture capture;
+        private int state = VALUE;
+        private boolean escaped = false;
+        // open containers: their kind and the index of their current element
+        private int depth = 0;
+        private boolean[] arrays = new boolean[8];
+        private int[] elements = new int[8];
+        // paths matching the containers up to MAX_DEPTH, and the name of their current member in a stack of bytes
+        private final long[] masks = new long[MAX_DEPTH];
+        private final int[] nameStarts = new int[MAX_DEPTH];
+        private final int[] nameLengths = new int[MAX_DEPTH];
+        private final byte[] names = new byte[MAX_NAME_BYTES * 4];
+        private final byte[] name = new byte[MAX_NAME_BYTES];
+        private int nameLength = 0;
+        // paths matching the value of the member being read
+        private long memberMask = 0;
+        // depth of the value being kept, -1 if none
+        private int keptDepth = -1;
+        // depth of the kept value being masked, -1 if none
+        private int maskedDepth = -1;
+        private final byte[] digits = new byte[10];
+
+        private Projector(final BodyCapture capture) {
+            this.capture = capture;
+        }
+
+        void write(final byte[] b, final int off, final int len) {
+            for (int i = off; i < off + len; i++) {
+                write(b[i]);
+            }
+        }
+
+        void write(final int b) {
+            switch (state) {
+                case STRING:
+                    keep(b);
+                    if (escaped) {
+                        escaped = false;
+                    } else if (b == '\\') {
+                        escaped = true;
+                    } else if (b == '"') {
+                        endValue();
+                    }
+                    return;
+                case LITERAL:
+                    if (b == ',' || b == '}' || b == ']' || isWhitespace(b)) {
+                        endValue();
+                        write(b);
+                    } else {
+                        keep(b);
+                    }
+                    return;
+                case NAME:
+                    keep(b);
+                    if (escaped) {
+                        escaped = false;
+                        appendName(b);
+                    } else if (b == '\\') {
+                        escaped = true;
+                        appendName(b);
+                    } else if (b == '"') {
+                        state = COLON;
+                    } else {
+                        appendName(b);
+                    }
+                    return;
+                default:
+                    break;
+            }
+            if (isWhitespace(b)) {
+                return;
+            }
+            switch (state) {
+                case VALUE:
+                    if (b == ']' && depth > 0 && arrays[depth - 1]) {
+                        // empty array
+                        close(b);
+                    } else {
+                        startValue(b);
+                    }
+                    break;
+                case NAME_OR_END:
+                    if (b == '"') {
+                        keep(b);
+                        state = NAME;
+                        nameLength = 0;
+                        if (depth <= MAX_DEPTH) {
+                            nameLengths[depth - 1] = 0;
+                        }
+                    } else if (b == '}') {
+                        close(b);
+                    }
+                    break;
+                case COLON:
+                    if (b == ':') {
+                        keep(b);
+                        memberMask = depth <= MAX_DEPTH ? matchStep(masks[depth - 1], depth - 1, name,
+                                nameLength > MAX_NAME_BYTES ? -1 : nameLength, -1) : 0;
+                        state = VALUE;
+                    }
+                    break;
+                case AFTER_VALUE:
+                    if (b == ',') {
+                        keep(b);
+                        if (depth == 0) {
+                            state = VALUE;
+                        } else if (arrays[depth - 1]) {
+                            elements[depth - 1]++;
+                            state = VALUE;
+                        } else {
+                            state = NAME_OR_END;
+                        }
+                    } else if (b == '}' || b == ']') {
+                        close(b);
+                    } else if (depth == 0) {
+                        // concatenated documents, like JSON lines
+                        startValue(b);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void startValue(final int b) {
+            final long mask;
+            if (depth == 0) {
+                mask = allPaths;
+            } else if (depth > MAX_DEPTH) {
+                mask = 0;
+            } else if (arrays[depth - 1]) {
+                mask = matchStep(masks[depth - 1], depth - 1, null, 0, elements[depth - 1]);
+            } else {
+                mask = memberMask;
+            }
+            if (keptDepth < 0 && (mask & lengthMasks[Math.min(depth, MAX_DEPTH)]) != 0) {
+                keptDepth = depth;
+                keepPath();
+            }
+            if (keptDepth >= 0 && maskedDepth < 0 && isRedactedMember()) {
+                keep('"');
+                for (int i = 0; i < Redactor.MASK.length(); i++) {
+                    keep(Redactor.MASK.charAt(i));
+                }
+                keep('"');
+                maskedDepth = depth;
+            }
+            keep(b);
+            if (b == '{' || b == '[') {
+                open(b == '[', mask);
+                state = b == '{' ? NAME_OR_END : VALUE;
+            } else if (b == '"') {
+                escaped = false;
+                state = STRING;
+            } else {
+                state = LITERAL;
+            }
+        }
+
+        private void open(final boolean array, final long mask) {
+            if (depth == arrays.length) {
+                arrays = Arrays.copyOf(arrays, depth << 1);
+                elements = Arrays.copyOf(elements, depth << 1);
+            }
+            arrays[depth] = array;
+            elements[depth] = 0;
+            if (depth < MAX_DEPTH) {
+                masks[depth] = mask;
+                nameStarts[depth] = depth == 0 ? 0 : nameStarts[depth - 1] + nameLengths[depth - 1];
+                nameLengths[depth] = 0;
+            }
+            depth++;
+        }
+
+        private void close(final int b) {
+            if (depth == 0) {
+                return;
+            }
+            keep(b);
+            depth--;
+            endValue();
+        }
+
+        private void endValue() {
+            state = AFTER_VALUE;
+            if (maskedDepth == depth) {
+                maskedDepth = -1;
+            }
+            if (keptDepth == depth) {
+                keptDepth = -1;
+                capture.keep('\n');
+            }
+        }
+
+        private void appendName(final int b) {
+            if (nameLength < MAX_NAME_BYTES) {
+                name[nameLength] = (byte) b;
+            }
+            nameLength++;
+            // the name is also kept in the stack of names to write the concrete paths
+            if (depth <= MAX_DEPTH) {
+                final int at = nameStarts[depth - 1] + nameLengths[depth - 1];
+                if (at < names.length) {
+                    names[at] = (byte) b;
+                    nameLengths[depth - 1]++;
+                }
+            }
+        }
+
+        /**
+         * Writes the concrete path of the value about to be kept.
+         */
+        private void keepPath() {
+            capture.keep('$');
+            for (int level = 0; level < depth && level < MAX_DEPTH; level++) {
+                if (arrays[level]) {
+                    capture.keep('[');
+                    int n = elements[level];
+                    int count = 0;
+                    do {
+                        digits[count++] = (byte) ('0' + n % 10);
+                        n /= 10;
+                    } while (n > 0);
+                    while (count > 0) {
+                        capture.keep(digits[--count]);
+                    }
+                    capture.keep(']');
+                } else {
+                    capture.keep('.');
+                    capture.keep(names, nameStarts[level], nameLengths[level]);
+                }
+            }
+            capture.keep(':');
+            capture.keep(' ');
+        }
+
+        private void keep(final int b) {
+            if (keptDepth >= 0 && maskedDepth < 0) {
+                capture.keep(b);
+            }
+        }
+
+        /**
+         * @return true if the value about to start is the value of a member named like a redacted body field
+         */
+        private boolean isRedactedMember() {
+            return redactor != null && depth > 0 && depth <= MAX_DEPTH && !arrays[depth - 1]
+                    && nameLength <= MAX_NAME_BYTES && redactor.redactsField(name, nameLength);
+        }
+
+        private boolean isWhitespace(final int b) {
+            return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CaptureBufferPool keeping the captured bytes out of the heap.
+ * <p/>
+ * Segments are sliced from direct ByteBuffer slabs, allocated on demand until the capacity is reached. Segments are
+ * never given back to the garbage collector, so once every segment is in use acquire() returns null and limited
+ * captures stop keeping bytes.
+ */
+class OffHeapCaptureBufferPool extends CaptureBufferPool {
+
+    static final int SLAB_SIZE = 1024 * 1024;
+
+    private final long capacity;
+    private long allocated = 0;
+    private volatile boolean full = false;
+    private ByteBuffer slab = null;
+
+    /**
+     * @param segmentSize size in bytes of every segment
+     * @param capacity    total size in bytes of the direct memory used by the pool
+     */
+    OffHeapCaptureBufferPool(final int segmentSize, final long capacity) {
+        this(segmentSize, capacity, null, null);
+    }
+
+    /**
+     * @param segmentSize size in bytes of every segment
+     * @param capacity    total size in bytes of the direct memory used by the pool
+     * @param budget      bound on the bytes held by the captures using this pool, null if unbounded
+     * @param spill       settings of the captures spilling to disk, null if captures are kept in memory
+     */
+    OffHeapCaptureBufferPool(final int segmentSize, final long capacity, final CaptureBudget budget,
+                             final CaptureSpill spill) {
+        super(segmentSize, (int) Math.min(Integer.MAX_VALUE, capacity / segmentSize), budget, spill);
+        this.capacity = capacity - capacity % segmentSize;
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    ByteBuffer allocate() {
+        return full ? null : allocateSegment();
+    }
+
+    private synchronized ByteBuffer allocateSegment() {
+        if (allocated >= capacity) {
+            full = true;
+            return null;
+        }
+        if (slab == null || !slab.hasRemaining()) {
+            final long slabSize = Math.min(capacity - allocated, SLAB_SIZE - SLAB_SIZE % getSegmentSize());
+            slab = ByteBuffer.allocateDirect((int) slabSize);
+        }
+        slab.limit(slab.position() + getSegmentSize());
+        final ByteBuffer segment = slab.slice();
+        slab.position(slab.limit());
+        slab.limit(slab.capacity());
+        allocated += getSegmentSize();
+        return segment;
+    }
+
+    @Override
+    void release(final ByteBuffer segment) {
+        // heap segments used by unlimited captures once the pool is exhausted are left to the garbage collector
+        if (segment.isDirect()) {
+            super.release(segment);
+        }
+    }
+
+    @Override
+    boolean isFixedCapacity() {
+        return true;
+    }
+}
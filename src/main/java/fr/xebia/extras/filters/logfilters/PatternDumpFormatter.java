@@ -0,0 +1,340 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders dumps following the layout defined by the dumpPattern init parameter, in the style of logback patterns:
+ * <pre>
+ *   %id %method %url %status %reqHeaders %body{4k}
+ * </pre>
+ * Conversions are %id, %user, %method, %url, %protocol, %status, %elapsed (in ms), %exception, %headers,
+ * %reqHeaders, %respHeaders, %body with an optional max size in bytes ('k' and 'm' suffixes allowed), %n for a new
+ * line and %% for '%'. Conversions which do not apply to the dump, like %status for a request, render as '-'.
+ * <p/>
+ * The pattern is compiled once into an array of steps, each one appending its part of the dump, so that rendering
+ * a dump is a loop over the steps writing into the FormatBuffers of the thread.
+ */
+class PatternDumpFormatter implements DumpFormatter {
+
+    private static final Logger logger = LoggerFactory.getLogger(PatternDumpFormatter.class);
+
+    static final String NOT_APPLICABLE = "-";
+
+    private final Step[] steps;
+
+    private PatternDumpFormatter(final Step[] steps) {
+        this.steps = steps;
+    }
+
+    /**
+     * @return the compiled pattern, or null if it is not valid
+     */
+    static PatternDumpFormatter parse(final String pattern) {
+        try {
+            return new PatternDumpFormatter(compile(pattern));
+        } catch (IllegalArgumentException e) {
+            logger.warn("Bad format for dumpPattern parameter '{}': {}", pattern, e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public String formatRequest(final RequestDump request) {
+        final FormatBuffers buffers = FormatBuffers.get();
+        for (Step step : steps) {
+            step.append(buffers.out, request);
+        }
+        return buffers.release();
+    }
+
+    @Override
+    public String formatResponse(final ResponseDump response) {
+        final FormatBuffers buffers = FormatBuffers.get();
+        for (Step step : steps) {
+            step.append(buffers.out, response);
+        }
+        return buffers.release();
+    }
+
+    private static Step[] compile(final String pattern) {
+        final List<Step> steps = new ArrayList<Step>();
+        final StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < pattern.length()) {
+            final char c = pattern.charAt(i++);
+            if (c != '%') {
+                literal.append(c);
+                continue;
+            }
+            if (i < pattern.length() && pattern.charAt(i) == '%') {
+                literal.append('%');
+                i++;
+                continue;
+            }
+            final int nameStart = i;
+            while (i < pattern.length() && Character.isLetter(pattern.charAt(i))) {
+                i++;
+            }
+            final String name = pattern.substring(nameStart, i);
+            String option = null;
+            if (i < pattern.length() && pattern.charAt(i) == '{') {
+                final int optionEnd = pattern.indexOf('}', i);
+                if (optionEnd < 0) {
+                    throw new IllegalArgumentException("missing '}' after %" + name);
+                }
+                option = pattern.substring(i + 1, optionEnd).trim();
+                i = optionEnd + 1;
+            }
+            if ("n".equals(name)) {
+                literal.append('\n');
+                continue;
+            }
+            if (literal.length() > 0) {
+                steps.add(new Literal(literal.toString()));
+                literal.setLength(0);
+            }
+            steps.add(conversion(name, option));
+        }
+        if (literal.length() > 0) {
+            steps.add(new Literal(literal.toString()));
+        }
+        return steps.toArray(new Step[steps.size()]);
+    }
+
+    private static Step conversion(final String name, final String option) {
+        if ("id".equals(name)) {
+            return new Id();
+        } else if ("user".equals(name)) {
+            return new User();
+        } else if ("method".equals(name)) {
+            return new Method();
+        } else if ("url".equals(name)) {
+            return new Url();
+        } else if ("protocol".equals(name)) {
+            return new Protocol();
+        } else if ("status".equals(name)) {
+            return new Status();
+        } else if ("elapsed".equals(name)) {
+            return new Elapsed();
+        } else if ("exception".equals(name)) {
+            return new Failure();
+        } else if ("headers".equals(name)) {
+            return new Headers(true, true);
+        } else if ("reqHeaders".equals(name)) {
+            return new Headers(true, false);
+        } else if ("respHeaders".equals(name)) {
+            return new Headers(false, true);
+        } else if ("body".equals(name)) {
+            return new Body(option == null ? BodyCapture.UNLIMITED : parseSize(option));
+        }
+        throw new IllegalArgumentException("unknown conversion %" + name);
+    }
+
+    /**
+     * @return the size in bytes, 'k' and 'm' suffixes multiplying it by 1000 like maxDumpSizeInKB
+     */
+    static int parseSize(final String size) {
+        if (size.length() == 0) {
+            throw new IllegalArgumentException("expecting body size between braces");
+        }
+        final char unit = Character.toLowerCase(size.charAt(size.length() - 1));
+        final int multiplier = unit == 'k' ? 1000 : unit == 'm' ? 1000 * 1000 : 1;
+        try {
+            final int value = Integer.parseInt(multiplier == 1 ? size : size.substring(0, size.length() - 1));
+            if (value <= 0) {
+                throw new IllegalArgumentException("expecting positive body size instead of " + size);
+            }
+            return (int) Math.min(Integer.MAX_VALUE, (long) value * multiplier);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("expecting body size instead of " + size);
+        }
+    }
+
+    /**
+     * Part of the compiled pattern, rendering as '-' what does not apply to the kind of dump.
+     */
+    abstract static class Step {
+        void append(final StringBuilder out, final RequestDump request) {
+            out.append(NOT_APPLICABLE);
+        }
+
+        void append(final StringBuilder out, final ResponseDump response) {
+            out.append(NOT_APPLICABLE);
+        }
+    }
+
+    private static final class Literal extends Step {
+        private final String text;
+
+        Literal(final String text) {
+            this.text = text;
+        }
+
+        @Override
+        void append(final StringBuilder out, final RequestDump request) {
+            out.append(text);
+        }
+
+        @Override
+        void append(final StringBuilder out, final ResponseDump response) {
+            out.append(text);
+        }
+    }
+
+    private static final class Id extends Step {
+        @Override
+        void append(final StringBuilder out, final RequestDump request) {
+            out.append(request.id);
+        }
+
+        @Override
+        void append(final StringBuilder out, final ResponseDump response) {
+            out.append(response.id);
+        }
+    }
+
+    private static final class User extends Step {
+        @Override
+        void append(final StringBuilder out, final RequestDump request) {
+            out.append(request.remoteUser == null ? NOT_APPLICABLE : request.remoteUser);
+        }
+    }
+
+    private static final class Method extends Step {
+        @Override
+        void append(final StringBuilder out, final RequestDump request) {
+            out.append(request.method);
+        }
+    }
+
+    private static final class Url extends Step {
+        @Override
+        void append(final StringBuilder out, final RequestDump request) {
+            out.append(request.requestURL);
+        }
+    }
+
+    private static final class Protocol extends Step {
+        @Override
+        void append(final StringBuilder out, final RequestDump request) {
+            out.append(request.protocol);
+        }
+    }
+
+    private static final class Status extends Step {
+        @Override
+        void append(final StringBuilder out, final ResponseDump response) {
+            out.append(response.statusCode);
+        }
+    }
+
+    private static final class Elapsed extends Step {
+        @Override
+        void append(final StringBuilder out, final ResponseDump response) {
+            out.append(response.elapsedNanos / 1000000);
+        }
+    }
+
+    private static final class Failure extends Step {
+        @Override
+        void append(final StringBuilder out, final ResponseDump response) {
+            out.append(response.failure == null ? NOT_APPLICABLE : response.failure);
+        }
+    }
+
+    private static final class Headers extends Step {
+        private final boolean request;
+        private final boolean response;
+
+        Headers(final boolean request, final boolean response) {
+            this.request = request;
+            this.response = response;
+        }
+
+        @Override
+        void append(final StringBuilder out, final RequestDump dump) {
+            appendHeaders(out, request ? dump.headers : null);
+        }
+
+        @Override
+        void append(final StringBuilder out, final ResponseDump dump) {
+            appendHeaders(out, response ? dump.headers : null);
+        }
+
+        private static void appendHeaders(final StringBuilder out, final Map<String, List<String>> headers) {
+            if (headers == null || headers.isEmpty()) {
+                out.append(NOT_APPLICABLE);
+                return;
+            }
+            boolean first = true;
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                if (!first) {
+                    out.append("; ");
+                }
+                first = false;
+                out.append(header.getKey()).append(": ");
+                final Iterator<String> values = header.getValue().iterator();
+                while (values.hasNext()) {
+                    out.append(values.next());
+                    if (values.hasNext()) {
+                        out.append(", ");
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class Body extends Step {
+        private final int maxBytes;
+
+        Body(final int maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        void append(final StringBuilder out, final RequestDump request) {
+            appendBody(out, request, Math.min(maxBytes, request.maxDumpSize), request.charset);
+        }
+
+        @Override
+        void append(final StringBuilder out, final ResponseDump response) {
+            appendBody(out, response, maxBytes, response.charset);
+        }
+
+        private static void appendBody(final StringBuilder out, final Dump dump, final int maxBytes,
+                                       final Charset charset) {
+            if (dump.headersOnly) {
+                out.append(RequestLoggerFilter.BODY_NOT_DUMPED);
+            } else if (dump.body == null) {
+                out.append(NOT_APPLICABLE);
+            } else {
+                final long skipped = dump.body.getTotal() - dump.body.appendTo(out, maxBytes, charset);
+                if (skipped > 0) {
+                    out.append("... (").append(skipped).append(" more bytes)");
+                }
+            }
+        }
+    }
+}
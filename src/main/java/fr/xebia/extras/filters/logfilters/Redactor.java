@@ -0,0 +1,386 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Removes secrets from dumps, defined by the redactHeaders, dropHeaders and redactBodyFields init parameters.
+ * <p/>
+ * Headers are matched by name whatever their case, when they are captured: the values of redacted headers are
+ * replaced by a mask, dropped headers are not captured at all.
+ * <p/>
+ * Body fields are found in a single pass over the captured bytes, before they are decoded, by an Aho-Corasick automaton
+ * compiled once from all the field names. Each name is searched both as a JSON key, "name" followed by a colon, and as
+ * a form field, name= at the start of the body or after a '&amp;'. The bytes of the value are then masked one by one: the
+ * content of a JSON string, a whole scalar, object or array, or a form value up to the next '&amp;'. Names are matched
+ * ignoring the case of ASCII letters.
+ */
+class Redactor {
+
+    static final String MASK = "****";
+    static final byte MASK_BYTE = '*';
+
+    // what is done with a header
+    static final int KEEP = 0;
+    static final int REDACT = 1;
+    static final int DROP = 2;
+
+    private final String[] redactedHeaders;
+    private final String[] droppedHeaders;
+    private final String[] bodyFields;
+    private final Automaton automaton;
+
+    private Redactor(final String[] redactedHeaders, final String[] droppedHeaders, final String[] bodyFields) {
+        this.redactedHeaders = redactedHeaders;
+        this.droppedHeaders = droppedHeaders;
+        this.bodyFields = bodyFields;
+        this.automaton = bodyFields.length == 0 ? null : new Automaton(bodyFields);
+    }
+
+    /**
+     * @param redactHeaders    comma separated names of the headers whose values are masked, may be null
+     * @param dropHeaders      comma separated names of the headers which are not dumped, may be null
+     * @param redactBodyFields comma separated names of the JSON or form fields whose values are masked, may be null
+     * @return the redactor, null if there is nothing to redact
+     */
+    static Redactor create(final String redactHeaders, final String dropHeaders, final String redactBodyFields) {
+        final String[] redacted = split(redactHeaders);
+        final String[] dropped = split(dropHeaders);
+        final String[] fields = split(redactBodyFields);
+        if (redacted.length == 0 && dropped.length == 0 && fields.length == 0) {
+            return null;
+        }
+        return new Redactor(redacted, dropped, fields);
+    }
+
+    private static String[] split(final String list) {
+        final List<String> names = new ArrayList<String>();
+        if (list != null) {
+            for (String name : list.split(",")) {
+                if (name.trim().length() > 0) {
+                    names.add(name.trim());
+                }
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * @return KEEP, REDACT or DROP
+     */
+    int headerAction(final String name) {
+        if (contains(droppedHeaders, name)) {
+            return DROP;
+        }
+        return contains(redactedHeaders, name) ? REDACT : KEEP;
+    }
+
+    private static boolean contains(final String[] names, final String name) {
+        for (String n : names) {
+            if (n.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if body fields have to be redacted
+     */
+    boolean redactsBodies() {
+        return automaton != null;
+    }
+
+    /**
+     * @return true if the values of the JSON member or form field with this name, given as UTF-8 bytes, are masked
+     */
+    boolean redactsField(final byte[] name, final int length) {
+        for (String field : bodyFields) {
+            if (field.length() == length && equalIgnoringCase(field, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean equalIgnoringCase(final String field, final byte[] name) {
+        for (int i = 0; i < field.length(); i++) {
+            final int c = field.charAt(i);
+            final int b = name[i] & 0xff;
+            if (c != b && !(c >= 'A' && c <= 'Z' && c - 'A' + 'a' == b) && !(c >= 'a' && c <= 'z' && c - 'a' + 'A' == b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a scan of one body, to be fed with its bytes in order
+     */
+    Scan newScan() {
+        return new Scan(automaton);
+    }
+
+    /**
+     * Automaton matching the field names: a dense transition table over the classes of the bytes found in the names,
+     * every other byte sharing a single class, with the failure links folded into the transitions.
+     */
+    private static final class Automaton {
+        // start state, after the '&' assumed before the body
+        final int start;
+        final byte[] classes = new byte[256];
+        final int classCount;
+        final int[] transitions;
+        // for each state, MATCH_JSON or MATCH_FORM if it ends a name, 0 else
+        final byte[] matches;
+
+        Automaton(final String[] fields) {
+            final List<byte[]> patterns = new ArrayList<byte[]>();
+            final List<Byte> kinds = new ArrayList<Byte>();
+            for (String field : fields) {
+                patterns.add(lowerCase("\"" + field + "\""));
+                kinds.add(Scan.MATCH_JSON);
+                patterns.add(lowerCase("&" + field + "="));
+                kinds.add(Scan.MATCH_FORM);
+            }
+            int count = 1;
+            for (byte[] pattern : patterns) {
+                for (byte b : pattern) {
+                    if (classes[b & 0xff] == 0) {
+                        classes[b & 0xff] = (byte) count++;
+                    }
+                }
+            }
+            for (int c = 'a'; c <= 'z'; c++) {
+                classes[c - 'a' + 'A'] = classes[c];
+            }
+            classCount = count;
+
+            // trie, then breadth first failure links
+            int states = 1;
+            for (byte[] pattern : patterns) {
+                states += pattern.length;
+            }
+            final int[] trie = new int[states * classCount];
+            Arrays.fill(trie, -1);
+            matches = new byte[states];
+            int stateCount = 1;
+            for (int p = 0; p < patterns.size(); p++) {
+                int state = 0;
+                for (byte b : patterns.get(p)) {
+                    final int cell = state * classCount + classes[b & 0xff];
+                    if (trie[cell] < 0) {
+                        trie[cell] = stateCount++;
+                    }
+                    state = trie[cell];
+                }
+                matches[state] = kinds.get(p);
+            }
+            transitions = new int[stateCount * classCount];
+            final int[] failures = new int[stateCount];
+            final LinkedList<Integer> queue = new LinkedList<Integer>();
+            for (int c = 0; c < classCount; c++) {
+                final int next = trie[c];
+                transitions[c] = next < 0 ? 0 : next;
+                if (next > 0) {
+                    queue.add(next);
+                }
+            }
+            while (!queue.isEmpty()) {
+                final int state = queue.removeFirst();
+                if (matches[state] == 0) {
+                    matches[state] = matches[failures[state]];
+                }
+                for (int c = 0; c < classCount; c++) {
+                    final int next = trie[state * classCount + c];
+                    final int fallback = transitions[failures[state] * classCount + c];
+                    if (next < 0) {
+                        transitions[state * classCount + c] = fallback;
+                    } else {
+                        failures[next] = fallback;
+                        transitions[state * classCount + c] = next;
+                        queue.add(next);
+                    }
+                }
+            }
+            start = transitions[classes['&']];
+        }
+
+        int next(final int state, final byte b) {
+            return transitions[state * classCount + classes[b & 0xff]];
+        }
+
+        private static byte[] lowerCase(final String s) {
+            final byte[] bytes = new byte[s.length()];
+            for (int i = 0; i < bytes.length; i++) {
+                final char c = s.charAt(i);
+                bytes[i] = (byte) (c >= 'A' && c <= 'Z' ? c - 'A' + 'a' : c);
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * State of the search of the fields in one body, kept between the chunks of the body.
+     */
+    static final class Scan {
+        static final byte MATCH_JSON = 1;
+        static final byte MATCH_FORM = 2;
+
+        // where the scan is in the value of a field
+        private static final int SEARCHING = 0;
+        private static final int BEFORE_COLON = 1;
+        private static final int BEFORE_VALUE = 2;
+        private static final int IN_STRING = 3;
+        private static final int IN_SCALAR = 4;
+        private static final int IN_NESTED = 5;
+        private static final int IN_FORM = 6;
+
+        private final Automaton automaton;
+        private int state;
+        private int mode = SEARCHING;
+        private int depth = 0;
+        private boolean escaped = false;
+        private boolean nestedString = false;
+        private long masked = 0;
+
+        private Scan(final Automaton automaton) {
+            this.automaton = automaton;
+            this.state = automaton == null ? 0 : automaton.start;
+        }
+
+        /**
+         * @return number of bytes masked, or which would have been masked, so far
+         */
+        long getMasked() {
+            return masked;
+        }
+
+        /**
+         * Scans the remaining bytes of the buffer, leaving its position untouched.
+         *
+         * @param mask true to mask the bytes of the values in the buffer, false to only count them
+         */
+        void scan(final ByteBuffer buffer, final boolean mask) {
+            if (automaton == null) {
+                return;
+            }
+            for (int i = buffer.position(); i < buffer.limit(); i++) {
+                final byte b = buffer.get(i);
+                if (mode != SEARCHING && isSecret(b)) {
+                    masked++;
+                    if (mask) {
+                        buffer.put(i, MASK_BYTE);
+                    }
+                }
+                state = automaton.next(state, b);
+                if (mode == SEARCHING) {
+                    final byte match = automaton.matches[state];
+                    if (match == MATCH_JSON) {
+                        mode = BEFORE_COLON;
+                    } else if (match == MATCH_FORM) {
+                        mode = IN_FORM;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Moves the value state machine over one byte.
+         *
+         * @return true if the byte is part of a value to mask
+         */
+        private boolean isSecret(final byte b) {
+            switch (mode) {
+                case BEFORE_COLON:
+                    if (b == ':') {
+                        mode = BEFORE_VALUE;
+                    } else if (!isWhitespace(b)) {
+                        // the name was a value, not a key
+                        mode = SEARCHING;
+                    }
+                    return false;
+                case BEFORE_VALUE:
+                    if (b == '"') {
+                        mode = IN_STRING;
+                        escaped = false;
+                        return false;
+                    } else if (b == '{' || b == '[') {
+                        mode = IN_NESTED;
+                        depth = 1;
+                        nestedString = false;
+                        escaped = false;
+                        return false;
+                    } else if (!isWhitespace(b)) {
+                        mode = IN_SCALAR;
+                        return true;
+                    }
+                    return false;
+                case IN_STRING:
+                    if (escaped) {
+                        escaped = false;
+                    } else if (b == '\\') {
+                        escaped = true;
+                    } else if (b == '"') {
+                        mode = SEARCHING;
+                        return false;
+                    }
+                    return true;
+                case IN_SCALAR:
+                    if (b == ',' || b == '}' || b == ']' || isWhitespace(b)) {
+                        mode = SEARCHING;
+                        return false;
+                    }
+                    return true;
+                case IN_NESTED:
+                    if (nestedString) {
+                        if (escaped) {
+                            escaped = false;
+                        } else if (b == '\\') {
+                            escaped = true;
+                        } else if (b == '"') {
+                            nestedString = false;
+                        }
+                    } else if (b == '"') {
+                        nestedString = true;
+                    } else if (b == '{' || b == '[') {
+                        depth++;
+                    } else if ((b == '}' || b == ']') && --depth == 0) {
+                        mode = SEARCHING;
+                        return false;
+                    }
+                    return true;
+                case IN_FORM:
+                    if (b == '&' || b == '\r' || b == '\n') {
+                        mode = SEARCHING;
+                        return false;
+                    }
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private static boolean isWhitespace(final byte b) {
+            return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+        }
+    }
+}
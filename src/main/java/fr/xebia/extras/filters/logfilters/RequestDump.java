@@ -0,0 +1,104 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dump of the request line, user, headers and body of a request.
+ */
+class RequestDump extends Dump {
+
+    final String remoteUser;
+    final String method;
+    final String requestURL;
+    final String protocol;
+    final int maxDumpSize;
+    final long unreadBytes;
+    final Charset charset;
+
+    RequestDump(final HttpServletRequestLoggingWrapper request, final int id, final boolean withHeaders) {
+        this(request, id, withHeaders, null);
+    }
+
+    /**
+     * @param redactor removes the secret headers while they are copied, null to copy them all
+     */
+    RequestDump(final HttpServletRequestLoggingWrapper request, final int id, final boolean withHeaders,
+                final Redactor redactor) {
+        super(id, withHeaders ? copyHeaders(request, redactor) : null, request.getCapture());
+        remoteUser = request.getRemoteUser();
+        method = request.getMethod();
+        requestURL = String.valueOf(request.getRequestURL());
+        protocol = request.getProtocol();
+        maxDumpSize = request.getMaxDumpSize();
+        unreadBytes = request.getUnreadBytes();
+        charset = request.getBodyCharset();
+    }
+
+    /**
+     * Rebuilds a dump read back from a journal.
+     */
+    RequestDump(final int id, final long timestamp, final Map<String, List<String>> headers, final BodyCapture body,
+                final String remoteUser, final String method, final String requestURL, final String protocol,
+                final int maxDumpSize, final long unreadBytes, final Charset charset) {
+        super(id, timestamp, headers, body);
+        this.remoteUser = remoteUser;
+        this.method = method;
+        this.requestURL = requestURL;
+        this.protocol = protocol;
+        this.maxDumpSize = maxDumpSize;
+        this.unreadBytes = unreadBytes;
+        this.charset = charset;
+    }
+
+    @Override
+    int getMaxBodySize() {
+        // buffered bodies are captured whole to be replayed to the webapp
+        return maxDumpSize;
+    }
+
+    String getBody() {
+        return body == null ? null : HttpServletRequestLoggingWrapper.getBody(body, maxDumpSize, unreadBytes, charset);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, List<String>> copyHeaders(final HttpServletRequestLoggingWrapper request,
+                                                         final Redactor redactor) {
+        final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+        final Enumeration<String> headerNames = request.getHeaderNames();
+        while (headerNames != null && headerNames.hasMoreElements()) {
+            final String key = headerNames.nextElement();
+            final int action = redactor == null ? Redactor.KEEP : redactor.headerAction(key);
+            if (action == Redactor.DROP) {
+                continue;
+            }
+            final List<String> values = new ArrayList<String>(1);
+            final Enumeration<String> headerValues = request.getHeaders(key);
+            while (headerValues != null && headerValues.hasMoreElements()) {
+                final String value = headerValues.nextElement();
+                values.add(action == Redactor.REDACT ? Redactor.MASK : value);
+            }
+            headers.put(key, values);
+        }
+        return headers;
+    }
+}
@@ -21,13 +21,20 @@ import org.slf4j.LoggerFactory;
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.util.Enumeration;
-import java.util.Iterator;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -42,6 +49,84 @@ import java.util.concurrent.atomic.AtomicInteger;
  * <p/>
  * The Filter defines a maxDumpSizeInKB that allows to define a limit to the size of the payload or body it will dump in logs. This parameter is defined in KB
  * and defaults to 500 KB.
+ * <p/>
+ * The dumpFormat parameter selects how dumps are rendered: "text" (the default) logs free text blocks, "json" logs
+ * one JSON object per dump, with the id, request line, user, headers, status, elapsed time and body as fields.
+ * The dumpPattern parameter overrides it with a layout like "%id %method %url %status %headers %body{4k}", see
+ * PatternDumpFormatter for the conversions.
+ * <p/>
+ * The dumpSink parameter selects where dumps go: "slf4j" (the default) logs them to the loggers above, "journal"
+ * appends them as binary records, bodies being copied raw, to memory mapped files of journalFileSizeInMB (defaults
+ * to 64) in journalDirectory (defaults to a directory named after the filter in java.io.tmpdir), keeping the last
+ * journalFiles files (defaults to 10). Journals are rendered with the JournalReader command line. The loggers levels
+ * still decide what is captured.
+ * <p/>
+ * The streamRequestBody parameter switches the request dump to streaming mode: instead of reading the whole body before
+ * calling the chain, the body is copied while the webapp reads it, and the request is dumped once the body is consumed
+ * or the chain returns. Bytes not read by the webapp are only counted. It defaults to false.
+ * <p/>
+ * The offHeapCaptureSizeInMB parameter makes captured bodies stored in direct memory, out of the heap, with this fixed
+ * capacity in MB. Once it is used up, bodies are only counted until some capture is released. It defaults to 0, bodies
+ * being captured in the heap.
+ * <p/>
+ * The captureBudgetInMB parameter bounds the memory held at once by all the captured bodies, whether they are still
+ * being captured or waiting to be dumped. Once it is used up, captured bodies are truncated, or not kept at all, until
+ * some capture is released, and their dump notes it. Buffered request bodies only hold their first maxDumpSizeInKB in
+ * the budget, the rest being spilled to a temporary file to be replayed. It defaults to 0, captures being only bounded
+ * by maxDumpSizeInKB.
+ * <p/>
+ * The spillThresholdInKB parameter makes each capture write the bytes beyond this threshold to a temporary file in
+ * spillDirectory (defaults to the java.io.tmpdir directory), instead of keeping them in memory. It is mostly useful
+ * for large request bodies in buffered mode, which are then replayed to the webapp from the memory mapped file.
+ * It defaults to 0, captures being kept in memory.
+ * <p/>
+ * The compressBodies parameter deflates the captured bodies when their dump is taken, before it is queued by asyncDump,
+ * kept by the flight recorder or written by the sink, the capture buffers being released right away. Bodies are
+ * inflated only when rendered, and the journal sink stores them compressed. It defaults to false.
+ * <p/>
+ * The asyncDump parameter moves the formatting and logging of dumps to background threads. Dumps are handed over
+ * through a queue of asyncDumpQueueSize dumps (defaults to 1024) to asyncDumpThreads threads (defaults to 1).
+ * When the queue is full, asyncDumpOverflowPolicy decides what happens to a new dump: "block" waits for some room,
+ * "drop" drops it, "headers" logs it right away without its body. It defaults to "drop".
+ * <p/>
+ * When dumping is enabled, requests can be sampled: samplingRate dumps one request out of N, samplingProbability dumps
+ * each request with the given probability (between 0 and 1), and samplingBudgetPerSecond dumps at most N requests per
+ * second for each request URI. When several are defined, a request must be sampled by all of them to be dumped.
+ * Requests that are not sampled go through the filter as if dumping was disabled.
+ * <p/>
+ * The captureRules parameter restricts dumping to the requests matching include/exclude rules on path, method and
+ * content type, each rule being able to define its own max dump size. See CaptureRules for the syntax.
+ * <p/>
+ * The dumpOnStatus and dumpOnSlowerThanMs parameters make the filter capture exchanges but dump them only once the
+ * chain returned, and only if the status matches one of the listed codes or classes (like "4xx,5xx,302"), if the
+ * exchange took longer than the threshold, or if the chain threw an exception.
+ * <p/>
+ * The flightRecorderSize parameter makes the filter keep the last N captured exchanges in memory instead of logging
+ * them. They are dumped, to the loggers or appended to flightRecorderFile if defined, when an exchange fails (status
+ * 5xx or exception, or matching the dump condition if defined), when the dump operation of the FlightRecorder MBean is
+ * invoked, or when the flightRecorderSignalFile is created, in which case it is deleted. The signal file is polled every
+ * second by a daemon timer, whether requests come or not.
+ * <p/>
+ * The redactHeaders and dropHeaders parameters list the headers, like "Authorization,Cookie,Set-Cookie", whose values
+ * are masked or which are not dumped at all. The redactBodyFields parameter lists the JSON or form fields, like
+ * "password,cardNumber", whose values are masked in the dumped bodies. See Redactor.
+ * <p/>
+ * The projectJsonPaths parameter lists JSON paths, like "$.order.id,$.errors[*]", making the filter dump only the
+ * values found at these paths in the JSON bodies instead of the whole bodies. Bodies are projected while they are
+ * captured, except buffered request bodies which are projected when dumped. See JsonProjection.
+ * <p/>
+ * The metrics parameter makes the filter count every request, whether it is dumped or not, with its status class,
+ * request and response body sizes and latency histogram, published as RouteMetrics MBeans with p50, p99 and p999
+ * latencies. The metricsRoutes parameter splits them by route, with paths in the CaptureRules syntax like
+ * "/rest/orders/**; /rest/*&#47;health", requests matching no route being counted by the "other" route. See RequestMetrics.
+ * <p/>
+ * The FilterControl MBean changes the capture of requests, responses and headers, the max dump size, the sampling and
+ * the capture rules while the filter runs. Captures follow the levels of the loggers above by default, and can be
+ * forced on or off. The settings are published as a whole and read once per request, so every exchange is handled
+ * with consistent settings. See FilterSettings.
+ * <p/>
+ * When the webapp starts an asynchronous cycle, the response is dumped once the cycle
+ * completes, with the body written by the asynchronous threads, instead of when the chain returns. See AsyncSupport.
  */
 public class RequestLoggerFilter implements Filter {
 
@@ -54,11 +139,118 @@ public class RequestLoggerFilter implements Filter {
     private static final AtomicInteger counter = new AtomicInteger();
 
     // limit Size in Ko of dumped body
-    private int maxDumpSizeInKB = 500;
+    static final int DEFAULT_MAX_DUMP_SIZE_IN_KB = 500;
     static final int BUFFER_SIZE = 1024;
+    // size of the segments used to capture bodies, and number of free segments kept for reuse
+    static final int SEGMENT_SIZE = 4 * BUFFER_SIZE;
+    static final int MAX_POOLED_SEGMENTS = 1024;
+
+    private CaptureBufferPool capturePool = new CaptureBufferPool(SEGMENT_SIZE, MAX_POOLED_SEGMENTS);
+    // null when captures are only bounded by the max dump size
+    private CaptureBudget captureBudget = null;
+
+    // copy the request body while the webapp reads it instead of reading it up front
+    private boolean streamRequestBody = false;
+
+    // deflate the bodies of the dumps once taken
+    private boolean compressBodies = false;
+
+    // settings which can be changed through JMX, read once per request
+    private final FilterControl control = new FilterControl(new FilterSettings(DEFAULT_MAX_DUMP_SIZE_IN_KB));
+    // removes the secret headers and body fields, null if nothing is redacted
+    private Redactor redactor = null;
+    // paths kept from the JSON bodies, null if bodies are kept whole
+    private JsonProjection projection = null;
+    // null when no metrics are recorded
+    private RequestMetrics metrics = null;
+    // null when every captured exchange is dumped
+    private DumpCondition dumpCondition = null;
+    // null when exchanges are dumped as they come
+    private FlightRecorder flightRecorder = null;
+    // polls the flight recorder signal file, null when there is none
+    private Timer signalFileTimer = null;
+    static final long SIGNAL_FILE_CHECK_PERIOD_MS = 1000;
+
+    private String filterName = RequestLoggerFilter.class.getSimpleName();
+    private final List<ObjectName> mbeanNames = new ArrayList<ObjectName>();
+
+    static final String BODY_NOT_DUMPED = "-- BODY NOT DUMPED, DUMP QUEUE FULL";
+    private DumpFormatter dumpFormatter = new TextDumpFormatter();
+    private DumpSink dumpSink = new Slf4jDumpSink(LOG_REQUEST, LOG_RESPONSE, dumpFormatter);
+    static final int DEFAULT_JOURNAL_FILE_SIZE_IN_MB = 64;
+    static final int DEFAULT_JOURNAL_FILES = 10;
+    // null when dumps are emitted on the request thread
+    private DumpDispatcher dispatcher = null;
 
     public int getMaxDumpSizeInKB() {
-        return maxDumpSizeInKB;
+        return control.getSettings().maxDumpSizeInKB;
+    }
+
+    public boolean isStreamRequestBody() {
+        return streamRequestBody;
+    }
+
+    public boolean isCompressBodies() {
+        return compressBodies;
+    }
+
+    DumpSink getDumpSink() {
+        return dumpSink;
+    }
+
+    DumpFormatter getDumpFormatter() {
+        return dumpFormatter;
+    }
+
+    CaptureBudget getCaptureBudget() {
+        return captureBudget;
+    }
+
+    CaptureBufferPool getCapturePool() {
+        return capturePool;
+    }
+
+    FilterControl getControl() {
+        return control;
+    }
+
+    Sampler getSampler() {
+        return control.getSettings().sampler;
+    }
+
+    FlightRecorder getFlightRecorder() {
+        return flightRecorder;
+    }
+
+    DumpCondition getDumpCondition() {
+        return dumpCondition;
+    }
+
+    CaptureRules getCaptureRules() {
+        return control.getSettings().captureRules;
+    }
+
+    Redactor getRedactor() {
+        return redactor;
+    }
+
+    JsonProjection getProjection() {
+        return projection;
+    }
+
+    RequestMetrics getMetrics() {
+        return metrics;
+    }
+
+    DumpDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * @return number of dumps dropped because the asynchronous dump queue was full
+     */
+    public long getDroppedDumps() {
+        return dispatcher == null ? 0 : dispatcher.getDroppedDumps();
     }
 
     /**
@@ -71,7 +263,10 @@ public class RequestLoggerFilter implements Filter {
      */
     @Override
     public void init(final FilterConfig filterConfig) throws ServletException {
-        // Nothing to do on init.
+        if (filterConfig.getFilterName() != null) {
+            filterName = filterConfig.getFilterName();
+        }
+        int maxDumpSizeInKB = DEFAULT_MAX_DUMP_SIZE_IN_KB;
         String maxDumpSizeStr = null;
         if ((maxDumpSizeStr = filterConfig.getInitParameter("maxDumpSizeInKB")) != null) {
 
@@ -87,11 +282,289 @@ public class RequestLoggerFilter implements Filter {
             }
         }
         logger.warn("RequestLoggerFilter defined with maxDumpSizeInKB to {} KB", maxDumpSizeInKB);
+
+        final String dumpFormatStr = filterConfig.getInitParameter("dumpFormat");
+        if (dumpFormatStr != null) {
+            if ("json".equalsIgnoreCase(dumpFormatStr.trim())) {
+                dumpFormatter = new JsonDumpFormatter();
+            } else if (!"text".equalsIgnoreCase(dumpFormatStr.trim())) {
+                logger.warn("Bad format for dumpFormat parameter expecting text or json:{}", dumpFormatStr);
+            }
+            logger.warn("RequestLoggerFilter defined with dumpFormat to {}", dumpFormatStr);
+        }
+        final String dumpPatternStr = filterConfig.getInitParameter("dumpPattern");
+        if (dumpPatternStr != null) {
+            final PatternDumpFormatter patternDumpFormatter = PatternDumpFormatter.parse(dumpPatternStr);
+            if (patternDumpFormatter != null) {
+                dumpFormatter = patternDumpFormatter;
+                logger.warn("RequestLoggerFilter defined with dumpPattern to {}", dumpPatternStr);
+            }
+        }
+        dumpSink = createDumpSink(filterConfig);
+
+        final String streamRequestBodyStr = filterConfig.getInitParameter("streamRequestBody");
+        if (streamRequestBodyStr != null) {
+            streamRequestBody = Boolean.parseBoolean(streamRequestBodyStr.trim());
+        }
+        logger.warn("RequestLoggerFilter defined with streamRequestBody to {}", streamRequestBody);
+
+        final String compressBodiesStr = filterConfig.getInitParameter("compressBodies");
+        if (compressBodiesStr != null) {
+            compressBodies = Boolean.parseBoolean(compressBodiesStr.trim());
+            logger.warn("RequestLoggerFilter defined with compressBodies to {}", compressBodies);
+        }
+
+        final int captureBudgetInMB = getPositiveIntParameter(filterConfig, "captureBudgetInMB", 0);
+        if (captureBudgetInMB > 0) {
+            captureBudget = new CaptureBudget(captureBudgetInMB * 1024L * 1024L);
+            logger.warn("RequestLoggerFilter defined with captureBudgetInMB to {} MB", captureBudgetInMB);
+        }
+
+        CaptureSpill captureSpill = null;
+        final int spillThresholdInKB = getPositiveIntParameter(filterConfig, "spillThresholdInKB", 0);
+        if (spillThresholdInKB > 0) {
+            final String spillDirectoryStr = filterConfig.getInitParameter("spillDirectory");
+            captureSpill = new CaptureSpill(spillThresholdInKB * 1024,
+                    spillDirectoryStr == null ? null : new File(spillDirectoryStr.trim()));
+            logger.warn("RequestLoggerFilter defined with spillThresholdInKB to {} KB", spillThresholdInKB);
+        }
+
+        if (captureBudget != null || captureSpill != null) {
+            capturePool = new CaptureBufferPool(SEGMENT_SIZE, MAX_POOLED_SEGMENTS, captureBudget, captureSpill);
+        }
+
+        final int offHeapCaptureSizeInMB = getPositiveIntParameter(filterConfig, "offHeapCaptureSizeInMB", 0);
+        if (offHeapCaptureSizeInMB > 0) {
+            capturePool = new OffHeapCaptureBufferPool(SEGMENT_SIZE, offHeapCaptureSizeInMB * 1024L * 1024L,
+                    captureBudget, captureSpill);
+            logger.warn("RequestLoggerFilter defined with offHeapCaptureSizeInMB to {} MB", offHeapCaptureSizeInMB);
+        }
+
+        FilterSettings settings = new FilterSettings(maxDumpSizeInKB);
+        final String captureRulesStr = filterConfig.getInitParameter("captureRules");
+        if (captureRulesStr != null) {
+            try {
+                settings = settings.withCaptureRules(captureRulesStr);
+            } catch (IllegalArgumentException e) {
+                // every rule has been logged as invalid, all the requests are captured
+            }
+            logger.warn("RequestLoggerFilter defined with {} capture rules",
+                    settings.captureRules == null ? 0 : settings.captureRules.size());
+        }
+
+        redactor = Redactor.create(filterConfig.getInitParameter("redactHeaders"),
+                filterConfig.getInitParameter("dropHeaders"), filterConfig.getInitParameter("redactBodyFields"));
+        if (redactor != null) {
+            logger.warn("RequestLoggerFilter defined to redact headers {}, drop headers {} and redact body fields {}",
+                    new Object[]{filterConfig.getInitParameter("redactHeaders"),
+                            filterConfig.getInitParameter("dropHeaders"), filterConfig.getInitParameter("redactBodyFields")});
+        }
+
+        final String projectJsonPathsStr = filterConfig.getInitParameter("projectJsonPaths");
+        if (projectJsonPathsStr != null) {
+            projection = JsonProjection.parse(projectJsonPathsStr, redactor);
+            logger.warn("RequestLoggerFilter defined to project JSON bodies on {}", projectJsonPathsStr);
+        }
+
+        settings = withSampling(settings, filterConfig);
+        control.publish(settings);
+        registerMBean(control, FilterControlMBean.class, "FilterControl");
+
+        final String metricsStr = filterConfig.getInitParameter("metrics");
+        if (metricsStr != null && Boolean.parseBoolean(metricsStr.trim())) {
+            metrics = RequestMetrics.create(filterConfig.getInitParameter("metricsRoutes"));
+            for (RouteMetrics route : metrics.getRoutes()) {
+                registerMBean(route, RouteMetricsMBean.class, "RouteMetrics", ",route=" + ObjectName.quote(route.getRoute()));
+            }
+            logger.warn("RequestLoggerFilter defined with metrics on {} routes", metrics.getRoutes().length);
+        }
+
+        final String dumpOnStatus = filterConfig.getInitParameter("dumpOnStatus");
+        final int dumpOnSlowerThanMs = getPositiveIntParameter(filterConfig, "dumpOnSlowerThanMs", 0);
+        if (dumpOnStatus != null || dumpOnSlowerThanMs > 0) {
+            dumpCondition = DumpCondition.parse(dumpOnStatus, dumpOnSlowerThanMs);
+            logger.warn("RequestLoggerFilter defined to dump only exchanges failing, with status in {} or slower than {} ms",
+                    dumpOnStatus, dumpOnSlowerThanMs);
+        }
+
+        final int flightRecorderSize = getPositiveIntParameter(filterConfig, "flightRecorderSize", 0);
+        if (flightRecorderSize > 0) {
+            final String flightRecorderFileStr = filterConfig.getInitParameter("flightRecorderFile");
+            final File flightRecorderFile = flightRecorderFileStr == null ? null : new File(flightRecorderFileStr.trim());
+            flightRecorder = new FlightRecorder(flightRecorderSize, new DumpDispatcher.Emitter() {
+                @Override
+                public void emit(final Dump dump) {
+                    if (flightRecorderFile == null) {
+                        RequestLoggerFilter.this.emit(dump);
+                    } else {
+                        appendToFile(flightRecorderFile, dump);
+                    }
+                }
+            });
+            final String signalFileStr = filterConfig.getInitParameter("flightRecorderSignalFile");
+            if (signalFileStr != null) {
+                final File signalFile = new File(signalFileStr.trim());
+                final FlightRecorder recorder = flightRecorder;
+                signalFileTimer = new Timer(RequestLoggerFilter.class.getSimpleName() + "-signal-file", true);
+                signalFileTimer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        if (signalFile.exists() && signalFile.delete()) {
+                            recorder.dump();
+                        }
+                    }
+                }, SIGNAL_FILE_CHECK_PERIOD_MS, SIGNAL_FILE_CHECK_PERIOD_MS);
+            }
+            registerMBean(flightRecorder, FlightRecorderMBean.class, "FlightRecorder");
+            logger.warn("RequestLoggerFilter defined with a flight recorder of {} exchanges", flightRecorderSize);
+        }
+
+        final String asyncDumpStr = filterConfig.getInitParameter("asyncDump");
+        if (asyncDumpStr != null && Boolean.parseBoolean(asyncDumpStr.trim())) {
+            final int queueSize = getPositiveIntParameter(filterConfig, "asyncDumpQueueSize", 1024);
+            final int threads = getPositiveIntParameter(filterConfig, "asyncDumpThreads", 1);
+            DumpDispatcher.OverflowPolicy overflowPolicy = DumpDispatcher.OverflowPolicy.DROP;
+            final String overflowPolicyStr = filterConfig.getInitParameter("asyncDumpOverflowPolicy");
+            if (overflowPolicyStr != null) {
+                try {
+                    overflowPolicy = DumpDispatcher.OverflowPolicy.valueOf(overflowPolicyStr.trim().toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    logger.warn("Bad format for asyncDumpOverflowPolicy parameter expecting block, drop or headers:{}", overflowPolicyStr);
+                }
+            }
+            dispatcher = new DumpDispatcher(queueSize, threads, overflowPolicy, new DumpDispatcher.Emitter() {
+                @Override
+                public void emit(final Dump dump) {
+                    RequestLoggerFilter.this.emit(dump);
+                }
+            });
+            dispatcher.start();
+            logger.warn("RequestLoggerFilter defined with asyncDump on {} threads, queue of {} dumps and {} overflow policy",
+                    new Object[]{threads, queueSize, overflowPolicy});
+        }
+    }
+
+    /**
+     * Adds the sampling defined by the samplingRate, samplingProbability and samplingBudgetPerSecond init parameters.
+     */
+    private static FilterSettings withSampling(final FilterSettings settings, final FilterConfig filterConfig) {
+        final int rate = getPositiveIntParameter(filterConfig, "samplingRate", 1);
+        if (rate > 1) {
+            logger.warn("RequestLoggerFilter defined with samplingRate to 1 out of {}", rate);
+        }
+        double probability = 1;
+        final String probabilityStr = filterConfig.getInitParameter("samplingProbability");
+        if (probabilityStr != null) {
+            try {
+                final double value = Double.parseDouble(probabilityStr.trim());
+                if (value >= 0 && value < 1) {
+                    probability = value;
+                    logger.warn("RequestLoggerFilter defined with samplingProbability to {}", probability);
+                } else if (value != 1) {
+                    logger.warn("Bad format for samplingProbability parameter expecting value between 0 and 1:{}", value);
+                }
+            } catch (NumberFormatException e) {
+                logger.warn("Bad format for samplingProbability parameter expecting value between 0 and 1:{}", probabilityStr);
+            }
+        }
+        final int budget = getPositiveIntParameter(filterConfig, "samplingBudgetPerSecond", 0);
+        if (budget > 0) {
+            logger.warn("RequestLoggerFilter defined with samplingBudgetPerSecond to {} per route", budget);
+        }
+        return settings.withSampling(rate, probability, budget);
+    }
+
+    /**
+     * Registers an MBean of this filter in the platform MBean server, it is unregistered on destroy.
+     */
+    private <T> void registerMBean(final T mbean, final Class<T> mbeanInterface, final String type) {
+        registerMBean(mbean, mbeanInterface, type, "");
+    }
+
+    /**
+     * @param keys additional properties of the MBean name, starting with a comma
+     */
+    private <T> void registerMBean(final T mbean, final Class<T> mbeanInterface, final String type, final String keys) {
+        try {
+            final ObjectName name = new ObjectName("fr.xebia.extras:type=" + type + ",filter=" + ObjectName.quote(filterName) + keys);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(mbean, mbeanInterface), name);
+            mbeanNames.add(name);
+        } catch (JMException e) {
+            logger.warn("Could not register {} MBean of filter {}", new Object[]{type, filterName, e});
+        }
+    }
+
+    /**
+     * Builds the sink selected by the dumpSink parameter, logging to the request and response loggers by default.
+     */
+    private DumpSink createDumpSink(final FilterConfig filterConfig) {
+        final String dumpSinkStr = filterConfig.getInitParameter("dumpSink");
+        if (dumpSinkStr != null && "journal".equalsIgnoreCase(dumpSinkStr.trim())) {
+            final String journalDirectoryStr = filterConfig.getInitParameter("journalDirectory");
+            final File journalDirectory = journalDirectoryStr == null
+                    ? new File(System.getProperty("java.io.tmpdir"), filterName + "-journal")
+                    : new File(journalDirectoryStr.trim());
+            final int journalFileSizeInMB = getPositiveIntParameter(filterConfig, "journalFileSizeInMB", DEFAULT_JOURNAL_FILE_SIZE_IN_MB);
+            try {
+                final DumpSink journal = new JournalDumpSink(journalDirectory, journalFileSizeInMB * 1024 * 1024,
+                        getPositiveIntParameter(filterConfig, "journalFiles", DEFAULT_JOURNAL_FILES));
+                logger.warn("RequestLoggerFilter defined with dumpSink to journal in {}", journalDirectory);
+                return journal;
+            } catch (IOException e) {
+                logger.error("IO caught while opening journal in {}, dumps are logged instead", journalDirectory, e);
+            }
+        } else if (dumpSinkStr != null && !"slf4j".equalsIgnoreCase(dumpSinkStr.trim())) {
+            logger.warn("Bad format for dumpSink parameter expecting slf4j or journal:{}", dumpSinkStr);
+        }
+        return new Slf4jDumpSink(LOG_REQUEST, LOG_RESPONSE, dumpFormatter);
+    }
+
+    /**
+     * Reads an optional positive integer init parameter, falling back to the default value when it is missing or invalid.
+     */
+    static int getPositiveIntParameter(final FilterConfig filterConfig, final String name, final int defaultValue) {
+        final String valueStr = filterConfig.getInitParameter(name);
+        if (valueStr != null) {
+            try {
+                final int value = Integer.parseInt(valueStr.trim());
+                if (value > 0) {
+                    return value;
+                }
+                logger.warn("Bad format for {} parameter expecting positive Integer value:{}", name, value);
+            } catch (NumberFormatException e) {
+                logger.warn("Bad format for {} parameter expecting positive Integer value:{}", name, valueStr);
+            }
+        }
+        return defaultValue;
     }
 
     @Override
     public void destroy() {
-        // Nothing to do on destroy.
+        for (ObjectName name : mbeanNames) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                logger.warn("Could not unregister MBean {}", name, e);
+            }
+        }
+        mbeanNames.clear();
+        if (signalFileTimer != null) {
+            signalFileTimer.cancel();
+            signalFileTimer = null;
+        }
+        if (flightRecorder != null) {
+            for (FlightRecorder.Entry entry : flightRecorder.drain()) {
+                entry.release();
+            }
+        }
+        if (dispatcher != null) {
+            if (!dispatcher.stop()) {
+                logger.warn("Dump threads still running when the filter is destroyed, their last dumps are dropped");
+            }
+            dispatcher = null;
+        }
+        // the sink rejects the dumps of the threads still running once it is closed
+        dumpSink.close();
     }
 
     /**
@@ -105,123 +578,305 @@ public class RequestLoggerFilter implements Filter {
      */
     @Override
     public void doFilter(final ServletRequest servletRequest, final ServletResponse servletResponse, final FilterChain filterChain) throws IOException, ServletException {
-        ServletRequest request = servletRequest;
-        ServletResponse response = servletResponse;
-        int id = 0;
+        // the settings may change while the exchange goes on, all its decisions are taken with the current ones
+        final FilterSettings settings = control.getSettings();
+        boolean requestDumped = FilterSettings.captures(settings.requestCapture, LOG_REQUEST);
+        boolean responseDumped = FilterSettings.captures(settings.responseCapture, LOG_RESPONSE);
+        CaptureRules.Rule rule = CaptureRules.DEFAULT;
+        if (requestDumped || responseDumped) {
+            if (settings.captureRules != null) {
+                rule = settings.captureRules.select((HttpServletRequest) servletRequest);
+            }
+            if (rule != null && settings.sampler != null && !settings.sampler.sample((HttpServletRequest) servletRequest)) {
+                rule = null;
+            }
+        } else {
+            rule = null;
+        }
+        final RouteMetrics route = metrics == null ? null : metrics.select((HttpServletRequest) servletRequest);
+        final boolean captured = rule != null;
+        if (!captured) {
+            if (route == null) {
+                // Dumping is disabled, or the request is excluded or not sampled so we just handle the chain
+                filterChain.doFilter(servletRequest, servletResponse);
+                return;
+            }
+            // only the metrics of the exchange are recorded
+            requestDumped = false;
+            responseDumped = false;
+        }
+        final int dumpSizeInKB = !captured ? 0 : rule.maxDumpSizeInKB > 0 ? rule.maxDumpSizeInKB : settings.maxDumpSizeInKB;
+        final boolean withHeaders = captured && FilterSettings.captures(settings.headersCapture, LOG_HEADERS);
 
         // Generate the identifier if dumping is enabled for request and/or response
-        if (LOG_REQUEST.isDebugEnabled() || LOG_RESPONSE.isDebugEnabled()) {
-            id = counter.incrementAndGet();
-        }
+        final int id = captured ? counter.incrementAndGet() : 0;
+        final long start = System.nanoTime();
+        // with a dump condition or a flight recorder, nothing is dumped before the chain returns
+        final boolean deferred = dumpCondition != null || flightRecorder != null;
 
         // Dumping of the request is enabled so build the RequestWrapper and dump the request
-        if (LOG_REQUEST.isDebugEnabled()) {
-            request = new HttpServletRequestLoggingWrapper((HttpServletRequest) servletRequest, maxDumpSizeInKB);
-            dumpRequest((HttpServletRequestLoggingWrapper) request, id);
+        HttpServletRequestLoggingWrapper requestWrapper = null;
+        if (requestDumped) {
+            if (streamRequestBody) {
+                // The request is dumped once the webapp has read its body, or at the latest when the chain returns
+                requestWrapper = new HttpServletRequestLoggingWrapper((HttpServletRequest) servletRequest, dumpSizeInKB, capturePool,
+                        deferred ? null : new HttpServletRequestLoggingWrapper.BodyConsumedListener() {
+                            @Override
+                            public void onBodyConsumed(final HttpServletRequestLoggingWrapper wrapper) {
+                                dumpRequest(wrapper, id, withHeaders);
+                            }
+                        }, projection);
+            } else {
+                requestWrapper = new HttpServletRequestLoggingWrapper((HttpServletRequest) servletRequest, dumpSizeInKB, capturePool);
+                if (!deferred) {
+                    dumpRequest(requestWrapper, id, withHeaders);
+                }
+            }
         }
 
-        if (LOG_RESPONSE.isDebugEnabled()) { // Dumping of the response is enabled so build the wrapper, handle the chain, dump the response, and write it to the outpuStream.
-            response = new HttpServletResponseLoggingWrapper((HttpServletResponse) servletResponse, maxDumpSizeInKB);
-            filterChain.doFilter(request, response);
-            dumpResponse((HttpServletResponseLoggingWrapper) response, id);
-        } else {
-            // Dumping of the response is not needed so we just handle the chain
-            filterChain.doFilter(request, response);
+        // Dumping of the response is enabled, or its status is needed to trigger a dump or by the metrics, so build the wrapper
+        final boolean statusNeeded = route != null
+                || (captured && (dumpCondition != null ? dumpCondition.needsStatus() : flightRecorder != null));
+        HttpServletResponseLoggingWrapper responseWrapper = null;
+        if (responseDumped || statusNeeded) {
+            responseWrapper = new HttpServletResponseLoggingWrapper((HttpServletResponse) servletResponse,
+                    responseDumped ? dumpSizeInKB : 0, capturePool, redactor, responseDumped ? projection : null);
+        }
+
+        Throwable failure = null;
+        try {
+            filterChain.doFilter(requestWrapper != null ? requestWrapper : servletRequest,
+                    responseWrapper != null ? responseWrapper : servletResponse);
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        } catch (ServletException e) {
+            failure = e;
+            throw e;
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } catch (Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            if (failure != null || !finishWhenAsyncComplete(servletRequest, id, start, requestWrapper, responseWrapper,
+                    responseDumped, withHeaders, captured, route)) {
+                finish(servletRequest, id, System.nanoTime() - start, requestWrapper, responseWrapper, responseDumped,
+                        withHeaders, captured, route, failure);
+            }
         }
     }
 
+    /**
+     * Finishes the exchange once its asynchronous cycle is complete, if the webapp started one. Elapsed time, status
+     * and body are then the ones of the whole cycle.
+     *
+     * @return true if the exchange is asynchronous, in which case it must not be finished when the chain returns
+     */
+    private boolean finishWhenAsyncComplete(final ServletRequest servletRequest, final int id, final long start,
+                                            final HttpServletRequestLoggingWrapper requestWrapper,
+                                            final HttpServletResponseLoggingWrapper responseWrapper,
+                                            final boolean responseDumped, final boolean withHeaders,
+                                            final boolean captured, final RouteMetrics route) {
+        return AsyncSupport.whenComplete(servletRequest, new AsyncSupport.CompletionListener() {
+            @Override
+            public void onComplete(final Throwable failure) {
+                finish(servletRequest, id, System.nanoTime() - start, requestWrapper, responseWrapper, responseDumped,
+                        withHeaders, captured, route, failure);
+            }
+        });
+    }
 
     /**
-     * This method handles the dumping of the reponse body, status code and headers if needed
+     * Dumps what has not been dumped yet if the exchange is captured, records its metrics and releases the wrappers.
+     */
+    private void finish(final ServletRequest servletRequest, final int id, final long elapsedNanos,
+                        final HttpServletRequestLoggingWrapper requestWrapper,
+                        final HttpServletResponseLoggingWrapper responseWrapper, final boolean responseDumped,
+                        final boolean withHeaders, final boolean captured, final RouteMetrics route,
+                        final Throwable failure) {
+        final int status = responseWrapper == null ? HttpServletResponse.SC_OK : responseWrapper.getStatus();
+        try {
+            if (captured) {
+                complete(id, ((HttpServletRequest) servletRequest).getRequestURI(), elapsedNanos, requestWrapper,
+                        responseDumped ? responseWrapper : null, withHeaders, failure, status);
+            }
+        } finally {
+            if (route != null) {
+                final long requestBytes = requestWrapper != null
+                        ? requestWrapper.getCapture().getTotal() + requestWrapper.getUnreadBytes()
+                        : Math.max(0, servletRequest.getContentLength());
+                route.record(status, failure != null, requestBytes,
+                        responseWrapper == null ? 0 : responseWrapper.getContentSize(), elapsedNanos);
+            }
+            if (requestWrapper != null) {
+                requestWrapper.release();
+            }
+            if (responseWrapper != null) {
+                responseWrapper.release();
+            }
+        }
+    }
+
+    /**
+     * Dumps what has not been dumped yet once the chain returned.
      *
-     * @param response ResponseWrapper that handled the response populated by the webapp
-     * @param id       Generated unique identifier for the request/response couple
-     */
-    private void dumpResponse(final HttpServletResponseLoggingWrapper response, final int id) {
-        final StringWriter stringWriter = new StringWriter();
-        final PrintWriter printWriter = new PrintWriter(stringWriter);
-        printWriter.print("-- ID: ");
-        printWriter.println(id);
-        printWriter.println(response.getStatusCode());
-        if (LOG_HEADERS.isDebugEnabled()) {
-            final Map<String, List<String>> headers = response.headers;
-            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
-                printWriter.print(header.getKey());
-                printWriter.print(": ");
-                Iterator<String> values = header.getValue().iterator();
-                while (values.hasNext()) {
-                    printWriter.print(values.next());
-                    printWriter.println();
-                    if (values.hasNext()) {
-                        printWriter.print(' ');
-                    }
-                }
+     * @param id           Generated unique identifier for the request/response couple
+     * @param requestURI   path of the request, indexed with the response
+     * @param elapsedNanos time spent in the chain
+     * @param request      RequestWrapper used by the webapp, null if the request is not dumped
+     * @param response     ResponseWrapper used by the webapp, null if the response is not dumped
+     * @param withHeaders  true to dump the headers
+     * @param failure      exception thrown by the chain, null if it returned normally
+     * @param status       status of the response
+     */
+    private void complete(final int id, final String requestURI, final long elapsedNanos,
+                          final HttpServletRequestLoggingWrapper request,
+                          final HttpServletResponseLoggingWrapper response, final boolean withHeaders,
+                          final Throwable failure, final int status) {
+        if (flightRecorder != null) {
+            flightRecorder.record(request == null ? null : compress(redact(project(new RequestDump(request, id, withHeaders, redactor), request))),
+                    response == null ? null : compress(redact(new ResponseDump(response, id, requestURI, withHeaders, elapsedNanos, failure))));
+            final boolean failed = dumpCondition == null
+                    ? failure != null || status >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR
+                    : dumpCondition.matches(status, elapsedNanos, failure);
+            if (failed) {
+                flightRecorder.dump();
+            }
+        } else if (dumpCondition == null) {
+            if (request != null) {
+                // dumps the request if the body has not been fully read in streaming mode, before its response
+                request.finish();
+            }
+            if (response != null && failure == null) {
+                dumpResponse(response, id, requestURI, withHeaders, elapsedNanos, null);
+            }
+        } else if (dumpCondition.matches(status, elapsedNanos, failure)) {
+            if (request != null) {
+                dumpRequest(request, id, withHeaders);
+            }
+            if (response != null) {
+                dumpResponse(response, id, requestURI, withHeaders, elapsedNanos, failure);
             }
         }
-        printWriter.println("-- Begin response body");
+    }
 
-        final String body = response.getContentAsInputString();
-        if (body == null || body.length() == 0) {
-            printWriter.println("-- NO BODY WRITTEN IN RESPONSE");
-        } else {
-            printWriter.println(body);
+    /**
+     * Appends the formatted dump to the file, used to dump the flight recorder.
+     */
+    private void appendToFile(final File file, final Dump dump) {
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+            writer.write(format(dump));
+            writer.write('\n');
+        } catch (IOException e) {
+            logger.error("IO caught while dumping flight recorder to {}", file, e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    logger.error("IO caught while closing flight recorder file {}", file, e);
+                }
+            }
         }
-        printWriter.println();
-        printWriter.println("-- End response body");
-        printWriter.flush();
-        LOG_RESPONSE.debug(stringWriter.toString());
+    }
+
+    /**
+     * This method handles the dumping of the reponse body, status code and headers if needed
+     *
+     * @param response     ResponseWrapper that handled the response populated by the webapp
+     * @param id           Generated unique identifier for the request/response couple
+     * @param requestURI   path of the request, indexed with the response
+     * @param withHeaders  true to dump the headers
+     * @param elapsedNanos time spent in the chain
+     * @param failure      exception thrown by the chain, null if it returned normally
+     */
+    private void dumpResponse(final HttpServletResponseLoggingWrapper response, final int id, final String requestURI,
+                              final boolean withHeaders, final long elapsedNanos, final Throwable failure) {
+        dispatch(compress(redact(new ResponseDump(response, id, requestURI, withHeaders, elapsedNanos, failure))));
     }
 
     /**
      * This method handles the dumping of the request body, method, URL and headers if needed
      *
-     * @param request RequestWrapper used to handle the request by the webapp
-     * @param id      Generated unique identifier for the request/response couple
-     */
-    private void dumpRequest(final HttpServletRequestLoggingWrapper request, final int id) {
-        final StringWriter stringWriter = new StringWriter();
-        final PrintWriter printWriter = new PrintWriter(stringWriter);
-        if ((request.getRemoteUser() == null) || (request.getRemoteUser().trim().length() == 0)) {
-            printWriter.print("Not authenticated");
-        } else {
-            printWriter.print("Authenticated as ");
-            printWriter.println(request.getRemoteUser());
-        }
-        printWriter.print("-- ID: ");
-        printWriter.println(id);
-        printWriter.print(request.getMethod());
-        printWriter.print(" ");
-        printWriter.print(request.getRequestURL());
-        printWriter.print(" ");
-        printWriter.println(request.getProtocol());
-        if (LOG_HEADERS.isDebugEnabled()) {
-            @SuppressWarnings("unchecked")
-            final Enumeration<String> headerNames = request.getHeaderNames();
-            while (headerNames.hasMoreElements()) {
-                final String key = headerNames.nextElement();
-                @SuppressWarnings("unchecked")
-                final Enumeration<String> headerValues = request.getHeaders(key);
-                printWriter.print(key);
-                printWriter.print(": ");
-                while (headerValues.hasMoreElements()) {
-                    printWriter.print(headerValues.nextElement());
-                    printWriter.println();
-                    if (headerValues.hasMoreElements()) {
-                        printWriter.print(' ');
-                    }
-                }
-            }
+     * @param request     RequestWrapper used to handle the request by the webapp
+     * @param id          Generated unique identifier for the request/response couple
+     * @param withHeaders true to dump the headers
+     */
+    private void dumpRequest(final HttpServletRequestLoggingWrapper request, final int id, final boolean withHeaders) {
+        dispatch(compress(redact(project(new RequestDump(request, id, withHeaders, redactor), request))));
+    }
+
+    /**
+     * Projects the body of a buffered JSON request, streamed bodies being projected while they are captured.
+     */
+    private RequestDump project(final RequestDump dump, final HttpServletRequestLoggingWrapper request) {
+        if (projection != null && request.getHeader("Content-Encoding") == null
+                && JsonProjection.isJson(request.getContentType())) {
+            dump.projectBody(projection, dump.maxDumpSize);
+        }
+        return dump;
+    }
+
+    /**
+     * Masks the secret fields of the body, before it is compressed.
+     */
+    private RequestDump redact(final RequestDump dump) {
+        if (redactor != null) {
+            dump.redactBody(redactor, dump.maxDumpSize);
+        }
+        return dump;
+    }
+
+    private ResponseDump redact(final ResponseDump dump) {
+        if (redactor != null) {
+            // the response capture is already limited to the max dump size
+            dump.redactBody(redactor, BodyCapture.UNLIMITED);
+        }
+        return dump;
+    }
+
+    private RequestDump compress(final RequestDump dump) {
+        if (compressBodies) {
+            dump.compressBody(dump.maxDumpSize);
         }
-        printWriter.println("-- Begin request body");
-        final String body = request.getBody();
-        if (body == null || body.length() == 0) {
-            printWriter.println("-- NO BODY FOUND IN REQUEST");
+        return dump;
+    }
+
+    private ResponseDump compress(final ResponseDump dump) {
+        if (compressBodies) {
+            dump.compressBody(BodyCapture.UNLIMITED);
+        }
+        return dump;
+    }
+
+    /**
+     * Emits the dump on the current thread, or hands it over to the dispatcher threads if asyncDump is enabled.
+     */
+    private void dispatch(final Dump dump) {
+        if (dispatcher != null) {
+            dispatcher.dispatch(dump);
         } else {
-            printWriter.println(body);
+            try {
+                emit(dump);
+            } finally {
+                dump.release();
+            }
         }
-        printWriter.println("-- End request body");
-        printWriter.flush();
-        LOG_REQUEST.debug(stringWriter.toString());
     }
 
+    /**
+     * Writes the dump to the sink, the request and response loggers by default.
+     */
+    void emit(final Dump dump) {
+        dumpSink.write(dump);
+    }
+
+    private String format(final Dump dump) {
+        return dump instanceof RequestDump ? dumpFormatter.formatRequest((RequestDump) dump)
+                : dumpFormatter.formatResponse((ResponseDump) dump);
+    }
 }
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Metrics of the requests going through the filter, one RouteMetrics per route defined by the metricsRoutes init
+ * parameter.
+ * <p/>
+ * Routes are separated by ';' or new lines, each route being a path with optional method and contentType lists, in
+ * the syntax of the CaptureRules:
+ * <pre>
+ *   /rest/orders/** method=POST; /rest/orders/**; /rest/*&#47;health
+ * </pre>
+ * The first matching route counts the request, requests matching no route are counted by the "other" route. Without
+ * routes, all the requests are counted by the "all" route.
+ */
+class RequestMetrics {
+
+    static final String ALL = "all";
+    static final String OTHER = "other";
+
+    // matches the routes, null when there is a single route
+    private final CaptureRules rules;
+    // one per route in order, then the other route
+    private final RouteMetrics[] routes;
+
+    private RequestMetrics(final CaptureRules rules, final RouteMetrics[] routes) {
+        this.rules = rules;
+        this.routes = routes;
+    }
+
+    /**
+     * @param specification routes separated by ';' or new lines, may be null
+     * @return the metrics of the valid routes, with a single route counting every request if there is none
+     */
+    static RequestMetrics create(final String specification) {
+        final List<String> names = new ArrayList<String>();
+        final StringBuilder valid = new StringBuilder();
+        if (specification != null) {
+            for (String route : specification.split("[;\\n]")) {
+                route = route.trim();
+                // each route is compiled alone first, so that the rules compiled together are the valid ones in order
+                if (route.length() > 0 && CaptureRules.parse("include " + route) != null) {
+                    names.add(route);
+                    valid.append("include ").append(route).append('\n');
+                }
+            }
+        }
+        if (names.isEmpty()) {
+            return new RequestMetrics(null, new RouteMetrics[]{new RouteMetrics(ALL)});
+        }
+        final RouteMetrics[] routes = new RouteMetrics[names.size() + 1];
+        for (int i = 0; i < names.size(); i++) {
+            routes[i] = new RouteMetrics(names.get(i));
+        }
+        routes[names.size()] = new RouteMetrics(OTHER);
+        return new RequestMetrics(CaptureRules.parse(valid.toString()), routes);
+    }
+
+    /**
+     * @return the metrics of the route of the request
+     */
+    RouteMetrics select(final HttpServletRequest request) {
+        if (rules == null) {
+            return routes[0];
+        }
+        final CaptureRules.Rule rule = rules.match(request);
+        return rule == null ? routes[routes.length - 1] : routes[rule.index];
+    }
+
+    /**
+     * @return the metrics of every route, the other route last
+     */
+    RouteMetrics[] getRoutes() {
+        return routes.clone();
+    }
+}
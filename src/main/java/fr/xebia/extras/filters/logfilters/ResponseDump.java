@@ -0,0 +1,65 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dump of the status, headers and body of a response.
+ */
+class ResponseDump extends Dump {
+
+    // path of the request, null if unknown
+    final String requestURI;
+    final String status;
+    final int statusCode;
+    final long elapsedNanos;
+    // exception thrown by the chain, null if it returned normally
+    final String failure;
+    final Charset charset;
+
+    ResponseDump(final HttpServletResponseLoggingWrapper response, final int id, final String requestURI,
+                 final boolean withHeaders, final long elapsedNanos, final Throwable failure) {
+        super(id, withHeaders ? response.getHeaders() : null, response.getCapture());
+        this.requestURI = requestURI;
+        status = response.getStatusCode();
+        statusCode = response.getStatus();
+        this.elapsedNanos = elapsedNanos;
+        this.failure = failure == null ? null : failure.toString();
+        charset = response.getBodyCharset();
+    }
+
+    /**
+     * Rebuilds a dump read back from a journal.
+     */
+    ResponseDump(final int id, final long timestamp, final Map<String, List<String>> headers, final BodyCapture body,
+                 final String requestURI, final String status, final int statusCode, final long elapsedNanos, final String failure,
+                 final Charset charset) {
+        super(id, timestamp, headers, body);
+        this.requestURI = requestURI;
+        this.status = status;
+        this.statusCode = statusCode;
+        this.elapsedNanos = elapsedNanos;
+        this.failure = failure;
+        this.charset = charset;
+    }
+
+    String getBody() {
+        return body == null ? null : body.toDumpString(BodyCapture.UNLIMITED, charset);
+    }
+}
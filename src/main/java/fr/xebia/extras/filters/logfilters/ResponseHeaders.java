@@ -0,0 +1,291 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Headers set by the webapp on a response, kept in flat arrays by the HttpServletResponseLoggingWrapper.
+ * <p/>
+ * Names are looked up in an open addressing table with an ASCII case insensitive hash, so Content-Type and content-type
+ * are the same header, and the common names are replaced by a shared instance. Every value is an entry of parallel
+ * arrays: int and date values are kept as longs and only formatted when the dump is taken. The arrays are allocated by
+ * the first header, sized for typical responses, and grow when a response has more headers.
+ * <p/>
+ * Methods are synchronized as asynchronous requests may set headers from other threads than the one taking the dump.
+ */
+class ResponseHeaders {
+
+    private static final byte TEXT = 0;
+    private static final byte INT = 1;
+    private static final byte DATE = 2;
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    /**
+     * Header names shared by all responses, the name given by the webapp is replaced by these ones whatever its case.
+     */
+    private static final String[] COMMON_NAMES = {"Accept-Ranges", "Access-Control-Allow-Origin", "Age", "Allow",
+            "Cache-Control", "Connection", "Content-Disposition", "Content-Encoding", "Content-Language",
+            "Content-Length", "Content-Location", "Content-Type", "Date", "ETag", "Expires", "Keep-Alive",
+            "Last-Modified", "Link", "Location", "Pragma", "Retry-After", "Server", "Set-Cookie",
+            "Strict-Transport-Security", "Transfer-Encoding", "Vary", "WWW-Authenticate", "X-Content-Type-Options",
+            "X-Frame-Options", "X-Powered-By", "X-XSS-Protection"};
+    private static final String[] COMMON_TABLE = new String[128];
+
+    static {
+        for (String name : COMMON_NAMES) {
+            int slot = hash(name) & (COMMON_TABLE.length - 1);
+            while (COMMON_TABLE[slot] != null) {
+                slot = (slot + 1) & (COMMON_TABLE.length - 1);
+            }
+            COMMON_TABLE[slot] = name;
+        }
+    }
+
+    private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format;
+        }
+    };
+
+    // names in the order they were first set, and the open addressing table of their index + 1, null until a first name
+    private String[] names;
+    private int[] nameHashes;
+    private int nameCount;
+    private int[] table;
+
+    // values in the order they were set, null until a first value
+    private int[] valueNames;
+    private byte[] valueTypes;
+    private String[] textValues;
+    private long[] numberValues;
+    private int valueCount;
+
+    synchronized void set(final String name, final String value) {
+        put(name, true, TEXT, value, 0);
+    }
+
+    synchronized void add(final String name, final String value) {
+        put(name, false, TEXT, value, 0);
+    }
+
+    synchronized void setInt(final String name, final int value) {
+        put(name, true, INT, null, value);
+    }
+
+    synchronized void addInt(final String name, final int value) {
+        put(name, false, INT, null, value);
+    }
+
+    synchronized void setDate(final String name, final long date) {
+        put(name, true, DATE, null, date);
+    }
+
+    synchronized void addDate(final String name, final long date) {
+        put(name, false, DATE, null, date);
+    }
+
+    /**
+     * Removes every value of a header, used when the webapp sets a null value.
+     */
+    synchronized void remove(final String name) {
+        final int index = find(name, hash(name));
+        if (index >= 0) {
+            removeValues(index);
+        }
+    }
+
+    /**
+     * @return the last value of a header, null if the header has not been set
+     */
+    synchronized String getLast(final String name) {
+        final int index = find(name, hash(name));
+        for (int i = valueCount - 1; index >= 0 && i >= 0; i--) {
+            if (valueNames[i] == index) {
+                return format(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the headers with their values formatted, in the order they were first set
+     */
+    synchronized Map<String, List<String>> toMap() {
+        final Map<String, List<String>> map = new LinkedHashMap<String, List<String>>();
+        final List<?>[] values = new List<?>[nameCount];
+        for (int i = 0; i < valueCount; i++) {
+            @SuppressWarnings("unchecked")
+            List<String> list = (List<String>) values[valueNames[i]];
+            if (list == null) {
+                list = new ArrayList<String>(2);
+                values[valueNames[i]] = list;
+            }
+            list.add(format(i));
+        }
+        for (int i = 0; i < nameCount; i++) {
+            if (values[i] != null) {
+                @SuppressWarnings("unchecked")
+                final List<String> list = (List<String>) values[i];
+                map.put(names[i], list);
+            }
+        }
+        return map;
+    }
+
+    private String format(final int value) {
+        switch (valueTypes[value]) {
+            case INT:
+                return Long.toString(numberValues[value]);
+            case DATE:
+                return DATE_FORMAT.get().format(new Date(numberValues[value]));
+            default:
+                return textValues[value];
+        }
+    }
+
+    private void put(final String name, final boolean replace, final byte type, final String text, final long number) {
+        if (name == null) {
+            return;
+        }
+        final int hash = hash(name);
+        int index = find(name, hash);
+        if (index < 0) {
+            index = addName(name, hash);
+        } else if (replace) {
+            removeValues(index);
+        }
+        if (valueNames == null) {
+            valueNames = new int[INITIAL_CAPACITY];
+            valueTypes = new byte[INITIAL_CAPACITY];
+            textValues = new String[INITIAL_CAPACITY];
+            numberValues = new long[INITIAL_CAPACITY];
+        } else if (valueCount == valueNames.length) {
+            final int capacity = valueCount * 2;
+            valueNames = Arrays.copyOf(valueNames, capacity);
+            valueTypes = Arrays.copyOf(valueTypes, capacity);
+            textValues = Arrays.copyOf(textValues, capacity);
+            numberValues = Arrays.copyOf(numberValues, capacity);
+        }
+        valueNames[valueCount] = index;
+        valueTypes[valueCount] = type;
+        textValues[valueCount] = text;
+        numberValues[valueCount] = number;
+        valueCount++;
+    }
+
+    private void removeValues(final int index) {
+        int kept = 0;
+        for (int i = 0; i < valueCount; i++) {
+            if (valueNames[i] != index) {
+                valueNames[kept] = valueNames[i];
+                valueTypes[kept] = valueTypes[i];
+                textValues[kept] = textValues[i];
+                numberValues[kept] = numberValues[i];
+                kept++;
+            }
+        }
+        for (int i = kept; i < valueCount; i++) {
+            textValues[i] = null;
+        }
+        valueCount = kept;
+    }
+
+    private int find(final String name, final int hash) {
+        if (name == null || nameCount == 0) {
+            return -1;
+        }
+        final int mask = table.length - 1;
+        for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            final int index = table[slot] - 1;
+            if (nameHashes[index] == hash && names[index].equalsIgnoreCase(name)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private int addName(final String name, final int hash) {
+        if (names == null) {
+            names = new String[INITIAL_CAPACITY];
+            nameHashes = new int[INITIAL_CAPACITY];
+            table = new int[INITIAL_CAPACITY * 2];
+        } else if (nameCount == names.length) {
+            names = Arrays.copyOf(names, nameCount * 2);
+            nameHashes = Arrays.copyOf(nameHashes, nameCount * 2);
+            table = new int[names.length * 2];
+            for (int i = 0; i < nameCount; i++) {
+                insert(i);
+            }
+        }
+        names[nameCount] = common(name, hash);
+        nameHashes[nameCount] = hash;
+        insert(nameCount);
+        return nameCount++;
+    }
+
+    private void insert(final int index) {
+        final int mask = table.length - 1;
+        int slot = nameHashes[index] & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = index + 1;
+    }
+
+    /**
+     * @return the shared instance of a common header name, the name itself if it is not a common one
+     */
+    static String common(final String name, final int hash) {
+        final int mask = COMMON_TABLE.length - 1;
+        for (int slot = hash & mask; COMMON_TABLE[slot] != null; slot = (slot + 1) & mask) {
+            if (COMMON_TABLE[slot].equalsIgnoreCase(name)) {
+                return COMMON_TABLE[slot];
+            }
+        }
+        return name;
+    }
+
+    /**
+     * @return hash of the name ignoring the case of ASCII letters, spread so that the low bits can index a table
+     */
+    static int hash(final String name) {
+        if (name == null) {
+            return 0;
+        }
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            hash = 31 * hash + c;
+        }
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histogram of the requests of one route.
+ * <p/>
+ * Every counter is striped: a thread adds to the stripe selected by its id, and readers sum the stripes, so that
+ * threads recording at the same time seldom update the same cache line. The stripes of all the counters are laid out
+ * in a single AtomicLongArray, each stripe being padded.
+ * <p/>
+ * Latencies are counted in log-linear buckets of microseconds, like HdrHistogram: values below 8 have their own
+ * bucket, then every power of two is split in 8 buckets, so a percentile is given with a relative error below 12.5%
+ * whatever the latency, up to 2^40 microseconds. Percentiles are computed by readers only.
+ */
+class RouteMetrics implements RouteMetricsMBean {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    // offsets of the counters in a stripe
+    private static final int REQUESTS = 0;
+    // status classes 1xx to 5xx at offsets 1 to 5
+    private static final int STATUS_CLASSES = 0;
+    private static final int FAILURES = 6;
+    private static final int REQUEST_BYTES = 7;
+    private static final int RESPONSE_BYTES = 8;
+    private static final int LATENCY_SUM = 9;
+    private static final int LATENCY_MAX = 10;
+    private static final int BUCKETS = 11;
+    // a stripe is a multiple of 8 longs followed by a cache line of padding
+    private static final int STRIDE = ((BUCKETS + BUCKET_COUNT + 7) & ~7) + 8;
+    private static final int MAX_STRIPES = 16;
+
+    private final String route;
+    private final int stripeMask;
+    private final AtomicLongArray counters;
+
+    RouteMetrics(final String route) {
+        this.route = route;
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() * 2 && stripes < MAX_STRIPES) {
+            stripes <<= 1;
+        }
+        stripeMask = stripes - 1;
+        counters = new AtomicLongArray(stripes * STRIDE);
+    }
+
+    /**
+     * Records one exchange.
+     *
+     * @param status        status of the response
+     * @param failed        true if the chain threw an exception, the exchange being counted as a 5xx
+     * @param requestBytes  number of bytes of the request body
+     * @param responseBytes number of bytes of the response body
+     * @param elapsedNanos  time spent in the chain
+     */
+    void record(final int status, final boolean failed, final long requestBytes, final long responseBytes,
+                final long elapsedNanos) {
+        final int base = ((int) Thread.currentThread().getId() & stripeMask) * STRIDE;
+        counters.incrementAndGet(base + REQUESTS);
+        final int statusClass = failed ? 5 : status / 100;
+        if (statusClass >= 1 && statusClass <= 5) {
+            counters.incrementAndGet(base + STATUS_CLASSES + statusClass);
+        }
+        if (failed) {
+            counters.incrementAndGet(base + FAILURES);
+        }
+        if (requestBytes > 0) {
+            counters.addAndGet(base + REQUEST_BYTES, requestBytes);
+        }
+        if (responseBytes > 0) {
+            counters.addAndGet(base + RESPONSE_BYTES, responseBytes);
+        }
+        final long micros = Math.max(0, elapsedNanos / 1000);
+        counters.addAndGet(base + LATENCY_SUM, micros);
+        long max = counters.get(base + LATENCY_MAX);
+        while (micros > max && !counters.compareAndSet(base + LATENCY_MAX, max, micros)) {
+            max = counters.get(base + LATENCY_MAX);
+        }
+        counters.incrementAndGet(base + BUCKETS + bucket(micros));
+    }
+
+    /**
+     * @return index of the bucket counting the value
+     */
+    static int bucket(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+        if (exponent == MAX_EXPONENT && value >= 1L << (MAX_EXPONENT + 1)) {
+            return BUCKET_COUNT - 1;
+        }
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return highest value counted by the bucket
+     */
+    static long highestValue(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final int shift = exponent - SUB_BUCKET_BITS;
+        final long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    private long sum(final int offset) {
+        long sum = 0;
+        for (int base = 0; base < counters.length(); base += STRIDE) {
+            sum += counters.get(base + offset);
+        }
+        return sum;
+    }
+
+    /**
+     * @param quantile between 0 and 1
+     * @return highest latency of the bucket holding the quantile, in microseconds, 0 if nothing was recorded
+     */
+    long getLatencyQuantileMicros(final double quantile) {
+        final long[] buckets = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = sum(BUCKETS + i);
+            count += buckets[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), getLatencyMaxMicros());
+            }
+        }
+        return getLatencyMaxMicros();
+    }
+
+    @Override
+    public String getRoute() {
+        return route;
+    }
+
+    @Override
+    public long getRequestCount() {
+        return sum(REQUESTS);
+    }
+
+    @Override
+    public long getStatus1xxCount() {
+        return sum(STATUS_CLASSES + 1);
+    }
+
+    @Override
+    public long getStatus2xxCount() {
+        return sum(STATUS_CLASSES + 2);
+    }
+
+    @Override
+    public long getStatus3xxCount() {
+        return sum(STATUS_CLASSES + 3);
+    }
+
+    @Override
+    public long getStatus4xxCount() {
+        return sum(STATUS_CLASSES + 4);
+    }
+
+    @Override
+    public long getStatus5xxCount() {
+        return sum(STATUS_CLASSES + 5);
+    }
+
+    @Override
+    public long getFailureCount() {
+        return sum(FAILURES);
+    }
+
+    @Override
+    public long getRequestBytes() {
+        return sum(REQUEST_BYTES);
+    }
+
+    @Override
+    public long getResponseBytes() {
+        return sum(RESPONSE_BYTES);
+    }
+
+    @Override
+    public long getLatencyMeanMicros() {
+        final long count = getRequestCount();
+        return count == 0 ? 0 : sum(LATENCY_SUM) / count;
+    }
+
+    @Override
+    public long getLatencyP50Micros() {
+        return getLatencyQuantileMicros(0.5);
+    }
+
+    @Override
+    public long getLatencyP99Micros() {
+        return getLatencyQuantileMicros(0.99);
+    }
+
+    @Override
+    public long getLatencyP999Micros() {
+        return getLatencyQuantileMicros(0.999);
+    }
+
+    @Override
+    public long getLatencyMaxMicros() {
+        long max = 0;
+        for (int base = 0; base < counters.length(); base += STRIDE) {
+            max = Math.max(max, counters.get(base + LATENCY_MAX));
+        }
+        return max;
+    }
+}
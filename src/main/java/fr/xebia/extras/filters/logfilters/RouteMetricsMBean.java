@@ -0,0 +1,66 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+/**
+ * JMX interface of the metrics of one route of the requests going through the RequestLoggerFilter.
+ * Counters are cumulative since the filter was initialized, latencies are in microseconds.
+ */
+public interface RouteMetricsMBean {
+
+    /**
+     * @return path pattern of the route, "other" for the requests matching no route
+     */
+    String getRoute();
+
+    long getRequestCount();
+
+    long getStatus1xxCount();
+
+    long getStatus2xxCount();
+
+    long getStatus3xxCount();
+
+    long getStatus4xxCount();
+
+    /**
+     * @return number of responses with a 5xx status, including the exchanges which threw an exception
+     */
+    long getStatus5xxCount();
+
+    /**
+     * @return number of exchanges which threw an exception
+     */
+    long getFailureCount();
+
+    /**
+     * @return number of bytes of the request bodies read by the webapp, or of their content length when the
+     *         request body is not captured
+     */
+    long getRequestBytes();
+
+    long getResponseBytes();
+
+    long getLatencyMeanMicros();
+
+    long getLatencyP50Micros();
+
+    long getLatencyP99Micros();
+
+    long getLatencyP999Micros();
+
+    long getLatencyMaxMicros();
+}
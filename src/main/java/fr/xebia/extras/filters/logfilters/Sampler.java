@@ -0,0 +1,229 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a request is dumped. Requests that are not sampled go through the filter without being wrapped.
+ * Implementations are called concurrently by the request threads and must not lock.
+ */
+abstract class Sampler {
+
+    abstract boolean sample(HttpServletRequest request);
+
+    /**
+     * Samples one request out of rate.
+     */
+    static class RateSampler extends Sampler {
+        private final int rate;
+        private final AtomicLong counter = new AtomicLong();
+
+        RateSampler(final int rate) {
+            this.rate = rate;
+        }
+
+        @Override
+        boolean sample(final HttpServletRequest request) {
+            return counter.getAndIncrement() % rate == 0;
+        }
+    }
+
+    /**
+     * Samples each request with the given probability, using a xorshift generator per thread.
+     */
+    static class ProbabilisticSampler extends Sampler {
+        private final long threshold;
+        private final ThreadLocal<long[]> seeds = new ThreadLocal<long[]>() {
+            @Override
+            protected long[] initialValue() {
+                final long seed = System.nanoTime() ^ (Thread.currentThread().getId() * 0x9E3779B97F4A7C15L);
+                return new long[]{seed == 0 ? 1 : seed};
+            }
+        };
+
+        ProbabilisticSampler(final double probability) {
+            threshold = (long) (probability * (1L << 53));
+        }
+
+        @Override
+        boolean sample(final HttpServletRequest request) {
+            final long[] seed = seeds.get();
+            long x = seed[0];
+            x ^= x << 13;
+            x ^= x >>> 7;
+            x ^= x << 17;
+            seed[0] = x;
+            return (x >>> 11) < threshold;
+        }
+    }
+
+    /**
+     * Samples at most budget requests per second and per route, the route being the template of the request URI:
+     * segments holding identifiers, those starting with a digit or long ones holding digits, are replaced by '*', so
+     * that /orders/42 and /orders/43 share the budget of /orders/*.
+     * <p/>
+     * Each route has a token bucket of budget tokens refilled at budget tokens per second, implemented as a generic
+     * cell rate algorithm: a single theoretical arrival time per route, moved forward with compare and set.
+     * Once maxRoutes routes are known, the buckets which are full again, as if they were new, are evicted at most once
+     * per second. Until some are, new routes share the same bucket.
+     */
+    static class RouteBudgetSampler extends Sampler {
+        static final String OTHER_ROUTES = "*";
+        // segments holding digits at least this long are identifiers
+        private static final int MIN_ID_LENGTH = 16;
+
+        private final long interval;
+        private final long burst;
+        private final int maxRoutes;
+        private final ConcurrentMap<String, AtomicLong> buckets = new ConcurrentHashMap<String, AtomicLong>();
+        private final AtomicLong lastEviction = new AtomicLong(System.nanoTime());
+
+        RouteBudgetSampler(final int budgetPerSecond, final int maxRoutes) {
+            interval = 1000000000L / budgetPerSecond;
+            burst = interval * budgetPerSecond;
+            this.maxRoutes = maxRoutes;
+        }
+
+        @Override
+        boolean sample(final HttpServletRequest request) {
+            return sample(template(request.getRequestURI()), System.nanoTime());
+        }
+
+        /**
+         * @return the URI without its path parameters, its identifier segments replaced by '*'
+         */
+        static String template(final String uri) {
+            if (uri == null) {
+                return null;
+            }
+            final int end = uri.indexOf(';') < 0 ? uri.length() : uri.indexOf(';');
+            final StringBuilder template = new StringBuilder(end);
+            int start = 0;
+            while (start < end) {
+                int next = uri.indexOf('/', start + 1);
+                if (next < 0 || next > end) {
+                    next = end;
+                }
+                final int segment = uri.charAt(start) == '/' ? start + 1 : start;
+                template.append(uri, start, segment);
+                if (isIdentifier(uri, segment, next)) {
+                    template.append('*');
+                } else {
+                    template.append(uri, segment, next);
+                }
+                start = next;
+            }
+            return template.toString();
+        }
+
+        private static boolean isIdentifier(final String uri, final int start, final int end) {
+            if (start == end) {
+                return false;
+            }
+            if (Character.isDigit(uri.charAt(start))) {
+                return true;
+            }
+            if (end - start < MIN_ID_LENGTH) {
+                return false;
+            }
+            for (int i = start; i < end; i++) {
+                if (Character.isDigit(uri.charAt(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean sample(final String route, final long now) {
+            final AtomicLong bucket = bucket(route == null ? OTHER_ROUTES : route, now);
+            while (true) {
+                final long arrival = bucket.get();
+                final long next = Math.max(arrival, now) + interval;
+                if (next - now > burst) {
+                    return false;
+                }
+                if (bucket.compareAndSet(arrival, next)) {
+                    return true;
+                }
+            }
+        }
+
+        private AtomicLong bucket(final String route, final long now) {
+            AtomicLong bucket = buckets.get(route);
+            if (bucket == null) {
+                if (buckets.size() >= maxRoutes) {
+                    evictFullBuckets(now);
+                }
+                final String key = buckets.size() < maxRoutes ? route : OTHER_ROUTES;
+                bucket = buckets.get(key);
+                if (bucket == null) {
+                    final AtomicLong newBucket = new AtomicLong(now);
+                    bucket = buckets.putIfAbsent(key, newBucket);
+                    if (bucket == null) {
+                        bucket = newBucket;
+                    }
+                }
+            }
+            return bucket;
+        }
+
+        /**
+         * Removes the buckets whose theoretical arrival time has passed: they hold a whole budget again, and behave
+         * like the new bucket created if their route comes back.
+         */
+        private void evictFullBuckets(final long now) {
+            final long last = lastEviction.get();
+            if (now - last < 1000000000L || !lastEviction.compareAndSet(last, now)) {
+                return;
+            }
+            for (Map.Entry<String, AtomicLong> entry : buckets.entrySet()) {
+                if (entry.getValue().get() - now <= 0) {
+                    buckets.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        int getRouteCount() {
+            return buckets.size();
+        }
+    }
+
+    /**
+     * Samples a request only if every sampler does.
+     */
+    static class AllSampler extends Sampler {
+        private final Sampler[] samplers;
+
+        AllSampler(final Sampler... samplers) {
+            this.samplers = samplers;
+        }
+
+        @Override
+        boolean sample(final HttpServletRequest request) {
+            for (Sampler sampler : samplers) {
+                if (!sampler.sample(request)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.slf4j.Logger;
+
+/**
+ * Sink logging the formatted dumps to the request and response loggers of the filter, the default sink.
+ */
+class Slf4jDumpSink implements DumpSink {
+
+    private final Logger requestLogger;
+    private final Logger responseLogger;
+    private final DumpFormatter formatter;
+
+    Slf4jDumpSink(final Logger requestLogger, final Logger responseLogger, final DumpFormatter formatter) {
+        this.requestLogger = requestLogger;
+        this.responseLogger = responseLogger;
+        this.formatter = formatter;
+    }
+
+    @Override
+    public void write(final Dump dump) {
+        if (dump instanceof RequestDump) {
+            requestLogger.debug(formatter.formatRequest((RequestDump) dump));
+        } else {
+            responseLogger.debug(formatter.formatResponse((ResponseDump) dump));
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
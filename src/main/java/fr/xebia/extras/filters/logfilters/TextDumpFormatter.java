@@ -0,0 +1,106 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders dumps as the free text blocks logged by the filter since its first version.
+ */
+class TextDumpFormatter implements DumpFormatter {
+
+    @Override
+    public String formatResponse(final ResponseDump response) {
+        final StringWriter stringWriter = new StringWriter();
+        final PrintWriter printWriter = new PrintWriter(stringWriter);
+        printWriter.print("-- ID: ");
+        printWriter.println(response.id);
+        printWriter.println(response.status);
+        if (response.failure != null) {
+            printWriter.print("-- Exception: ");
+            printWriter.println(response.failure);
+        }
+        printHeaders(printWriter, response.headers);
+        printWriter.println("-- Begin response body");
+
+        final String body = response.getBody();
+        if (response.headersOnly) {
+            printWriter.println(RequestLoggerFilter.BODY_NOT_DUMPED);
+        } else if (body == null || body.length() == 0) {
+            printWriter.println("-- NO BODY WRITTEN IN RESPONSE");
+        } else {
+            printWriter.println(body);
+        }
+        printWriter.println();
+        printWriter.println("-- End response body");
+        printWriter.flush();
+        return stringWriter.toString();
+    }
+
+    @Override
+    public String formatRequest(final RequestDump request) {
+        final StringWriter stringWriter = new StringWriter();
+        final PrintWriter printWriter = new PrintWriter(stringWriter);
+        if ((request.remoteUser == null) || (request.remoteUser.trim().length() == 0)) {
+            printWriter.print("Not authenticated");
+        } else {
+            printWriter.print("Authenticated as ");
+            printWriter.println(request.remoteUser);
+        }
+        printWriter.print("-- ID: ");
+        printWriter.println(request.id);
+        printWriter.print(request.method);
+        printWriter.print(" ");
+        printWriter.print(request.requestURL);
+        printWriter.print(" ");
+        printWriter.println(request.protocol);
+        printHeaders(printWriter, request.headers);
+        printWriter.println("-- Begin request body");
+        final String body = request.getBody();
+        if (request.headersOnly) {
+            printWriter.println(RequestLoggerFilter.BODY_NOT_DUMPED);
+        } else if (body == null || body.length() == 0) {
+            printWriter.println("-- NO BODY FOUND IN REQUEST");
+        } else {
+            printWriter.println(body);
+        }
+        printWriter.println("-- End request body");
+        printWriter.flush();
+        return stringWriter.toString();
+    }
+
+    private static void printHeaders(final PrintWriter printWriter, final Map<String, List<String>> headers) {
+        if (headers == null) {
+            return;
+        }
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            printWriter.print(header.getKey());
+            printWriter.print(": ");
+            Iterator<String> values = header.getValue().iterator();
+            while (values.hasNext()) {
+                printWriter.print(values.next());
+                printWriter.println();
+                if (values.hasNext()) {
+                    printWriter.print(' ');
+                }
+            }
+        }
+    }
+}
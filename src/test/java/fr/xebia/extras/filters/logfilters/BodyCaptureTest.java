@@ -0,0 +1,408 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ *
+ */
+public class BodyCaptureTest {
+
+    @Rule
+    public TemporaryFolder spillDirectory = new TemporaryFolder();
+
+    @Test
+    public void redact_should_copy_body_only_when_it_has_secrets() throws Exception {
+        Redactor redactor = Redactor.create(null, null, "password");
+        CaptureBufferPool pool = new CaptureBufferPool(8, 4);
+        BodyCapture capture = new BodyCapture(100, pool);
+        capture.write("{\"login\":\"bob\"}".getBytes("UTF-8"), 0, 15);
+
+        Assert.assertSame(capture, capture.redact(redactor, BodyCapture.UNLIMITED));
+
+        capture = new BodyCapture(30, pool);
+        byte[] body = "{\"password\":\"s3cr\",\"login\":\"bob\"}".getBytes("UTF-8");
+        capture.write(body, 0, body.length);
+        BodyCapture redacted = capture.redact(redactor, BodyCapture.UNLIMITED);
+
+        Assert.assertEquals("{\"password\":\"****\",\"login\":\"bo", redacted.toDumpString().substring(0, 30));
+        Assert.assertEquals(capture.getTotal(), redacted.getTotal());
+        Assert.assertEquals("Original capture should be left untouched", new String(body, 0, 30, "UTF-8"),
+                new String(capture.toByteArray(), "UTF-8"));
+        capture.release();
+        redacted.release();
+    }
+
+    @Test
+    public void redact_should_copy_only_the_bytes_dumped() throws Exception {
+        Redactor redactor = Redactor.create(null, null, "password");
+        BodyCapture capture = new BodyCapture(BodyCapture.UNLIMITED, new CaptureBufferPool(16, 0));
+        StringBuilder text = new StringBuilder("{\"password\":\"s3cr\",\"items\":[");
+        for (int i = 0; i < 1000; i++) {
+            text.append(i).append(',');
+        }
+        byte[] body = text.append("0],\"password\":\"late\"}").toString().getBytes("UTF-8");
+        capture.write(body, 0, body.length);
+
+        BodyCapture redacted = capture.redact(redactor, 25);
+
+        Assert.assertEquals(25, redacted.size());
+        Assert.assertEquals(body.length, redacted.getTotal());
+        Assert.assertEquals("{\"password\":\"****\",\"items\n-- " + (body.length - 25)
+                + " more bytes skipped from dump by max dump size limit", redacted.toDumpString(BodyCapture.UNLIMITED));
+        redacted.release();
+
+        capture.release();
+        capture = new BodyCapture(BodyCapture.UNLIMITED, new CaptureBufferPool(16, 0));
+        byte[] late = "{\"items\":[1,2,3],\"password\":\"late\"}".getBytes("UTF-8");
+        capture.write(late, 0, late.length);
+        Assert.assertSame("Secrets beyond the bytes dumped should not be scanned", capture, capture.redact(redactor, 15));
+        capture.release();
+    }
+
+    @Test
+    public void redact_should_scan_encoded_body_once_inflated() throws Exception {
+        Redactor redactor = Redactor.create(null, null, "password");
+        Charset utf8 = Charset.forName("UTF-8");
+        for (String encoding : new String[]{"gzip", "deflate"}) {
+            byte[] payload = encode("{\"login\":\"bob\",\"password\":\"s3cr\"}", encoding);
+            BodyCapture capture = new BodyCapture(BodyCapture.UNLIMITED, new CaptureBufferPool(16, 0));
+            capture.write(payload, 0, payload.length);
+            capture.setContentEncoding(BodyCapture.contentEncodingOf(encoding));
+
+            BodyCapture redacted = capture.redact(redactor, BodyCapture.UNLIMITED);
+            Assert.assertEquals(BodyCapture.IDENTITY, redacted.getContentEncoding());
+            Assert.assertEquals("{\"login\":\"bob\",\"password\":\"****\"}", redacted.toDumpString(BodyCapture.UNLIMITED, utf8));
+            redacted.release();
+
+            Assert.assertSame("Secrets beyond the bytes dumped should not be scanned", capture, capture.redact(redactor, 20));
+            capture.release();
+
+            payload = encode("{\"password\":\"s3cr\",\"login\":\"bob\"}", encoding);
+            capture = new BodyCapture(BodyCapture.UNLIMITED, new CaptureBufferPool(16, 0));
+            capture.write(payload, 0, payload.length);
+            capture.setContentEncoding(BodyCapture.contentEncodingOf(encoding));
+            redacted = capture.redact(redactor, 20);
+            String dump = redacted.toDumpString(BodyCapture.UNLIMITED, utf8);
+            Assert.assertEquals(20, redacted.size());
+            Assert.assertTrue(dump, dump.startsWith("{\"password\":\"****\","));
+            redacted.release();
+            capture.release();
+        }
+    }
+
+    @Test
+    public void should_keep_bytes_across_segments() throws Exception {
+        CaptureBufferPool pool = new CaptureBufferPool(8, 4);
+        BodyCapture capture = new BodyCapture(100, pool);
+        byte[] payload = "0123456789abcdefghijklmnopqrstuvwxyz".getBytes();
+
+        capture.write(payload, 0, 10);
+        capture.write(payload[10]);
+        capture.write(payload, 11, payload.length - 11);
+
+        Assert.assertEquals(payload.length, capture.size());
+        Assert.assertArrayEquals(payload, capture.toByteArray());
+        Assert.assertEquals(new String(payload), capture.toDumpString());
+    }
+
+    @Test
+    public void should_stop_keeping_bytes_at_limit_but_count_them() throws Exception {
+        BodyCapture capture = new BodyCapture(10, new CaptureBufferPool(4, 0));
+        byte[] payload = "0123456789abcdefghij".getBytes();
+
+        capture.write(payload, 0, payload.length);
+        capture.write('k');
+
+        Assert.assertEquals(10, capture.size());
+        Assert.assertEquals(21, capture.getTotal());
+        Assert.assertEquals("0123456789\n-- 11 more bytes skipped from dump by max dump size limit", capture.toDumpString());
+    }
+
+    @Test
+    public void should_decode_characters_split_between_segments() throws Exception {
+        String text = "été à la plage €";
+        Charset charset = Charset.defaultCharset();
+        byte[] payload = text.getBytes(charset.name());
+        BodyCapture capture = new BodyCapture(100, new CaptureBufferPool(3, 0));
+
+        capture.write(payload, 0, payload.length);
+
+        Assert.assertEquals(new String(payload, charset.name()), capture.toDumpString());
+    }
+
+    @Test
+    public void truncated_dump_should_stop_on_a_character_boundary() throws Exception {
+        Charset utf8 = Charset.forName("UTF-8");
+        byte[] payload = "aé€b".getBytes(utf8.name());
+        BodyCapture capture = new BodyCapture(100, new CaptureBufferPool(2, 0));
+        capture.write(payload, 0, payload.length);
+
+        Assert.assertEquals("aé\n-- 4 more bytes skipped from dump by max dump size limit", capture.toDumpString(5, utf8));
+        Assert.assertEquals("aé€b", capture.toDumpString(100, utf8));
+        Assert.assertEquals("a\u00c3\u00a9\n-- 4 more bytes skipped from dump by max dump size limit",
+                capture.toDumpString(3, Charset.forName("ISO-8859-1")));
+    }
+
+    @Test
+    public void compressed_capture_should_be_inflated_when_dumped() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            text.append("{\"id\":").append(i).append(",\"status\":\"shipped\"}");
+        }
+        byte[] payload = text.toString().getBytes();
+        BodyCapture capture = new BodyCapture(BodyCapture.UNLIMITED, new CaptureBufferPool(64, 0));
+        capture.write(payload, 0, payload.length);
+
+        BodyCapture compressed = capture.compress(BodyCapture.UNLIMITED);
+        capture.release();
+        Assert.assertTrue(compressed.isCompressed());
+        Assert.assertEquals(payload.length, compressed.size());
+        Assert.assertTrue("Repeated JSON should compress well", compressed.getCompressedSize() * 5 < payload.length);
+        Assert.assertEquals(text.toString(), compressed.toDumpString(BodyCapture.UNLIMITED));
+        Assert.assertEquals("{\"id\":0\n-- " + (payload.length - 7) + " more bytes skipped from dump by max dump size limit",
+                compressed.toDumpString(7));
+
+        compressed.write(payload, 0, 10);
+        Assert.assertEquals("Bytes written after compression are only counted", payload.length + 10, compressed.getTotal());
+        compressed.release();
+    }
+
+    @Test
+    public void compression_should_keep_only_max_bytes() throws Exception {
+        byte[] payload = "0123456789abcdefghij".getBytes();
+        BodyCapture capture = new BodyCapture(BodyCapture.UNLIMITED, new CaptureBufferPool(4, 0));
+        capture.write(payload, 0, payload.length);
+
+        BodyCapture compressed = capture.compress(10);
+        Assert.assertEquals(10, compressed.size());
+        Assert.assertEquals(20, compressed.getTotal());
+        Assert.assertEquals("0123456789", new String(compressed.toByteArray()));
+        Assert.assertEquals("Source capture is left untouched", 20, capture.size());
+        capture.release();
+        compressed.release();
+    }
+
+    private static byte[] encode(final String text, final String encoding) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DeflaterOutputStream out = "gzip".equals(encoding) ? new GZIPOutputStream(bytes) : new DeflaterOutputStream(bytes);
+        out.write(text.getBytes("UTF-8"));
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void encoded_capture_should_be_inflated_when_dumped() throws Exception {
+        Charset utf8 = Charset.forName("UTF-8");
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            text.append("{\"id\":").append(i).append("}");
+        }
+        for (String encoding : new String[]{"gzip", "deflate"}) {
+            byte[] payload = encode(text.toString(), encoding);
+            BodyCapture capture = new BodyCapture(BodyCapture.UNLIMITED, new CaptureBufferPool(16, 0));
+            capture.write(payload, 0, payload.length);
+            capture.setContentEncoding(BodyCapture.contentEncodingOf(encoding));
+
+            Assert.assertEquals("Encoded bytes are kept as they are", payload.length, capture.size());
+            Assert.assertEquals(text.toString(), capture.toDumpString(BodyCapture.UNLIMITED, utf8));
+            String truncated = capture.toDumpString(8, utf8);
+            Assert.assertTrue(truncated, truncated.startsWith("{\"id\":0}\n-- "));
+            capture.release();
+        }
+    }
+
+    @Test
+    public void truncated_gzip_capture_should_dump_bytes_inflated_so_far() throws Exception {
+        byte[] payload = encode("0123456789abcdefghij0123456789abcdefghij", "gzip");
+        BodyCapture capture = new BodyCapture(payload.length - 20, new CaptureBufferPool(16, 0));
+        capture.write(payload, 0, payload.length);
+        capture.setContentEncoding(BodyCapture.GZIP);
+
+        String dump = capture.toDumpString(BodyCapture.UNLIMITED, Charset.forName("UTF-8"));
+        Assert.assertTrue(dump, dump.startsWith("0123456789"));
+        Assert.assertTrue(dump, dump.contains(" more bytes skipped from dump"));
+        capture.release();
+    }
+
+    @Test
+    public void unsupported_encoding_should_not_be_dumped() throws Exception {
+        Assert.assertEquals(BodyCapture.IDENTITY, BodyCapture.contentEncodingOf(null));
+        Assert.assertEquals(BodyCapture.IDENTITY, BodyCapture.contentEncodingOf("Identity"));
+        Assert.assertEquals(BodyCapture.GZIP, BodyCapture.contentEncodingOf("x-gzip"));
+        Assert.assertEquals(BodyCapture.UNSUPPORTED_ENCODING, BodyCapture.contentEncodingOf("br"));
+
+        BodyCapture capture = new BodyCapture(100, new CaptureBufferPool(16, 0));
+        capture.write("binary".getBytes(), 0, 6);
+        capture.setContentEncoding(BodyCapture.UNSUPPORTED_ENCODING);
+        Assert.assertEquals("\n-- 6 more bytes skipped from dump by max dump size limit", capture.toDumpString());
+        capture.release();
+    }
+
+    @Test
+    public void charset_should_be_read_from_content_type() throws Exception {
+        Assert.assertEquals("UTF-8", BodyCapture.charsetParameter("application/json;charset=UTF-8"));
+        Assert.assertEquals("utf-8", BodyCapture.charsetParameter("text/html; Charset=\"utf-8\"; level=1"));
+        Assert.assertNull(BodyCapture.charsetParameter("text/plain"));
+        Assert.assertNull(BodyCapture.charsetParameter(null));
+        Assert.assertEquals(Charset.forName("UTF-8"), BodyCapture.charsetOf("utf-8"));
+        Assert.assertEquals(Charset.defaultCharset(), BodyCapture.charsetOf("no-such-charset"));
+        Assert.assertEquals(Charset.defaultCharset(), BodyCapture.charsetOf(null));
+    }
+
+    @Test
+    public void should_replay_kept_bytes_as_a_stream() throws Exception {
+        BodyCapture capture = new BodyCapture(Integer.MAX_VALUE, new CaptureBufferPool(5, 0));
+        byte[] payload = "0123456789abcdefghij".getBytes();
+        capture.write(payload, 0, payload.length);
+
+        InputStream stream = capture.newInputStream();
+        ByteArrayOutputStream replayed = new ByteArrayOutputStream();
+        byte[] bytes = new byte[7];
+        int n;
+        while ((n = stream.read(bytes, 0, bytes.length)) != -1) {
+            replayed.write(bytes, 0, n);
+        }
+
+        Assert.assertArrayEquals(payload, replayed.toByteArray());
+    }
+
+    @Test
+    public void release_should_give_segments_back_to_the_pool_for_reuse() throws Exception {
+        CaptureBufferPool pool = new CaptureBufferPool(4, 4096);
+        BodyCapture capture = new BodyCapture(100, pool);
+        byte[] payload = "0123456789".getBytes();
+        capture.write(payload, 0, payload.length);
+
+        capture.release();
+        Assert.assertEquals("3 segments should be back in the pool", 3, pool.pooledSegments());
+
+        BodyCapture other = new BodyCapture(100, pool);
+        other.write(payload, 0, payload.length);
+        Assert.assertEquals("Segments should be taken from the pool", 0, pool.pooledSegments());
+        Assert.assertEquals("0123456789", other.toDumpString());
+    }
+
+    @Test
+    public void should_truncate_capture_once_budget_is_exhausted() throws Exception {
+        CaptureBudget budget = new CaptureBudget(8);
+        CaptureBufferPool pool = new CaptureBufferPool(4, 0, budget);
+        BodyCapture capture = new BodyCapture(100, pool);
+        byte[] payload = "0123456789".getBytes();
+
+        capture.write(payload, 0, payload.length);
+
+        Assert.assertTrue(capture.isOverBudget());
+        Assert.assertEquals(8, budget.getReserved());
+        Assert.assertEquals(1, budget.getDegradedCaptures());
+        Assert.assertEquals("01234567\n-- 2 more bytes skipped from dump, capture memory budget exhausted", capture.toDumpString());
+
+        BodyCapture other = new BodyCapture(100, pool);
+        other.write(payload, 0, payload.length);
+        Assert.assertEquals("\n-- 10 more bytes skipped from dump, capture memory budget exhausted", other.toDumpString());
+
+        capture.release();
+        other.release();
+        Assert.assertEquals("Reserved bytes should be given back to the budget", 0, budget.getReserved());
+    }
+
+    @Test
+    public void unlimited_capture_should_keep_all_bytes_beyond_budget() throws Exception {
+        CaptureBudget budget = new CaptureBudget(4);
+        BodyCapture capture = new BodyCapture(BodyCapture.UNLIMITED, new CaptureBufferPool(4, 0, budget));
+        byte[] payload = "0123456789".getBytes();
+
+        capture.write(payload, 0, payload.length);
+
+        Assert.assertArrayEquals(payload, capture.toByteArray());
+        Assert.assertEquals(4, budget.getReserved());
+        capture.release();
+        Assert.assertEquals(0, budget.getReserved());
+    }
+
+    @Test
+    public void unlimited_capture_should_reserve_only_dumped_bytes_and_spill_the_rest() throws Exception {
+        CaptureBudget budget = new CaptureBudget(8);
+        CaptureBufferPool pool = new CaptureBufferPool(4, 0, budget, new CaptureSpill(1024, spillDirectory.getRoot()));
+        BodyCapture capture = new BodyCapture(BodyCapture.UNLIMITED, pool, 4);
+        byte[] payload = "0123456789abcdefghijklmnopqrstuvwxyz".getBytes();
+
+        capture.write(payload, 0, payload.length);
+
+        Assert.assertArrayEquals("Whole body should be kept to be replayed", payload, capture.toByteArray());
+        Assert.assertEquals("Only the dumped bytes should be reserved", 4, budget.getReserved());
+        Assert.assertTrue(capture.isSpilled());
+        Assert.assertFalse(capture.isOverBudget());
+        BodyCapture response = new BodyCapture(4, pool);
+        response.write(payload, 0, 4);
+        Assert.assertFalse("Other captures should still get their budget", response.isOverBudget());
+        capture.release();
+        response.release();
+        Assert.assertEquals(0, budget.getReserved());
+        Assert.assertEquals(0, budget.getDegradedCaptures());
+    }
+
+    @Test
+    public void should_spill_bytes_beyond_threshold_and_replay_them() throws Exception {
+        CaptureBufferPool pool = new CaptureBufferPool(4, 0, null, new CaptureSpill(8, spillDirectory.getRoot()));
+        BodyCapture capture = new BodyCapture(BodyCapture.UNLIMITED, pool);
+        byte[] payload = "0123456789abcdefghijklmnopqrstuvwxyz".getBytes();
+
+        capture.write(payload, 0, 20);
+        capture.write(payload[20]);
+        capture.write(payload, 21, payload.length - 21);
+
+        Assert.assertTrue(capture.isSpilled());
+        Assert.assertEquals(1, spillDirectory.getRoot().listFiles().length);
+        Assert.assertArrayEquals(payload, capture.toByteArray());
+        Assert.assertEquals(new String(payload), capture.toDumpString());
+        Assert.assertEquals("0123456789abcdef\n-- 20 more bytes skipped from dump by max dump size limit", capture.toDumpString(16));
+
+        InputStream stream = capture.newInputStream();
+        Assert.assertEquals(payload.length, stream.available());
+        ByteArrayOutputStream replayed = new ByteArrayOutputStream();
+        byte[] bytes = new byte[5];
+        int n;
+        while ((n = stream.read(bytes, 0, bytes.length)) != -1) {
+            replayed.write(bytes, 0, n);
+        }
+        Assert.assertArrayEquals(payload, replayed.toByteArray());
+
+        capture.release();
+        Assert.assertEquals("Spill file should be deleted on release", 0, spillDirectory.getRoot().listFiles().length);
+    }
+
+    @Test
+    public void should_not_spill_below_threshold() throws Exception {
+        CaptureBufferPool pool = new CaptureBufferPool(4, 0, null, new CaptureSpill(8, spillDirectory.getRoot()));
+        BodyCapture capture = new BodyCapture(100, pool);
+
+        capture.write("01234567".getBytes(), 0, 8);
+
+        Assert.assertFalse(capture.isSpilled());
+        Assert.assertEquals("01234567", capture.toDumpString());
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ *
+ */
+public class CaptureBudgetTest {
+
+    @Test
+    public void should_refuse_reservations_beyond_limit() throws Exception {
+        CaptureBudget budget = new CaptureBudget(10);
+
+        Assert.assertTrue(budget.tryReserve(6));
+        Assert.assertFalse(budget.tryReserve(6));
+        Assert.assertTrue(budget.tryReserve(4));
+        Assert.assertEquals(10, budget.getReserved());
+
+        budget.release(6);
+        Assert.assertTrue(budget.tryReserve(6));
+    }
+
+    @Test
+    public void concurrent_reservations_should_never_exceed_limit() throws Exception {
+        final CaptureBudget budget = new CaptureBudget(1000);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < 8; i++) {
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    int reserved = 0;
+                    for (int j = 0; j < 1000; j++) {
+                        if (budget.tryReserve(1)) {
+                            reserved++;
+                        }
+                    }
+                    return reserved;
+                }
+            }));
+        }
+        int total = 0;
+        for (Future<Integer> result : results) {
+            total += result.get();
+        }
+        executor.shutdown();
+
+        Assert.assertEquals(1000, total);
+        Assert.assertEquals(1000, budget.getReserved());
+    }
+}
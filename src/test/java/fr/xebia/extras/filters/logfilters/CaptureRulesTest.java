@@ -0,0 +1,87 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ *
+ */
+public class CaptureRulesTest {
+
+    @Test
+    public void should_match_literal_wildcard_and_tail_segments() throws Exception {
+        CaptureRules rules = CaptureRules.parse("include /rest/orders; include /rest/*/items; include /admin/**");
+
+        Assert.assertEquals(0, rules.match("/rest/orders", 0, "GET", null).index);
+        Assert.assertEquals(0, rules.match("/rest//orders/", 0, "GET", null).index);
+        Assert.assertEquals(1, rules.match("/rest/users/items", 0, "GET", null).index);
+        Assert.assertEquals(2, rules.match("/admin", 0, "GET", null).index);
+        Assert.assertEquals(2, rules.match("/admin/users/12", 0, "GET", null).index);
+        Assert.assertNull(rules.match("/rest/orders/12", 0, "GET", null));
+        Assert.assertNull(rules.match("/rest/users/items/12", 0, "GET", null));
+        Assert.assertNull(rules.match("/other", 0, "GET", null));
+    }
+
+    @Test
+    public void first_matching_rule_should_win() throws Exception {
+        CaptureRules rules = CaptureRules.parse("exclude /rest/*/health\ninclude /rest/** maxDumpSizeInKB=10");
+
+        Assert.assertFalse(rules.match("/rest/orders/health", 0, "GET", null).include);
+        CaptureRules.Rule rule = rules.match("/rest/orders/12", 0, "GET", null);
+        Assert.assertTrue(rule.include);
+        Assert.assertEquals(10, rule.maxDumpSizeInKB);
+    }
+
+    @Test
+    public void should_match_methods_and_content_types() throws Exception {
+        CaptureRules rules = CaptureRules.parse("include /rest/** method=POST,PUT contentType=application/json,text/*");
+
+        Assert.assertNotNull(rules.match("/rest/orders", 0, "POST", "application/json; charset=UTF-8"));
+        Assert.assertNotNull(rules.match("/rest/orders", 0, "put", "text/plain"));
+        Assert.assertNull(rules.match("/rest/orders", 0, "GET", "application/json"));
+        Assert.assertNull(rules.match("/rest/orders", 0, "POST", "application/jsonp"));
+        Assert.assertNull(rules.match("/rest/orders", 0, "POST", null));
+    }
+
+    @Test
+    public void select_should_skip_requests_matching_no_include_rule() throws Exception {
+        HttpServletRequest request = request("/app", "/app/rest/orders");
+
+        Assert.assertNotNull(CaptureRules.parse("include /rest/orders").select(request));
+        Assert.assertNull(CaptureRules.parse("include /rest/users").select(request));
+        Assert.assertNull(CaptureRules.parse("exclude /rest/orders").select(request));
+        Assert.assertSame(CaptureRules.DEFAULT, CaptureRules.parse("exclude /rest/users").select(request));
+    }
+
+    @Test
+    public void should_ignore_invalid_rules() throws Exception {
+        Assert.assertNull(CaptureRules.parse("capture /rest; include /rest/**/items; include /rest unknown=1"));
+        Assert.assertEquals(1, CaptureRules.parse("include /rest maxDumpSizeInKB=0; include /rest/orders").size());
+    }
+
+    private static HttpServletRequest request(String contextPath, String uri) {
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getContextPath()).thenReturn(contextPath);
+        Mockito.when(request.getRequestURI()).thenReturn(uri);
+        Mockito.when(request.getMethod()).thenReturn("GET");
+        return request;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+/**
+ *
+ */
+public class DumpConditionTest {
+
+    @Test
+    public void should_match_status_codes_and_classes() throws Exception {
+        DumpCondition condition = DumpCondition.parse("5xx, 404", 0);
+
+        Assert.assertTrue(condition.needsStatus());
+        Assert.assertTrue(condition.matches(500, 0, null));
+        Assert.assertTrue(condition.matches(503, 0, null));
+        Assert.assertTrue(condition.matches(404, 0, null));
+        Assert.assertFalse(condition.matches(200, Long.MAX_VALUE, null));
+        Assert.assertFalse(condition.matches(401, 0, null));
+    }
+
+    @Test
+    public void should_match_slow_exchanges() throws Exception {
+        DumpCondition condition = DumpCondition.parse(null, 100);
+
+        Assert.assertFalse(condition.needsStatus());
+        Assert.assertFalse(condition.matches(500, 100000000L, null));
+        Assert.assertTrue(condition.matches(200, 100000001L, null));
+    }
+
+    @Test
+    public void should_always_match_failing_exchanges() throws Exception {
+        DumpCondition condition = DumpCondition.parse("5xx", 100);
+
+        Assert.assertTrue(condition.matches(200, 0, new IOException("Fail")));
+    }
+
+    @Test
+    public void should_ignore_invalid_statuses() throws Exception {
+        DumpCondition condition = DumpCondition.parse("5xx,abc,999", 0);
+
+        Assert.assertTrue(condition.matches(500, 0, null));
+        Assert.assertFalse(condition.matches(999, 0, null));
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class DumpDispatcherTest {
+
+    @Test
+    public void should_emit_dumps_on_background_thread_and_release_them() throws Exception {
+        final List<String> threads = new CopyOnWriteArrayList<String>();
+        DumpDispatcher dispatcher = new DumpDispatcher(4, 1, DumpDispatcher.OverflowPolicy.DROP, new DumpDispatcher.Emitter() {
+            @Override
+            public void emit(Dump dump) {
+                threads.add(Thread.currentThread().getName());
+            }
+        });
+        dispatcher.start();
+        CaptureBufferPool pool = new CaptureBufferPool(16, 4096);
+        BodyCapture body = capture(pool);
+
+        dispatcher.dispatch(new TestDump(1, body));
+        body.release();
+        Assert.assertTrue("Threads should terminate", dispatcher.stop());
+
+        Assert.assertEquals(1, threads.size());
+        Assert.assertEquals("RequestLoggerFilter-dump-0", threads.get(0));
+        Assert.assertEquals("Body should be released once emitted", 1, pool.pooledSegments());
+    }
+
+    @Test
+    public void drop_policy_should_count_dumps_dropped_when_queue_is_full() throws Exception {
+        final CountDownLatch emitting = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        DumpDispatcher dispatcher = new DumpDispatcher(1, 1, DumpDispatcher.OverflowPolicy.DROP, blockingEmitter(emitting, blocked));
+        dispatcher.start();
+
+        dispatcher.dispatch(new TestDump(1, null));
+        Assert.assertTrue(emitting.await(1, TimeUnit.SECONDS));
+        dispatcher.dispatch(new TestDump(2, null));
+        dispatcher.dispatch(new TestDump(3, null));
+        dispatcher.dispatch(new TestDump(4, null));
+        blocked.countDown();
+        dispatcher.stop();
+
+        Assert.assertEquals(2, dispatcher.getDroppedDumps());
+    }
+
+    @Test
+    public void headers_policy_should_emit_without_body_on_request_thread_when_queue_is_full() throws Exception {
+        final CountDownLatch emitting = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        DumpDispatcher dispatcher = new DumpDispatcher(1, 1, DumpDispatcher.OverflowPolicy.HEADERS, blockingEmitter(emitting, blocked));
+        dispatcher.start();
+
+        dispatcher.dispatch(new TestDump(1, null));
+        Assert.assertTrue(emitting.await(1, TimeUnit.SECONDS));
+        dispatcher.dispatch(new TestDump(2, null));
+        TestDump degraded = new TestDump(3, capture(CaptureBufferPool.UNPOOLED));
+        dispatcher.dispatch(degraded);
+        blocked.countDown();
+        dispatcher.stop();
+
+        Assert.assertEquals(0, dispatcher.getDroppedDumps());
+        Assert.assertEquals(1, dispatcher.getDegradedDumps());
+        Assert.assertTrue(degraded.headersOnly);
+        Assert.assertNull(degraded.body);
+    }
+
+    @Test
+    public void dispatch_should_truncate_body_to_max_dump_size_before_queueing() throws Exception {
+        final List<String> bodies = new CopyOnWriteArrayList<String>();
+        DumpDispatcher dispatcher = new DumpDispatcher(4, 1, DumpDispatcher.OverflowPolicy.DROP, new DumpDispatcher.Emitter() {
+            @Override
+            public void emit(Dump dump) {
+                bodies.add(dump.body.toDumpString());
+            }
+        });
+        CaptureBufferPool pool = new CaptureBufferPool(16, 4096);
+        BodyCapture body = capture(pool);
+        TestDump dump = new TestDump(1, body) {
+            @Override
+            int getMaxBodySize() {
+                return 2;
+            }
+        };
+
+        dispatcher.dispatch(dump);
+        body.release();
+        Assert.assertEquals("Queued dump should not hold the capture", 1, pool.pooledSegments());
+        Assert.assertEquals(2, dump.body.size());
+        dispatcher.start();
+        dispatcher.stop();
+
+        Assert.assertEquals(Arrays.asList("bo\n-- 2 more bytes skipped from dump by max dump size limit"), bodies);
+    }
+
+    private static DumpDispatcher.Emitter blockingEmitter(final CountDownLatch emitting, final CountDownLatch blocked) {
+        return new DumpDispatcher.Emitter() {
+            @Override
+            public void emit(Dump dump) {
+                if (dump.id == 1) {
+                    emitting.countDown();
+                    try {
+                        blocked.await(1, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+    }
+
+    private static BodyCapture capture(CaptureBufferPool pool) {
+        BodyCapture body = new BodyCapture(100, pool);
+        body.write("body".getBytes(), 0, 4);
+        return body;
+    }
+
+    static class TestDump extends Dump {
+        TestDump(int id, BodyCapture body) {
+            super(id, null, body);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.slf4j.Logger;
+
+public class FilterControlTest {
+
+    @Test
+    public void captures_should_follow_logger_unless_forced() {
+        Logger logger = Mockito.mock(Logger.class);
+        Mockito.when(logger.isDebugEnabled()).thenReturn(true);
+
+        Assert.assertTrue(FilterSettings.captures(FilterSettings.Capture.LOGGER, logger));
+        Assert.assertFalse(FilterSettings.captures(FilterSettings.Capture.OFF, logger));
+        Mockito.when(logger.isDebugEnabled()).thenReturn(false);
+        Assert.assertFalse(FilterSettings.captures(FilterSettings.Capture.LOGGER, logger));
+        Assert.assertTrue(FilterSettings.captures(FilterSettings.captureMode(" ON "), logger));
+    }
+
+    @Test
+    public void changes_should_publish_new_settings() {
+        FilterControl control = new FilterControl(new FilterSettings(500));
+        FilterSettings initial = control.getSettings();
+
+        control.setResponseCapture("off");
+        control.setMaxDumpSizeInKB(42);
+        control.setCaptureRules("include /rest/**");
+
+        FilterSettings settings = control.getSettings();
+        Assert.assertNotSame(initial, settings);
+        Assert.assertEquals("Published settings should not change", 500, initial.maxDumpSizeInKB);
+        Assert.assertEquals("logger", control.getRequestCapture());
+        Assert.assertEquals("off", control.getResponseCapture());
+        Assert.assertEquals(42, settings.maxDumpSizeInKB);
+        Assert.assertEquals(1, settings.captureRules.size());
+        Assert.assertEquals("include /rest/**", control.getCaptureRules());
+
+        control.setCaptureRules("");
+        Assert.assertNull(control.getSettings().captureRules);
+        Assert.assertNull(control.getCaptureRules());
+    }
+
+    @Test
+    public void sampling_should_be_kept_by_other_changes() {
+        FilterControl control = new FilterControl(new FilterSettings(500));
+        Assert.assertNull(control.getSettings().sampler);
+
+        control.setSamplingRate(10);
+        Sampler sampler = control.getSettings().sampler;
+        Assert.assertTrue(sampler instanceof Sampler.RateSampler);
+        control.setHeadersCapture("on");
+        Assert.assertSame(sampler, control.getSettings().sampler);
+
+        control.setSamplingProbability(0.5);
+        Assert.assertTrue(control.getSettings().sampler instanceof Sampler.AllSampler);
+        control.setSamplingRate(1);
+        Assert.assertTrue(control.getSettings().sampler instanceof Sampler.ProbabilisticSampler);
+        Assert.assertEquals(0.5, control.getSamplingProbability(), 0);
+    }
+
+    @Test
+    public void invalid_changes_should_keep_current_settings() {
+        FilterControl control = new FilterControl(new FilterSettings(500));
+        FilterSettings initial = control.getSettings();
+        String[] invalid = {"mode", "size", "rate", "probability", "budget", "rules"};
+        for (String change : invalid) {
+            try {
+                if ("mode".equals(change)) {
+                    control.setRequestCapture("always");
+                } else if ("size".equals(change)) {
+                    control.setMaxDumpSizeInKB(0);
+                } else if ("rate".equals(change)) {
+                    control.setSamplingRate(0);
+                } else if ("probability".equals(change)) {
+                    control.setSamplingProbability(1.5);
+                } else if ("budget".equals(change)) {
+                    control.setSamplingBudgetPerSecond(-1);
+                } else {
+                    control.setCaptureRules("include");
+                }
+                Assert.fail("Invalid " + change + " should be rejected");
+            } catch (IllegalArgumentException e) {
+                Assert.assertSame(initial, control.getSettings());
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ */
+public class FlightRecorderTest {
+
+    private final CaptureBufferPool pool = new CaptureBufferPool(RequestLoggerFilter.SEGMENT_SIZE, 4096);
+
+    private RequestDump requestDump(final int id) throws Exception {
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getInputStream()).thenReturn(new HttpServletRequestLoggingWrapperTest().getStreamForString("payload"));
+        HttpServletRequestLoggingWrapper wrapper = new HttpServletRequestLoggingWrapper(request, 1, pool);
+        RequestDump dump = new RequestDump(wrapper, id, false);
+        wrapper.release();
+        return dump;
+    }
+
+    @Test
+    public void record_should_replace_and_release_oldest_exchange() throws Exception {
+        FlightRecorder recorder = new FlightRecorder(2, null);
+
+        recorder.record(requestDump(1), null);
+        recorder.record(requestDump(2), null);
+        Assert.assertEquals(2, recorder.getRecordedExchanges());
+        Assert.assertEquals(0, pool.pooledSegments());
+
+        recorder.record(requestDump(3), null);
+        Assert.assertEquals(2, recorder.getRecordedExchanges());
+        Assert.assertEquals("Oldest exchange should be released", 1, pool.pooledSegments());
+    }
+
+    @Test
+    public void drain_should_return_exchanges_oldest_first() throws Exception {
+        FlightRecorder recorder = new FlightRecorder(3, null);
+        for (int i = 1; i <= 5; i++) {
+            recorder.record(requestDump(i), null);
+        }
+
+        List<FlightRecorder.Entry> entries = recorder.drain();
+        Assert.assertEquals(3, entries.size());
+        Assert.assertEquals(3, entries.get(0).request.id);
+        Assert.assertEquals(4, entries.get(1).request.id);
+        Assert.assertEquals(5, entries.get(2).request.id);
+        Assert.assertEquals(0, recorder.getRecordedExchanges());
+    }
+
+    @Test
+    public void dump_should_emit_and_release_recorded_exchanges() throws Exception {
+        final List<Dump> dumps = new ArrayList<Dump>();
+        FlightRecorder recorder = new FlightRecorder(4, new DumpDispatcher.Emitter() {
+            @Override
+            public void emit(Dump dump) {
+                dumps.add(dump);
+            }
+        });
+        recorder.record(requestDump(1), null);
+        recorder.record(requestDump(2), null);
+
+        Assert.assertEquals(2, recorder.dump());
+        Assert.assertEquals(2, dumps.size());
+        Assert.assertEquals(0, recorder.getRecordedExchanges());
+        Assert.assertEquals("Dumped exchanges should be released", 2, pool.pooledSegments());
+        Assert.assertEquals(0, recorder.dump());
+    }
+
+    @Test
+    public void record_should_keep_only_max_dump_size_of_a_large_upload() throws Exception {
+        StringBuilder upload = new StringBuilder();
+        while (upload.length() < 20 * RequestLoggerFilter.SEGMENT_SIZE) {
+            upload.append("0123456789");
+        }
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getInputStream()).thenReturn(new HttpServletRequestLoggingWrapperTest().getStreamForString(upload.toString()));
+        HttpServletRequestLoggingWrapper wrapper = new HttpServletRequestLoggingWrapper(request, 1, pool);
+        int pooled = pool.pooledSegments();
+        FlightRecorder recorder = new FlightRecorder(2, null);
+
+        recorder.record(new RequestDump(wrapper, 1, false), null);
+        wrapper.release();
+
+        BodyCapture kept = recorder.drain().get(0).request.body;
+        Assert.assertEquals("Entry should keep max dump size bytes", 1000, kept.size());
+        Assert.assertEquals(upload.length(), kept.getTotal());
+        Assert.assertFalse(kept.isSpilled());
+        Assert.assertTrue("Upload segments should be back in the pool", pool.pooledSegments() >= pooled + 20);
+    }
+}
@@ -17,12 +17,18 @@ package fr.xebia.extras.filters.logfilters;
 
 import junit.framework.Assert;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
 import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
@@ -84,6 +90,205 @@ public class HttpServletRequestLoggingWrapperTest {
         Assert.assertEquals("Wrapper should give complete stream", HUGE_PAYLOAD, new String(bytes, 0, ln));
     }
 
+    @Test
+    public void streaming_should_not_read_body_before_the_application() throws Exception {
+
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        HttpServletRequestLoggingWrapper wrapper = new HttpServletRequestLoggingWrapper(request, 12, CaptureBufferPool.UNPOOLED, null);
+        Mockito.verify(request, Mockito.never()).getInputStream();
+        Assert.assertEquals("Nothing read so nothing captured", "", wrapper.getBody());
+    }
+
+    @Test
+    public void streaming_should_capture_body_read_by_the_application_and_notify_once() throws Exception {
+
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getInputStream()).thenReturn(getStreamForString(SMALL_PAYLOAD));
+        Mockito.when(request.getContentLength()).thenReturn(SMALL_PAYLOAD.length());
+        final AtomicInteger notifications = new AtomicInteger();
+        HttpServletRequestLoggingWrapper wrapper = new HttpServletRequestLoggingWrapper(request, 12, CaptureBufferPool.UNPOOLED, new HttpServletRequestLoggingWrapper.BodyConsumedListener() {
+            @Override
+            public void onBodyConsumed(HttpServletRequestLoggingWrapper request) {
+                notifications.incrementAndGet();
+            }
+        });
+
+        byte[] bytes = new byte[100];
+        int ln = wrapper.getInputStream().read(bytes);
+        Assert.assertEquals("Application should read the body", SMALL_PAYLOAD, new String(bytes, 0, ln));
+        Assert.assertEquals("Listener should be notified when content length is reached", 1, notifications.get());
+        Assert.assertEquals("Body of the Request and result body should match", SMALL_PAYLOAD, wrapper.getBody());
+
+        wrapper.finish();
+        Assert.assertEquals("Listener should be notified only once", 1, notifications.get());
+    }
+
+    @Test
+    public void streaming_should_capture_body_read_from_read_listener() throws Exception {
+
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        NonBlockingInputStream containerStream = new NonBlockingInputStream(SMALL_PAYLOAD, false);
+        Mockito.when(request.getInputStream()).thenReturn(containerStream);
+        Mockito.when(request.getContentLength()).thenReturn(-1);
+        final AtomicInteger notifications = new AtomicInteger();
+        HttpServletRequestLoggingWrapper wrapper = new HttpServletRequestLoggingWrapper(request, 12, CaptureBufferPool.UNPOOLED, new HttpServletRequestLoggingWrapper.BodyConsumedListener() {
+            @Override
+            public void onBodyConsumed(HttpServletRequestLoggingWrapper request) {
+                notifications.incrementAndGet();
+            }
+        });
+
+        final ServletInputStream in = wrapper.getInputStream();
+        final StringBuilder read = new StringBuilder();
+        final AtomicInteger allDataRead = new AtomicInteger();
+        in.setReadListener(new ReadListener() {
+            @Override
+            public void onDataAvailable() throws IOException {
+                byte[] bytes = new byte[4];
+                while (in.isReady() && !in.isFinished()) {
+                    int n = in.read(bytes);
+                    read.append(new String(bytes, 0, n));
+                }
+            }
+
+            @Override
+            public void onAllDataRead() {
+                allDataRead.incrementAndGet();
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                Assert.fail(t.toString());
+            }
+        });
+        containerStream.dataAvailable();
+
+        Assert.assertEquals(SMALL_PAYLOAD, read.toString());
+        Assert.assertEquals(1, allDataRead.get());
+        Assert.assertEquals("Listener should be notified once all data is read", 1, notifications.get());
+        Assert.assertEquals(SMALL_PAYLOAD, wrapper.getBody());
+    }
+
+    @Test
+    public void buffered_body_should_be_given_to_read_listener_from_async_context() throws Exception {
+
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getInputStream()).thenReturn(getStreamForString(SMALL_PAYLOAD));
+        Mockito.when(request.isAsyncStarted()).thenReturn(true);
+        AsyncContext asyncContext = Mockito.mock(AsyncContext.class);
+        Mockito.when(request.getAsyncContext()).thenReturn(asyncContext);
+        HttpServletRequestLoggingWrapper wrapper = new HttpServletRequestLoggingWrapper(request, 12);
+
+        final ServletInputStream in = wrapper.getInputStream();
+        final StringBuilder read = new StringBuilder();
+        in.setReadListener(new ReadListener() {
+            @Override
+            public void onDataAvailable() throws IOException {
+                byte[] bytes = new byte[100];
+                read.append(new String(bytes, 0, in.read(bytes)));
+            }
+
+            @Override
+            public void onAllDataRead() {
+                read.append(" - done");
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                Assert.fail(t.toString());
+            }
+        });
+        Assert.assertEquals("Listener should not be called from setReadListener", "", read.toString());
+        ArgumentCaptor<Runnable> replay = ArgumentCaptor.forClass(Runnable.class);
+        Mockito.verify(asyncContext).start(replay.capture());
+        replay.getValue().run();
+
+        Assert.assertEquals(SMALL_PAYLOAD + " - done", read.toString());
+        Assert.assertTrue(in.isFinished());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void buffered_body_should_refuse_read_listener_outside_async_mode() throws Exception {
+
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getInputStream()).thenReturn(getStreamForString(SMALL_PAYLOAD));
+        HttpServletRequestLoggingWrapper wrapper = new HttpServletRequestLoggingWrapper(request, 12);
+
+        wrapper.getInputStream().setReadListener(Mockito.mock(ReadListener.class));
+    }
+
+    /**
+     * Container stream of the Servlet 3.1 API, data being available once dataAvailable() is called.
+     */
+    public static class NonBlockingInputStream extends ServletInputStream {
+        private final ByteArrayInputStream bytes;
+        private ReadListener listener;
+        private boolean available;
+
+        NonBlockingInputStream(String payload, boolean available) {
+            this.bytes = new ByteArrayInputStream(payload.getBytes());
+            this.available = available;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return available ? bytes.read() : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return available ? bytes.read(b, off, len) : 0;
+        }
+
+        public boolean isReady() {
+            return available && bytes.available() > 0;
+        }
+
+        public boolean isFinished() {
+            return available && bytes.available() == 0;
+        }
+
+        public void setReadListener(ReadListener listener) {
+            this.listener = listener;
+        }
+
+        void dataAvailable() throws IOException {
+            available = true;
+            listener.onDataAvailable();
+            listener.onAllDataRead();
+        }
+    }
+
+    @Test
+    public void streaming_should_count_unread_bytes_without_reading_them() throws Exception {
+
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getInputStream()).thenReturn(getStreamForString(HUGE_PAYLOAD));
+        Mockito.when(request.getContentLength()).thenReturn(HUGE_PAYLOAD.length());
+        HttpServletRequestLoggingWrapper wrapper = new HttpServletRequestLoggingWrapper(request, 12, CaptureBufferPool.UNPOOLED, null);
+
+        byte[] bytes = new byte[80];
+        int ln = wrapper.getInputStream().read(bytes);
+        wrapper.finish();
+
+        Assert.assertEquals(80, ln);
+        Assert.assertEquals(HUGE_PAYLOAD.length() - 80, wrapper.getUnreadBytes());
+        Assert.assertTrue("Unread bytes should be reported", wrapper.getBody().endsWith("-- 2800 more bytes not read by the application"));
+    }
+
+    @Test
+    public void streaming_should_limit_caught_body_to_maxDump_but_not_limit_stream() throws Exception {
+
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getInputStream()).thenReturn(getStreamForString(HUGE_PAYLOAD));
+        Mockito.when(request.getContentLength()).thenReturn(-1);
+        HttpServletRequestLoggingWrapper wrapper = new HttpServletRequestLoggingWrapper(request, 1, CaptureBufferPool.UNPOOLED, null);
+
+        BufferedReader reader = wrapper.getReader();
+        Assert.assertEquals("Wrapper should give complete stream", HUGE_PAYLOAD, reader.readLine());
+        Assert.assertTrue("Body String should be limited", wrapper.getBody().contains("-- 1880 more bytes skipped from dump by max dump size limit"));
+    }
+
     ServletInputStream getStreamForString(String payloadString) {
         final ByteArrayInputStream payload = new ByteArrayInputStream(payloadString != null ? payloadString.getBytes() : new byte[0]);
 
@@ -92,10 +297,37 @@ public class HttpServletRequestLoggingWrapperTest {
             public int read() throws IOException {
                 return payload.read();
             }
+
+            public boolean isFinished() {
+                return payload.available() == 0;
+            }
+
+            public boolean isReady() {
+                return true;
+            }
+
+            public void setReadListener(ReadListener listener) {
+                throw new IllegalStateException("Not an asynchronous request");
+            }
         };
     }
 
 
+    @Test
+    public void should_fail_reading_body_which_could_not_be_spilled() throws Exception {
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getInputStream()).thenReturn(getStreamForString(SMALL_PAYLOAD));
+        CaptureSpill spill = new CaptureSpill(4, new File("does-not-exist"));
+        HttpServletRequestLoggingWrapper wrapper = new HttpServletRequestLoggingWrapper(request, 12,
+                new CaptureBufferPool(4, 0, null, spill));
+        try {
+            wrapper.getInputStream();
+            Assert.fail("Body partially captured should not be replayed");
+        } catch (IOException e) {
+            Assert.assertNotNull(e.getCause());
+        }
+    }
+
     static final String SMALL_PAYLOAD = "My Payload ...";
     static final String HUGE_PAYLOAD = "################################################################################" +
             "################################################################################" +
@@ -20,12 +20,16 @@ import org.junit.Test;
 import org.mockito.Mockito;
 
 import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletResponse;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 /**
  *
@@ -35,6 +39,70 @@ public class HttpServletResponseLoggingWrapperTest {
 
     public static final String MY_PAYLOAD = "My payload";
 
+    @Test
+    public void should_give_write_listener_to_response_stream_and_capture_bytes() throws Exception {
+        HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        NonBlockingOutputStream containerStream = new NonBlockingOutputStream();
+        Mockito.when(response.getOutputStream()).thenReturn(containerStream);
+        HttpServletResponseLoggingWrapper wrapper = new HttpServletResponseLoggingWrapper(response, 1);
+
+        final ServletOutputStream out = wrapper.getOutputStream();
+        WriteListener listener = new WriteListener() {
+            @Override
+            public void onWritePossible() throws IOException {
+                while (out.isReady()) {
+                    out.write(MY_PAYLOAD.getBytes());
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                Assert.fail(t.toString());
+            }
+        };
+        out.setWriteListener(listener);
+        Assert.assertSame(listener, containerStream.listener);
+
+        containerStream.listener.onWritePossible();
+
+        Assert.assertEquals(MY_PAYLOAD, containerStream.bytes.toString());
+        Assert.assertEquals(MY_PAYLOAD, wrapper.getContentAsInputString());
+    }
+
+    /**
+     * Container stream which only writes in blocking mode.
+     */
+    public abstract static class BlockingOutputStream extends ServletOutputStream {
+        public boolean isReady() {
+            return true;
+        }
+
+        public void setWriteListener(WriteListener listener) {
+            throw new IllegalStateException("Not an asynchronous request");
+        }
+    }
+
+    /**
+     * Container stream of the Servlet 3.1 API, ready until a first write.
+     */
+    public static class NonBlockingOutputStream extends ServletOutputStream {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        WriteListener listener;
+
+        @Override
+        public void write(int b) throws IOException {
+            bytes.write(b);
+        }
+
+        public boolean isReady() {
+            return bytes.size() == 0;
+        }
+
+        public void setWriteListener(WriteListener listener) {
+            this.listener = listener;
+        }
+    }
+
     @Test
     public void should_intercept_set_header_and_pass_to_response() throws Exception {
         HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
@@ -93,7 +161,7 @@ public class HttpServletResponseLoggingWrapperTest {
     public void getOutputStream_should_return_a_ServletOutputStream_intercepting_content() throws Exception {
         HttpServletResponse originResponse = Mockito.mock(HttpServletResponse.class);
         final ByteArrayOutputStream contentWritten = new ByteArrayOutputStream();
-        ServletOutputStream originStream = new ServletOutputStream() {
+        ServletOutputStream originStream = new BlockingOutputStream() {
             @Override
             public void write(int b) throws IOException {
                 contentWritten.write(b);
@@ -151,7 +219,7 @@ public class HttpServletResponseLoggingWrapperTest {
     public void getWriter_should_return_a_PrintWriter_intercepting_content() throws Exception {
         HttpServletResponse originResponse = Mockito.mock(HttpServletResponse.class);
         final ByteArrayOutputStream contentWritten = new ByteArrayOutputStream();
-        ServletOutputStream originStream = new ServletOutputStream() {
+        ServletOutputStream originStream = new BlockingOutputStream() {
             @Override
             public void write(int b) throws IOException {
                 contentWritten.write(b);
@@ -215,7 +283,7 @@ public class HttpServletResponseLoggingWrapperTest {
     public void contentAsInputString_should_return_String_wrote_to_origin_response() throws Exception {
         HttpServletResponse originResponse = Mockito.mock(HttpServletResponse.class);
         final ByteArrayOutputStream contentWritten = new ByteArrayOutputStream();
-        ServletOutputStream originStream = new ServletOutputStream() {
+        ServletOutputStream originStream = new BlockingOutputStream() {
             @Override
             public void write(int b) throws IOException {
                 contentWritten.write(b);
@@ -232,11 +300,50 @@ public class HttpServletResponseLoggingWrapperTest {
         Assert.assertArrayEquals("Written content and origin written content should be the same", MY_PAYLOAD.getBytes(), contentWritten.toByteArray());
     }
 
+    @Test
+    public void contentAsInputString_should_decode_body_with_charset_of_content_type() throws Exception {
+        HttpServletResponse originResponse = Mockito.mock(HttpServletResponse.class);
+        Mockito.when(originResponse.getOutputStream()).thenReturn(new BlockingOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+            }
+        });
+        Mockito.when(originResponse.getContentType()).thenReturn("text/plain; charset=\"UTF-16BE\"");
+        HttpServletResponseLoggingWrapper wrapper = new HttpServletResponseLoggingWrapper(originResponse, 1);
+
+        byte[] payload = "été".getBytes("UTF-16BE");
+        wrapper.getOutputStream().write(payload, 0, payload.length);
+
+        Assert.assertEquals("été", wrapper.getContentAsInputString());
+    }
+
+    @Test
+    public void contentAsInputString_should_inflate_gzip_body() throws Exception {
+        HttpServletResponse originResponse = Mockito.mock(HttpServletResponse.class);
+        final ByteArrayOutputStream contentWritten = new ByteArrayOutputStream();
+        Mockito.when(originResponse.getOutputStream()).thenReturn(new BlockingOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                contentWritten.write(b);
+            }
+        });
+        HttpServletResponseLoggingWrapper wrapper = new HttpServletResponseLoggingWrapper(originResponse, 1);
+
+        wrapper.setHeader("content-encoding", "gzip");
+        GZIPOutputStream out = new GZIPOutputStream(wrapper.getOutputStream());
+        out.write("compressed body".getBytes());
+        out.close();
+
+        Assert.assertEquals("compressed body", wrapper.getContentAsInputString());
+        Assert.assertArrayEquals("Compressed bytes are kept as they are", contentWritten.toByteArray(),
+                wrapper.getContentAsBytes());
+    }
+
     @Test
     public void contentAsInputString_should_return_String_wrote_to_origin_response_limited_to_maxDumpSize() throws Exception {
         HttpServletResponse originResponse = Mockito.mock(HttpServletResponse.class);
         final ByteArrayOutputStream contentWritten = new ByteArrayOutputStream();
-        ServletOutputStream originStream = new ServletOutputStream() {
+        ServletOutputStream originStream = new BlockingOutputStream() {
             @Override
             public void write(int b) throws IOException {
                 contentWritten.write(b);
@@ -255,11 +362,11 @@ public class HttpServletResponseLoggingWrapperTest {
 
 
     @Test
-    public void contentAsBytes_should_return_String_wrote_to_origin_response_in_bytes_with_no_limit() throws Exception {
+    public void contentAsBytes_should_return_String_wrote_to_origin_response_in_bytes_limited_to_maxDumpSize() throws Exception {
         HttpServletResponse originResponse = Mockito.mock(HttpServletResponse.class);
         HttpServletResponseLoggingWrapper wrapper = new HttpServletResponseLoggingWrapper(originResponse, 1);
         final ByteArrayOutputStream contentWritten = new ByteArrayOutputStream();
-        ServletOutputStream originStream = new ServletOutputStream() {
+        ServletOutputStream originStream = new BlockingOutputStream() {
             @Override
             public void write(int b) throws IOException {
                 contentWritten.write(b);
@@ -270,11 +377,27 @@ public class HttpServletResponseLoggingWrapperTest {
         ServletOutputStream stream = wrapper.getOutputStream();
         stream.print(HUGE_PAYLOAD);
 
-        Assert.assertArrayEquals("Written content and wrapper content should be the same", HUGE_PAYLOAD.getBytes(), wrapper.getContentAsBytes());
+        Assert.assertArrayEquals("Wrapper content should be limited to maxDumpSize", HUGE_PAYLOAD.substring(0, 1000).getBytes(), wrapper.getContentAsBytes());
+        Assert.assertEquals("Every written byte should be counted", HUGE_PAYLOAD.length(), wrapper.getContentSize());
         Assert.assertArrayEquals("Written content and origin written content should be the same", HUGE_PAYLOAD.getBytes(), contentWritten.toByteArray());
 
     }
 
+    @Test
+    public void getOutputStream_should_pass_byte_arrays_through_to_origin_stream() throws Exception {
+        HttpServletResponse originResponse = Mockito.mock(HttpServletResponse.class);
+        ServletOutputStream originStream = Mockito.mock(ServletOutputStream.class);
+        HttpServletResponseLoggingWrapper wrapper = new HttpServletResponseLoggingWrapper(originResponse, 1);
+        Mockito.when(originResponse.getOutputStream()).thenReturn(originStream);
+
+        byte[] payload = MY_PAYLOAD.getBytes();
+        wrapper.getOutputStream().write(payload, 0, payload.length);
+
+        Mockito.verify(originStream).write(payload, 0, payload.length);
+        Mockito.verify(originStream, Mockito.never()).write(Mockito.anyInt());
+        Assert.assertEquals(MY_PAYLOAD, wrapper.getContentAsInputString());
+    }
+
     @Test
     public void sendError_should_intercept_status_code_and_pass_it_to_origin() throws Exception {
         HttpServletResponse originResponse = Mockito.mock(HttpServletResponse.class);
@@ -297,6 +420,88 @@ public class HttpServletResponseLoggingWrapperTest {
         Assert.assertEquals("404 Not Found", wrapper.getStatusCode());
     }
 
+    @Test
+    public void should_record_content_type_changed_by_charset_and_locale() throws Exception {
+        HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        HttpServletResponseLoggingWrapper wrapper = new HttpServletResponseLoggingWrapper(response, 1);
+
+        wrapper.setContentType("text/plain");
+        Mockito.when(response.getContentType()).thenReturn("text/plain;charset=UTF-8");
+        wrapper.setCharacterEncoding("UTF-8");
+        Assert.assertEquals(Arrays.asList("text/plain;charset=UTF-8"), wrapper.getHeaders().get("Content-Type"));
+
+        Mockito.when(response.getContentType()).thenReturn("text/plain;charset=Shift_JIS");
+        wrapper.setLocale(Locale.JAPAN);
+        Assert.assertEquals(Arrays.asList("text/plain;charset=Shift_JIS"), wrapper.getHeaders().get("Content-Type"));
+
+        Mockito.verify(response).setCharacterEncoding("UTF-8");
+        Mockito.verify(response).setLocale(Locale.JAPAN);
+    }
+
+    @Test
+    public void should_intercept_int_date_and_content_headers_and_pass_to_response() throws Exception {
+        HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        HttpServletResponseLoggingWrapper wrapper = new HttpServletResponseLoggingWrapper(response, 1);
+
+        wrapper.setContentType("text/plain");
+        wrapper.setContentLength(10);
+        wrapper.setIntHeader("Retry-After", 120);
+        wrapper.addDateHeader("Last-Modified", 0);
+        wrapper.setHeader("content-type", "application/json");
+        wrapper.addHeader("content-encoding", "gzip");
+
+        Map<String, List<String>> headers = wrapper.getHeaders();
+        Assert.assertEquals(5, headers.size());
+        Assert.assertEquals(Arrays.asList("application/json"), headers.get("Content-Type"));
+        Assert.assertEquals(Arrays.asList("10"), headers.get("Content-Length"));
+        Assert.assertEquals(Arrays.asList("120"), headers.get("Retry-After"));
+        Assert.assertEquals(Arrays.asList("Thu, 01 Jan 1970 00:00:00 GMT"), headers.get("Last-Modified"));
+        Assert.assertEquals("gzip", wrapper.getContentEncoding());
+
+        Mockito.verify(response).setContentType("text/plain");
+        Mockito.verify(response).setContentLength(10);
+        Mockito.verify(response).setIntHeader("Retry-After", 120);
+        Mockito.verify(response).addDateHeader("Last-Modified", 0);
+    }
+
+    @Test
+    public void secret_headers_should_be_masked_or_dropped_but_passed_to_response() throws Exception {
+        HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        Redactor redactor = Redactor.create("X-Token", "Set-Cookie", null);
+        HttpServletResponseLoggingWrapper wrapper = new HttpServletResponseLoggingWrapper(response, 1,
+                CaptureBufferPool.UNPOOLED, redactor);
+
+        wrapper.setHeader("x-token", "secret");
+        wrapper.addIntHeader("X-Token", 42);
+        wrapper.addHeader("Set-Cookie", "session=1");
+        wrapper.setHeader("Accept-Ranges", "bytes");
+
+        Map<String, List<String>> headers = wrapper.getHeaders();
+        Assert.assertEquals(2, headers.size());
+        Assert.assertEquals(Arrays.asList(Redactor.MASK, Redactor.MASK), headers.get("x-token"));
+        Assert.assertEquals(Arrays.asList("bytes"), headers.get("Accept-Ranges"));
+        Mockito.verify(response).setHeader("x-token", "secret");
+        Mockito.verify(response).addHeader("Set-Cookie", "session=1");
+    }
+
+    @Test
+    public void json_body_should_be_projected_but_written_whole() throws Exception {
+        HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        NonBlockingOutputStream written = new NonBlockingOutputStream();
+        Mockito.when(response.getOutputStream()).thenReturn(written);
+        Mockito.when(response.getContentType()).thenReturn("application/json;charset=UTF-8");
+        HttpServletResponseLoggingWrapper wrapper = new HttpServletResponseLoggingWrapper(response, 1,
+                CaptureBufferPool.UNPOOLED, null, JsonProjection.parse("$.errors[*].code"));
+
+        String body = "{\"errors\": [{\"code\": 1, \"message\": \"first\"}, {\"code\": 2}]}";
+        wrapper.getOutputStream().write(body.getBytes("UTF-8"));
+
+        Assert.assertEquals(body, written.bytes.toString("UTF-8"));
+        Assert.assertTrue(wrapper.getCapture().isProjected());
+        Assert.assertEquals("$.errors[0].code: 1\n$.errors[1].code: 2\n-- JSON projection of " + body.length() + " bytes",
+                wrapper.getContentAsInputString());
+    }
+
     @Test
     public void sendRedirect_should_intercept_status_code_and_redirect_to_origin() throws Exception {
         HttpServletResponse originResponse = Mockito.mock(HttpServletResponse.class);
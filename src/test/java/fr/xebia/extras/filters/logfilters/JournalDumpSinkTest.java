@@ -0,0 +1,278 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *
+ */
+public class JournalDumpSinkTest {
+
+    @Rule
+    public TemporaryFolder directory = new TemporaryFolder();
+
+    private RequestDump requestDump(final int id, final String body) throws Exception {
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getInputStream()).thenReturn(new HttpServletRequestLoggingWrapperTest().getStreamForString(body));
+        Mockito.when(request.getMethod()).thenReturn("POST");
+        Mockito.when(request.getRequestURL()).thenReturn(new StringBuffer("http://localhost/orders"));
+        Mockito.when(request.getProtocol()).thenReturn("HTTP/1.1");
+        Mockito.when(request.getCharacterEncoding()).thenReturn("UTF-8");
+        Mockito.when(request.getHeaderNames()).thenReturn(Collections.enumeration(Collections.singletonList("Accept")));
+        Mockito.when(request.getHeaders("Accept")).thenReturn(Collections.enumeration(Collections.singletonList("*/*")));
+        HttpServletRequestLoggingWrapper wrapper = new HttpServletRequestLoggingWrapper(request, 1);
+        RequestDump dump = new RequestDump(wrapper, id, true);
+        wrapper.release();
+        return dump;
+    }
+
+    private List<Dump> readAll(final File file) throws IOException {
+        final List<Dump> dumps = new ArrayList<Dump>();
+        JournalReader.read(file, new JournalReader.RecordHandler() {
+            @Override
+            public void onRecord(Dump dump, long offset) {
+                // the body is released once the handler returns, keep what the assertions need
+                dumps.add(dump instanceof RequestDump ? new RequestDump(dump.id, dump.timestamp, dump.headers,
+                        dump.body, null, ((RequestDump) dump).method, null, null, ((RequestDump) dump).maxDumpSize,
+                        0, ((RequestDump) dump).charset) : dump);
+            }
+        });
+        return dumps;
+    }
+
+    @Test
+    public void should_write_records_read_back_by_reader() throws Exception {
+        JournalDumpSink sink = new JournalDumpSink(directory.getRoot(), 4096, 2);
+        RequestDump request = requestDump(1, "{\"total\":42}");
+        sink.write(request);
+        request.release();
+
+        HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        Mockito.when(response.getOutputStream()).thenReturn(new HttpServletResponseLoggingWrapperTest.BlockingOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+            }
+        });
+        HttpServletResponseLoggingWrapper wrapper = new HttpServletResponseLoggingWrapper(response, 1);
+        wrapper.sendError(500, "Oops");
+        wrapper.getOutputStream().print("failed");
+        ResponseDump responseDump = new ResponseDump(wrapper, 1, "/orders/1", false, 2000L, new IllegalStateException("Fail"));
+        sink.write(responseDump);
+        responseDump.release();
+        wrapper.release();
+        sink.close();
+
+        List<Dump> dumps = readAll(JournalDumpSink.journalFile(directory.getRoot(), 1));
+        Assert.assertEquals(2, dumps.size());
+        RequestDump readRequest = (RequestDump) dumps.get(0);
+        Assert.assertEquals(1, readRequest.id);
+        Assert.assertEquals("POST", readRequest.method);
+        Assert.assertEquals(Collections.singletonList("*/*"), readRequest.headers.get("Accept"));
+        Assert.assertEquals("{\"total\":42}", readRequest.getBody());
+        readRequest.release();
+
+        ResponseDump readResponse = (ResponseDump) dumps.get(1);
+        Assert.assertEquals("/orders/1", readResponse.requestURI);
+        Assert.assertEquals("500 Oops", readResponse.status);
+        Assert.assertEquals(500, readResponse.statusCode);
+        Assert.assertEquals(2000L, readResponse.elapsedNanos);
+        Assert.assertEquals("java.lang.IllegalStateException: Fail", readResponse.failure);
+        Assert.assertNull(readResponse.headers);
+        Assert.assertNull("Body is released once read", readResponse.body);
+    }
+
+    @Test
+    public void should_store_compressed_bodies_compressed() throws Exception {
+        JournalDumpSink sink = new JournalDumpSink(directory.getRoot(), 4096, 2);
+        RequestDump request = requestDump(1, "{\"total\":42,\"items\":[1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1]}");
+        request.compressBody(request.maxDumpSize);
+        sink.write(request);
+        request.release();
+        sink.close();
+
+        List<Dump> dumps = readAll(JournalDumpSink.journalFile(directory.getRoot(), 1));
+        Assert.assertEquals(1, dumps.size());
+        Assert.assertTrue(dumps.get(0).body.isCompressed());
+        Assert.assertEquals("{\"total\":42,\"items\":[1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1]}", ((RequestDump) dumps.get(0)).getBody());
+        dumps.get(0).release();
+    }
+
+    @Test
+    public void should_rotate_files_and_keep_the_last_ones() throws Exception {
+        JournalDumpSink sink = new JournalDumpSink(directory.getRoot(), 256, 2);
+        for (int i = 1; i <= 10; i++) {
+            RequestDump request = requestDump(i, "0123456789012345678901234567890123456789");
+            sink.write(request);
+            request.release();
+        }
+        sink.close();
+
+        // the two journal files kept and their indexes
+        Assert.assertEquals(4, directory.getRoot().list().length);
+        List<File> files = JournalReader.journalFiles(directory.getRoot());
+        Assert.assertEquals(2, files.size());
+        List<Dump> dumps = new ArrayList<Dump>();
+        for (File file : files) {
+            dumps.addAll(readAll(file));
+        }
+        Assert.assertEquals(10, dumps.get(dumps.size() - 1).id);
+        for (int i = 1; i < dumps.size(); i++) {
+            Assert.assertEquals(dumps.get(i - 1).id + 1, dumps.get(i).id);
+            dumps.get(i).release();
+        }
+        Assert.assertEquals(0, sink.getDroppedDumps());
+    }
+
+    @Test
+    public void should_rotate_when_previous_record_left_less_than_a_length() throws Exception {
+        JournalDumpSink probe = new JournalDumpSink(directory.getRoot(), 4096, 2);
+        for (int i = 1; i <= 2; i++) {
+            RequestDump request = requestDump(i, "0123456789");
+            probe.write(request);
+            request.release();
+        }
+        probe.close();
+        final List<Long> offsets = new ArrayList<Long>();
+        JournalReader.read(probe.getFile(), new JournalReader.RecordHandler() {
+            @Override
+            public void onRecord(Dump dump, long offset) {
+                offsets.add(offset);
+            }
+        });
+        final long recordSize = offsets.get(1) - offsets.get(0);
+
+        for (int left = 1; left <= 3; left++) {
+            File journalDirectory = directory.newFolder("left" + left);
+            JournalDumpSink sink = new JournalDumpSink(journalDirectory,
+                    (int) (JournalDumpSink.FILE_HEADER_SIZE + recordSize + left), 3);
+            for (int i = 1; i <= 3; i++) {
+                RequestDump request = requestDump(i, "0123456789");
+                sink.write(request);
+                request.release();
+            }
+            sink.close();
+
+            Assert.assertEquals(0, sink.getDroppedDumps());
+            List<File> files = JournalReader.journalFiles(journalDirectory);
+            Assert.assertEquals(3, files.size());
+            for (File file : files) {
+                List<Dump> dumps = readAll(file);
+                Assert.assertEquals(1, dumps.size());
+                dumps.get(0).release();
+            }
+        }
+    }
+
+    @Test
+    public void should_drop_records_larger_than_a_file() throws Exception {
+        JournalDumpSink sink = new JournalDumpSink(directory.getRoot(), 64, 2);
+        RequestDump request = requestDump(1, "0123456789012345678901234567890123456789");
+        sink.write(request);
+        request.release();
+        sink.close();
+
+        Assert.assertEquals(1, sink.getDroppedDumps());
+        Assert.assertTrue(readAll(JournalDumpSink.journalFile(directory.getRoot(), 1)).isEmpty());
+    }
+
+    @Test
+    public void should_drop_dumps_written_once_closed() throws Exception {
+        JournalDumpSink sink = new JournalDumpSink(directory.getRoot(), 4096, 2);
+        sink.close();
+        RequestDump request = requestDump(1, "{}");
+        sink.write(request);
+        request.release();
+
+        Assert.assertEquals(1, sink.getDroppedDumps());
+        Assert.assertTrue(readAll(JournalDumpSink.journalFile(directory.getRoot(), 1)).isEmpty());
+    }
+
+    @Test
+    public void should_retry_to_start_a_file_after_a_failure() throws Exception {
+        JournalDumpSink sink = new JournalDumpSink(directory.getRoot(), 256, 10);
+        // the second file can not be created while a directory has its name
+        File second = JournalDumpSink.journalFile(directory.getRoot(), 2);
+        File blocker = new File(second, "blocker");
+        Assert.assertTrue(blocker.mkdirs());
+        int id = 0;
+        while (sink.getDroppedDumps() == 0 && id < 10) {
+            RequestDump request = requestDump(++id, "{}");
+            sink.write(request);
+            request.release();
+        }
+        RequestDump dropped = requestDump(++id, "{}");
+        sink.write(dropped);
+        dropped.release();
+        Assert.assertEquals(2, sink.getDroppedDumps());
+
+        Assert.assertTrue(blocker.delete() && second.delete());
+        RequestDump request = requestDump(++id, "{}");
+        sink.write(request);
+        request.release();
+        sink.close();
+
+        Assert.assertEquals(2, sink.getDroppedDumps());
+        List<Dump> dumps = readAll(second);
+        Assert.assertEquals(1, dumps.size());
+        Assert.assertEquals(id, dumps.get(0).id);
+    }
+
+    @Test
+    public void should_keep_projection_and_budget_notes_of_bodies() throws Exception {
+        BodyCapture projected = new BodyCapture(1000, CaptureBufferPool.UNPOOLED);
+        projected.project(JsonProjection.parse("$.id"));
+        byte[] json = "{\"id\":42,\"name\":\"a\"}".getBytes("UTF-8");
+        projected.write(json, 0, json.length);
+        BodyCapture overBudget = new BodyCapture(100, new CaptureBufferPool(4, 0, new CaptureBudget(8)));
+        byte[] bytes = "0123456789".getBytes("UTF-8");
+        overBudget.write(bytes, 0, bytes.length);
+        RequestDump projectedDump = new RequestDump(1, 1000L, null, projected, null, "POST", "http://localhost/orders",
+                "HTTP/1.1", 1000, 0, BodyCapture.charsetOf("UTF-8"));
+        RequestDump overBudgetDump = new RequestDump(2, 2000L, null, overBudget, null, "POST", "http://localhost/orders",
+                "HTTP/1.1", 1000, 0, BodyCapture.charsetOf("UTF-8"));
+        projected.release();
+        overBudget.release();
+
+        JournalDumpSink sink = new JournalDumpSink(directory.getRoot(), 4096, 2);
+        sink.write(projectedDump);
+        sink.write(overBudgetDump);
+        sink.close();
+
+        List<Dump> dumps = readAll(JournalDumpSink.journalFile(directory.getRoot(), 1));
+        Assert.assertEquals(projectedDump.getBody(), ((RequestDump) dumps.get(0)).getBody());
+        Assert.assertEquals("$.id: 42\n-- JSON projection of 20 bytes", ((RequestDump) dumps.get(0)).getBody());
+        Assert.assertEquals(overBudgetDump.getBody(), ((RequestDump) dumps.get(1)).getBody());
+        Assert.assertTrue(((RequestDump) dumps.get(1)).getBody().endsWith("capture memory budget exhausted"));
+        projectedDump.release();
+        overBudgetDump.release();
+        for (Dump dump : dumps) {
+            dump.release();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ *
+ */
+public class JournalIndexTest {
+
+    @Rule
+    public TemporaryFolder directory = new TemporaryFolder();
+
+    @Before
+    public void writeJournal() throws Exception {
+        // ten exchanges on two routes, one second apart, every third one failing
+        JournalDumpSink sink = new JournalDumpSink(directory.getRoot(), 1024, 10);
+        for (int i = 1; i <= 10; i++) {
+            String path = i % 2 == 0 ? "/orders/" + i : "/customers/" + i;
+            sink.write(new RequestDump(i, i * 1000L, null, null, null, "GET", "http://localhost:8080" + path, "HTTP/1.1", 0, 0, null));
+            int status = i % 3 == 0 ? 500 : 200;
+            sink.write(new ResponseDump(i, i * 1000L + 10, null, null, path, status + "", status, 10000000L, null, null));
+        }
+        sink.close();
+    }
+
+    private List<String> search(final JournalQuery query) throws Exception {
+        final List<String> found = new ArrayList<String>();
+        JournalIndex.search(directory.getRoot(), query, new JournalReader.RecordHandler() {
+            @Override
+            public void onRecord(Dump dump, long offset) {
+                found.add((dump instanceof RequestDump ? "request " : "response ") + dump.id);
+            }
+        });
+        return found;
+    }
+
+    private JournalQuery query(final String... criteria) {
+        JournalQuery query = new JournalQuery();
+        for (String criterion : criteria) {
+            Assert.assertTrue(query.set(criterion));
+        }
+        return query;
+    }
+
+    @Test
+    public void should_write_an_index_for_every_journal_file() throws Exception {
+        List<File> files = JournalReader.journalFiles(directory.getRoot());
+        Assert.assertTrue("Records span several files", files.size() > 1);
+        int entries = 0;
+        for (File file : files) {
+            Assert.assertTrue(JournalDumpSink.indexFile(file).isFile());
+            entries += JournalIndex.open(file).size();
+        }
+        Assert.assertEquals(20, entries);
+    }
+
+    @Test
+    public void should_find_exchange_by_id() throws Exception {
+        Assert.assertEquals(listOf("request 7", "response 7"), search(query("id=7")));
+        Assert.assertTrue(search(query("id=11")).isEmpty());
+    }
+
+    @Test
+    public void should_find_records_in_time_range() throws Exception {
+        Assert.assertEquals(listOf("response 3", "request 4", "response 4", "request 5"),
+                search(query("from=3005", "to=5000")));
+    }
+
+    @Test
+    public void should_find_exchanges_by_status_and_route() throws Exception {
+        Assert.assertEquals(listOf("request 3", "response 3", "request 6", "response 6", "request 9", "response 9"),
+                search(query("status=5xx")));
+        Assert.assertEquals(listOf("request 6", "response 6"), search(query("status=500", "route=/orders")));
+        Assert.assertEquals(listOf("request 4", "response 4"), search(query("route=/orders/4")));
+    }
+
+    @Test
+    public void should_index_route_of_response_without_its_request() throws Exception {
+        JournalDumpSink sink = new JournalDumpSink(directory.getRoot(), 1024, 10);
+        sink.write(new ResponseDump(11, 11000L, null, null, "/orders/11", "200", 200, 10000000L, null, null));
+        sink.close();
+
+        Assert.assertEquals(listOf("response 11"), search(query("route=/orders/11")));
+    }
+
+    @Test
+    public void should_rebuild_missing_index_from_journal() throws Exception {
+        List<String> indexed = search(query("route=/customers", "from=2000"));
+        for (File file : JournalReader.journalFiles(directory.getRoot())) {
+            Assert.assertTrue(JournalDumpSink.indexFile(file).delete());
+        }
+        Assert.assertEquals(indexed, search(query("route=/customers", "from=2000")));
+        Assert.assertEquals(8, indexed.size());
+    }
+
+    @Test
+    public void should_parse_dates() {
+        Assert.assertEquals(1234L, JournalQuery.parseDate("1234"));
+        Assert.assertTrue(JournalQuery.parseDate("2009-03-01T10:00:00") > 0);
+        Assert.assertFalse(new JournalQuery().set("-json"));
+    }
+
+    private static List<String> listOf(final String... values) {
+        return Arrays.asList(values);
+    }
+}
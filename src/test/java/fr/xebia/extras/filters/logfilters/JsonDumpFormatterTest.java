@@ -0,0 +1,84 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Collections;
+
+/**
+ *
+ */
+public class JsonDumpFormatterTest {
+
+    private final JsonDumpFormatter formatter = new JsonDumpFormatter();
+
+    @Test
+    public void should_escape_strings() throws Exception {
+        StringBuilder out = new StringBuilder();
+
+        JsonDumpFormatter.appendString(out, "a\"b\\c\nd\te\u0001f\u2028");
+
+        Assert.assertEquals("\"a\\\"b\\\\c\\nd\\te\\u0001f\\u2028\"", out.toString());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void should_format_request_as_json() throws Exception {
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getInputStream()).thenReturn(new HttpServletRequestLoggingWrapperTest().getStreamForString("{\"a\":\"b\"}\n"));
+        Mockito.when(request.getMethod()).thenReturn("POST");
+        Mockito.when(request.getRequestURL()).thenReturn(new StringBuffer("http://localhost/api"));
+        Mockito.when(request.getProtocol()).thenReturn("HTTP/1.1");
+        Mockito.when(request.getHeaderNames()).thenReturn(Collections.enumeration(Collections.singletonList("Accept")));
+        Mockito.when(request.getHeaders("Accept")).thenReturn(Collections.enumeration(Collections.singletonList("*/*")));
+        HttpServletRequestLoggingWrapper wrapper = new HttpServletRequestLoggingWrapper(request, 1);
+        RequestDump dump = new RequestDump(wrapper, 42, true);
+
+        Assert.assertEquals("{\"type\":\"request\",\"id\":42,\"timestamp\":" + dump.timestamp + ",\"method\":\"POST\",\"url\":\"http://localhost/api\","
+                + "\"protocol\":\"HTTP/1.1\",\"headers\":{\"Accept\":[\"*/*\"]},"
+                + "\"body\":\"{\\\"a\\\":\\\"b\\\"}\\n\",\"bodySkippedBytes\":0}", formatter.formatRequest(dump));
+        dump.release();
+        wrapper.release();
+    }
+
+    @Test
+    public void should_format_response_as_json() throws Exception {
+        HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        Mockito.when(response.getOutputStream()).thenReturn(new HttpServletResponseLoggingWrapperTest.BlockingOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+            }
+        });
+        HttpServletResponseLoggingWrapper wrapper = new HttpServletResponseLoggingWrapper(response, 1);
+        wrapper.sendError(404);
+        wrapper.getOutputStream().print("0123456789");
+        ResponseDump dump = new ResponseDump(wrapper, 42, null, false, 1500000L, new IOException("Fail"));
+
+        Assert.assertEquals("{\"type\":\"response\",\"id\":42,\"timestamp\":" + dump.timestamp + ",\"status\":404,\"elapsedMicros\":1500,"
+                + "\"exception\":\"java.io.IOException: Fail\",\"body\":\"0123456789\",\"bodySkippedBytes\":0}",
+                formatter.formatResponse(dump));
+
+        dump.dropBody();
+        Assert.assertTrue(formatter.formatResponse(dump).endsWith("\"bodyDropped\":true}"));
+        wrapper.release();
+    }
+}
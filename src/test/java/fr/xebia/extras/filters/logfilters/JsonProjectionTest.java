@@ -0,0 +1,118 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+public class JsonProjectionTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String ORDER = "{\n  \"order\": {\"id\": 42, \"customer\": {\"id\": \"c-1\"}, \"lines\": [1, 2]},\n"
+            + "  \"errors\": [ {\"code\": \"E1\", \"message\": \"out of \\\"stock\\\"\"}, {\"code\": \"E2\"} ],\n"
+            + "  \"status\": true, \"empty\": [], \"id\": null\n}";
+
+    @Test
+    public void values_should_be_kept_after_their_concrete_path() {
+        Assert.assertEquals("$.order.id: 42\n"
+                + "$.errors[0]: {\"code\":\"E1\",\"message\":\"out of \\\"stock\\\"\"}\n"
+                + "$.errors[1]: {\"code\":\"E2\"}\n"
+                + "-- JSON projection of " + ORDER.length() + " bytes",
+                project("$.order.id, $.errors[*]", ORDER, 1000));
+    }
+
+    @Test
+    public void steps_should_select_members_and_elements() {
+        Assert.assertEquals("$.order.lines[1]: 2\n$.errors[1].code: \"E2\"\n$.status: true\n$.empty: []\n",
+                values(project("$.order.lines[1],$['errors'][1].code,$.status,$.empty", ORDER, 1000)));
+        Assert.assertEquals("$.order.customer.id: \"c-1\"\n$.id: null\n",
+                values(project("$.*.customer.id,$.id", ORDER, 1000)));
+        Assert.assertEquals("$: [1,{\"a\":2}]\n", values(project("$", "[1, {\"a\": 2}]", 1000)));
+    }
+
+    @Test
+    public void projection_should_not_depend_on_chunks() {
+        JsonProjection projection = JsonProjection.parse("$.errors[*].code");
+        BodyCapture capture = new BodyCapture(1000, CaptureBufferPool.UNPOOLED);
+        capture.project(projection);
+        byte[] bytes = ORDER.getBytes(UTF_8);
+        for (byte b : bytes) {
+            capture.write(b);
+        }
+
+        Assert.assertEquals("$.errors[0].code: \"E1\"\n$.errors[1].code: \"E2\"\n", values(capture.toDumpString()));
+        Assert.assertEquals(bytes.length, capture.getTotal());
+    }
+
+    @Test
+    public void projected_secret_fields_should_be_masked() {
+        Redactor redactor = Redactor.create(null, null, "Password,card");
+        String body = "{\"user\": {\"name\": \"a\", \"password\": \"secret\", \"card\": {\"n\": 4242}},"
+                + " \"cards\": [\"c-1\"]}";
+
+        String dump = project(JsonProjection.parse("$.user.password, $.cards[0]", redactor), body);
+        Assert.assertEquals("$.user.password: \"****\"\n$.cards[0]: \"c-1\"\n", values(dump));
+        Assert.assertFalse(dump.contains("secret"));
+
+        dump = project(JsonProjection.parse("$.user", redactor), body);
+        Assert.assertEquals("$.user: {\"name\":\"a\",\"password\":\"****\",\"card\":\"****\"}\n", values(dump));
+        Assert.assertFalse(dump.contains("secret"));
+        Assert.assertFalse(dump.contains("4242"));
+    }
+
+    @Test
+    public void projection_should_be_truncated_by_limit() {
+        Assert.assertEquals("$.errors[0]: {\"co\n-- JSON projection of " + ORDER.length()
+                + " bytes, truncated by max dump size limit", project("$.errors[*]", ORDER, 17));
+    }
+
+    @Test
+    public void invalid_paths_should_be_ignored() {
+        Assert.assertNull(JsonProjection.parse("order.id, $.errors[x], $..a, $[1"));
+        Assert.assertNotNull(JsonProjection.parse("order.id, $.ok"));
+    }
+
+    @Test
+    public void json_content_types_should_be_recognized() {
+        Assert.assertTrue(JsonProjection.isJson("application/json; charset=UTF-8"));
+        Assert.assertTrue(JsonProjection.isJson("application/problem+json"));
+        Assert.assertFalse(JsonProjection.isJson("text/plain; format=json"));
+        Assert.assertFalse(JsonProjection.isJson(null));
+    }
+
+    private static String project(String paths, String body, int limit) {
+        BodyCapture capture = new BodyCapture(limit, CaptureBufferPool.UNPOOLED);
+        capture.project(JsonProjection.parse(paths));
+        byte[] bytes = body.getBytes(UTF_8);
+        capture.write(bytes, 0, bytes.length);
+        return capture.toDumpString(BodyCapture.UNLIMITED, UTF_8);
+    }
+
+    private static String project(JsonProjection projection, String body) {
+        BodyCapture capture = new BodyCapture(1000, CaptureBufferPool.UNPOOLED);
+        capture.project(projection);
+        byte[] bytes = body.getBytes(UTF_8);
+        capture.write(bytes, 0, bytes.length);
+        return capture.toDumpString();
+    }
+
+    private static String values(String dump) {
+        return dump.substring(0, dump.lastIndexOf("-- JSON projection"));
+    }
+}
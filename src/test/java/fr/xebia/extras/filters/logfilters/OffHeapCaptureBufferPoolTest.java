@@ -0,0 +1,75 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ *
+ */
+public class OffHeapCaptureBufferPoolTest {
+
+    @Test
+    public void should_slice_direct_segments_up_to_capacity() throws Exception {
+        OffHeapCaptureBufferPool pool = new OffHeapCaptureBufferPool(16, 40);
+
+        ByteBuffer first = pool.acquire();
+        ByteBuffer second = pool.acquire();
+
+        Assert.assertEquals("Capacity should be rounded to segment size", 32, pool.getCapacity());
+        Assert.assertTrue(first.isDirect());
+        Assert.assertEquals(16, first.capacity());
+        Assert.assertEquals(16, second.capacity());
+        Assert.assertNull("Pool should be exhausted", pool.acquire());
+
+        pool.release(first);
+        Assert.assertSame("Released segment should be reused", first, pool.acquire());
+    }
+
+    @Test
+    public void limited_capture_should_stop_keeping_bytes_when_pool_is_exhausted() throws Exception {
+        OffHeapCaptureBufferPool pool = new OffHeapCaptureBufferPool(4, 8);
+        BodyCapture capture = new BodyCapture(100, pool);
+        byte[] payload = "0123456789".getBytes();
+
+        capture.write(payload, 0, payload.length);
+
+        Assert.assertTrue(capture.isExhausted());
+        Assert.assertEquals(8, capture.size());
+        Assert.assertEquals("01234567\n-- 2 more bytes skipped from dump, no capture buffer left", capture.toDumpString());
+
+        capture.release();
+        Assert.assertEquals("Segments should be back in the pool", 2, pool.pooledSegments());
+    }
+
+    @Test
+    public void unlimited_capture_should_fall_back_to_heap_when_pool_is_exhausted() throws Exception {
+        OffHeapCaptureBufferPool pool = new OffHeapCaptureBufferPool(4, 8);
+        BodyCapture capture = new BodyCapture(BodyCapture.UNLIMITED, pool);
+        byte[] payload = "0123456789".getBytes();
+
+        capture.write(payload, 0, payload.length);
+
+        Assert.assertFalse(capture.isExhausted());
+        Assert.assertArrayEquals(payload, capture.toByteArray());
+
+        capture.release();
+        Assert.assertEquals("Only direct segments should be back in the pool", 2, pool.pooledSegments());
+    }
+}
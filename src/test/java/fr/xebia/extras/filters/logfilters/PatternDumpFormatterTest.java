@@ -0,0 +1,86 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Collections;
+
+/**
+ *
+ */
+public class PatternDumpFormatterTest {
+
+    private RequestDump requestDump(final String body) throws Exception {
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getInputStream()).thenReturn(new HttpServletRequestLoggingWrapperTest().getStreamForString(body));
+        Mockito.when(request.getMethod()).thenReturn("PUT");
+        Mockito.when(request.getRequestURL()).thenReturn(new StringBuffer("http://localhost/orders/1"));
+        Mockito.when(request.getHeaderNames()).thenReturn(Collections.enumeration(Collections.singletonList("Accept")));
+        Mockito.when(request.getHeaders("Accept")).thenReturn(Collections.enumeration(Collections.singletonList("*/*")));
+        HttpServletRequestLoggingWrapper wrapper = new HttpServletRequestLoggingWrapper(request, 1);
+        RequestDump dump = new RequestDump(wrapper, 7, true);
+        wrapper.release();
+        return dump;
+    }
+
+    @Test
+    public void should_render_request_following_pattern() throws Exception {
+        PatternDumpFormatter formatter = PatternDumpFormatter.parse("[%id] %method %url %status 100%% %reqHeaders%n%body{4}");
+
+        Assert.assertEquals("[7] PUT http://localhost/orders/1 - 100% Accept: */*\n0123... (6 more bytes)",
+                formatter.formatRequest(requestDump("0123456789")));
+    }
+
+    @Test
+    public void should_render_response_following_pattern() throws Exception {
+        HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        Mockito.when(response.getOutputStream()).thenReturn(new HttpServletResponseLoggingWrapperTest.BlockingOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+            }
+        });
+        HttpServletResponseLoggingWrapper wrapper = new HttpServletResponseLoggingWrapper(response, 1);
+        wrapper.setStatus(201);
+        wrapper.getOutputStream().print("created");
+        ResponseDump dump = new ResponseDump(wrapper, 7, null, false, 12000000L, null);
+        PatternDumpFormatter formatter = PatternDumpFormatter.parse("[%id] %method %status %elapsed ms %exception %headers %body");
+
+        Assert.assertEquals("[7] - 201 12 ms - - created", formatter.formatResponse(dump));
+        dump.release();
+        wrapper.release();
+    }
+
+    @Test
+    public void should_reject_invalid_patterns() throws Exception {
+        Assert.assertNull(PatternDumpFormatter.parse("%id %unknown"));
+        Assert.assertNull(PatternDumpFormatter.parse("%body{4k"));
+        Assert.assertNull(PatternDumpFormatter.parse("%body{-1}"));
+        Assert.assertNull(PatternDumpFormatter.parse("%body{}"));
+    }
+
+    @Test
+    public void should_parse_body_sizes() throws Exception {
+        Assert.assertEquals(4000, PatternDumpFormatter.parseSize("4k"));
+        Assert.assertEquals(2000000, PatternDumpFormatter.parseSize("2M"));
+        Assert.assertEquals(12, PatternDumpFormatter.parseSize("12"));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class RedactorTest {
+
+    private final Redactor redactor = Redactor.create("Authorization, Cookie", "Set-Cookie", "password,cardNumber");
+
+    @Test
+    public void nothing_to_redact_should_give_no_redactor() {
+        Assert.assertNull(Redactor.create(null, " ", ","));
+    }
+
+    @Test
+    public void headers_should_be_matched_ignoring_case() {
+        Assert.assertEquals(Redactor.REDACT, redactor.headerAction("authorization"));
+        Assert.assertEquals(Redactor.REDACT, redactor.headerAction("Cookie"));
+        Assert.assertEquals(Redactor.DROP, redactor.headerAction("SET-COOKIE"));
+        Assert.assertEquals(Redactor.KEEP, redactor.headerAction("Accept"));
+        Assert.assertFalse(Redactor.create("Authorization", null, null).redactsBodies());
+    }
+
+    @Test
+    public void json_values_should_be_masked() {
+        Assert.assertEquals("{\"login\":\"bob\",\"password\":\"*******\",\"Password\" : \"*\"}",
+                redact("{\"login\":\"bob\",\"password\":\"s3cr\\\"t\",\"Password\" : \"x\"}"));
+        Assert.assertEquals("{\"cardNumber\": ****************, \"amount\": 12}",
+                redact("{\"cardNumber\": 4111111111111111, \"amount\": 12}"));
+        Assert.assertEquals("{\"password\":{***********}, \"id\":1}",
+                redact("{\"password\":{\"a\":[1,\"}\"]}, \"id\":1}"));
+    }
+
+    @Test
+    public void names_used_as_values_should_not_be_masked() {
+        Assert.assertEquals("{\"field\":\"password\",\"passwords\":\"kept\",\"mypassword\":1}",
+                redact("{\"field\":\"password\",\"passwords\":\"kept\",\"mypassword\":1}"));
+    }
+
+    @Test
+    public void form_values_should_be_masked() {
+        Assert.assertEquals("password=****&login=bob&cardNumber=****",
+                redact("password=s3cr&login=bob&cardNumber=4111"));
+        Assert.assertEquals("login=bob&oldpassword=s3cr", redact("login=bob&oldpassword=s3cr"));
+    }
+
+    @Test
+    public void scan_should_go_on_across_chunks() {
+        Redactor.Scan scan = redactor.newScan();
+        ByteBuffer first = ByteBuffer.wrap("{\"pass".getBytes());
+        ByteBuffer second = ByteBuffer.wrap("word\": \"s3".getBytes());
+        ByteBuffer third = ByteBuffer.wrap("cr\"}".getBytes());
+
+        scan.scan(first, true);
+        scan.scan(second, true);
+        scan.scan(third, true);
+
+        Assert.assertEquals("word\": \"**", new String(second.array()));
+        Assert.assertEquals("**\"}", new String(third.array()));
+        Assert.assertEquals(4, scan.getMasked());
+    }
+
+    private String redact(String body) {
+        ByteBuffer buffer = ByteBuffer.wrap(body.getBytes());
+        redactor.newScan().scan(buffer, true);
+        return new String(buffer.array());
+    }
+}
@@ -18,8 +18,26 @@ package fr.xebia.extras.filters.logfilters;
 import junit.framework.Assert;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import javax.management.ObjectName;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
  *
@@ -69,6 +87,473 @@ public class RequestLoggerFilterTest {
         Mockito.verify(config).getInitParameter(MAX_DUMP_SIZE_IN_KB);
     }
 
+    @Test
+    public void streamRequestBody_should_be_parsed_from_init_config() throws Exception {
+        FilterConfig config = Mockito.mock(FilterConfig.class);
+        Mockito.when(config.getInitParameter("streamRequestBody")).thenReturn("true");
+
+        RequestLoggerFilter filter = new RequestLoggerFilter();
+
+        filter.init(config);
+
+        Assert.assertTrue(filter.isStreamRequestBody());
+    }
+
+    @Test
+    public void streamRequestBody_should_be_disabled_by_default() throws Exception {
+        FilterConfig config = Mockito.mock(FilterConfig.class);
+
+        RequestLoggerFilter filter = new RequestLoggerFilter();
+
+        filter.init(config);
+
+        Assert.assertFalse(filter.isStreamRequestBody());
+    }
+
+    @Test
+    public void compressBodies_should_compress_dumped_bodies() throws Exception {
+        FilterConfig config = Mockito.mock(FilterConfig.class);
+        Mockito.when(config.getInitParameter("compressBodies")).thenReturn("true");
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getInputStream()).thenReturn(new HttpServletRequestLoggingWrapperTest().getStreamForString("payload payload payload"));
+        final List<String> bodies = new ArrayList<String>();
+        RequestLoggerFilter filter = new RequestLoggerFilter() {
+            @Override
+            void emit(Dump dump) {
+                if (dump instanceof RequestDump) {
+                    Assert.assertTrue(dump.body.isCompressed());
+                    bodies.add(((RequestDump) dump).getBody());
+                }
+            }
+        };
+        filter.init(config);
+        Assert.assertTrue(filter.isCompressBodies());
+
+        filter.doFilter(request, Mockito.mock(HttpServletResponse.class), Mockito.mock(FilterChain.class));
+
+        Assert.assertEquals(Arrays.asList("payload payload payload"), bodies);
+    }
+
+    @Test
+    public void redaction_should_mask_dumped_secrets_but_not_the_body_read_by_the_webapp() throws Exception {
+        FilterConfig config = Mockito.mock(FilterConfig.class);
+        Mockito.when(config.getInitParameter("redactHeaders")).thenReturn("Authorization");
+        Mockito.when(config.getInitParameter("dropHeaders")).thenReturn("Cookie");
+        Mockito.when(config.getInitParameter("redactBodyFields")).thenReturn("password");
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getInputStream()).thenReturn(new HttpServletRequestLoggingWrapperTest().getStreamForString("login=bob&password=s3cr"));
+        Mockito.when(request.getHeaderNames()).thenReturn(Collections.enumeration(Arrays.asList("Authorization", "Cookie", "Accept")));
+        Mockito.when(request.getHeaders("Authorization")).thenReturn(Collections.enumeration(Arrays.asList("Basic Ym9iOnMzY3I=")));
+        Mockito.when(request.getHeaders("Cookie")).thenReturn(Collections.enumeration(Arrays.asList("session=1")));
+        Mockito.when(request.getHeaders("Accept")).thenReturn(Collections.enumeration(Arrays.asList("*/*")));
+        final List<RequestDump> dumps = new ArrayList<RequestDump>();
+        RequestLoggerFilter filter = new RequestLoggerFilter() {
+            @Override
+            void emit(Dump dump) {
+                if (dump instanceof RequestDump) {
+                    dumps.add((RequestDump) dump);
+                    Assert.assertEquals("login=bob&password=****", ((RequestDump) dump).getBody());
+                }
+            }
+        };
+        filter.init(config);
+        Assert.assertNotNull(filter.getRedactor());
+        final StringBuilder read = new StringBuilder();
+
+        filter.doFilter(request, Mockito.mock(HttpServletResponse.class), new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+                read.append(request.getReader().readLine());
+            }
+        });
+
+        Assert.assertEquals(1, dumps.size());
+        Assert.assertEquals(Arrays.asList("Authorization", "Accept"), new ArrayList<String>(dumps.get(0).headers.keySet()));
+        Assert.assertEquals(Arrays.asList(Redactor.MASK), dumps.get(0).headers.get("Authorization"));
+        Assert.assertEquals("login=bob&password=s3cr", read.toString());
+    }
+
+    @Test
+    public void projectJsonPaths_should_dump_projection_of_json_request() throws Exception {
+        FilterConfig config = Mockito.mock(FilterConfig.class);
+        Mockito.when(config.getInitParameter("projectJsonPaths")).thenReturn("$.order.id");
+        final String body = "{\"order\": {\"id\": 42, \"lines\": [1, 2, 3]}}";
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getInputStream()).thenReturn(new HttpServletRequestLoggingWrapperTest().getStreamForString(body));
+        Mockito.when(request.getContentType()).thenReturn("application/json");
+        final List<String> bodies = new ArrayList<String>();
+        RequestLoggerFilter filter = new RequestLoggerFilter() {
+            @Override
+            void emit(Dump dump) {
+                if (dump instanceof RequestDump) {
+                    bodies.add(((RequestDump) dump).getBody());
+                }
+            }
+        };
+        filter.init(config);
+        Assert.assertNotNull(filter.getProjection());
+        final StringBuilder read = new StringBuilder();
+
+        filter.doFilter(request, Mockito.mock(HttpServletResponse.class), new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+                read.append(request.getReader().readLine());
+            }
+        });
+
+        Assert.assertEquals(Arrays.asList("$.order.id: 42\n-- JSON projection of " + body.length() + " bytes"), bodies);
+        Assert.assertEquals(body, read.toString());
+    }
+
+    @Test
+    public void captureBudgetInMB_should_bound_capture_pool() throws Exception {
+        FilterConfig config = Mockito.mock(FilterConfig.class);
+        Mockito.when(config.getInitParameter("captureBudgetInMB")).thenReturn("3");
+
+        RequestLoggerFilter filter = new RequestLoggerFilter();
+
+        filter.init(config);
+
+        Assert.assertEquals(3 * 1024 * 1024, filter.getCaptureBudget().getLimit());
+        Assert.assertSame(filter.getCaptureBudget(), filter.getCapturePool().getBudget());
+    }
+
+    @Test
+    public void offHeapCaptureSizeInMB_should_switch_capture_to_direct_memory() throws Exception {
+        FilterConfig config = Mockito.mock(FilterConfig.class);
+        Mockito.when(config.getInitParameter("offHeapCaptureSizeInMB")).thenReturn("2");
+
+        RequestLoggerFilter filter = new RequestLoggerFilter();
+
+        filter.init(config);
+
+        Assert.assertTrue(filter.getCapturePool() instanceof OffHeapCaptureBufferPool);
+        Assert.assertEquals(2 * 1024 * 1024, ((OffHeapCaptureBufferPool) filter.getCapturePool()).getCapacity());
+    }
+
+    @Test
+    public void asyncDump_should_start_dispatcher_until_destroy() throws Exception {
+        FilterConfig config = Mockito.mock(FilterConfig.class);
+        Mockito.when(config.getInitParameter("asyncDump")).thenReturn("true");
+        Mockito.when(config.getInitParameter("asyncDumpOverflowPolicy")).thenReturn("headers");
+
+        RequestLoggerFilter filter = new RequestLoggerFilter();
+
+        filter.init(config);
+        Assert.assertNotNull(filter.getDispatcher());
+
+        filter.destroy();
+        Assert.assertNull(filter.getDispatcher());
+    }
+
+    @Test
+    public void doFilter_should_give_capture_back_to_the_pool_once_dumped() throws Exception {
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        FilterChain chain = Mockito.mock(FilterChain.class);
+        Mockito.when(request.getInputStream()).thenReturn(new HttpServletRequestLoggingWrapperTest().getStreamForString("payload"));
+
+        RequestLoggerFilter filter = new RequestLoggerFilter();
+        filter.init(Mockito.mock(FilterConfig.class));
+        filter.doFilter(request, response, chain);
+
+        Mockito.verify(chain).doFilter(Mockito.any(HttpServletRequestLoggingWrapper.class), Mockito.eq(response));
+        Assert.assertEquals(1, filter.getCapturePool().pooledSegments());
+    }
+
+    @Test
+    public void doFilter_should_not_wrap_request_not_sampled() throws Exception {
+        FilterConfig config = Mockito.mock(FilterConfig.class);
+        Mockito.when(config.getInitParameter("samplingProbability")).thenReturn("0");
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        FilterChain chain = Mockito.mock(FilterChain.class);
+
+        RequestLoggerFilter filter = new RequestLoggerFilter();
+        filter.init(config);
+        filter.doFilter(request, response, chain);
+
+        Assert.assertTrue(filter.getSampler() instanceof Sampler.ProbabilisticSampler);
+        Mockito.verify(chain).doFilter(request, response);
+        Mockito.verify(request, Mockito.never()).getInputStream();
+    }
+
+    @Test
+    public void control_should_change_capture_from_next_request() throws Exception {
+        FilterConfig config = Mockito.mock(FilterConfig.class);
+        Mockito.when(config.getFilterName()).thenReturn("controlledFilter");
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getRequestURI()).thenReturn("/orders/42");
+        Mockito.when(request.getInputStream()).thenReturn(new HttpServletRequestLoggingWrapperTest().getStreamForString("payload"));
+        HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        final List<Dump> dumps = new ArrayList<Dump>();
+        RequestLoggerFilter filter = new RequestLoggerFilter() {
+            @Override
+            void emit(Dump dump) {
+                dumps.add(dump);
+            }
+        };
+        filter.init(config);
+        try {
+            Assert.assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(
+                    new ObjectName("fr.xebia.extras:type=FilterControl,filter=\"controlledFilter\"")));
+            filter.doFilter(request, response, Mockito.mock(FilterChain.class));
+            Assert.assertEquals("Request logger should decide by default", 1, dumps.size());
+
+            filter.getControl().setRequestCapture("off");
+            filter.doFilter(request, response, Mockito.mock(FilterChain.class));
+            Assert.assertEquals("Request capture should be switched off", 1, dumps.size());
+
+            filter.getControl().setRequestCapture("logger");
+            filter.getControl().setCaptureRules("include /health");
+            filter.doFilter(request, response, Mockito.mock(FilterChain.class));
+            Assert.assertEquals("Request should be excluded by new rules", 1, dumps.size());
+
+            filter.getControl().setCaptureRules(null);
+            filter.getControl().setMaxDumpSizeInKB(7);
+            filter.doFilter(request, response, Mockito.mock(FilterChain.class));
+            Assert.assertEquals(2, dumps.size());
+            Assert.assertEquals(7000, ((RequestDump) dumps.get(1)).maxDumpSize);
+            Assert.assertEquals(7, filter.getMaxDumpSizeInKB());
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    @Test
+    public void metrics_should_count_requests_per_route_even_when_not_dumped() throws Exception {
+        FilterConfig config = Mockito.mock(FilterConfig.class);
+        Mockito.when(config.getFilterName()).thenReturn("metricsFilter");
+        Mockito.when(config.getInitParameter("metrics")).thenReturn("true");
+        Mockito.when(config.getInitParameter("metricsRoutes")).thenReturn("/orders/**; /health");
+        Mockito.when(config.getInitParameter("captureRules")).thenReturn("exclude /orders/**");
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getRequestURI()).thenReturn("/orders/42");
+        Mockito.when(request.getContentLength()).thenReturn(7);
+        HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        Mockito.when(response.getOutputStream()).thenReturn(new HttpServletResponseLoggingWrapperTest.NonBlockingOutputStream());
+        final List<Dump> dumps = new ArrayList<Dump>();
+        RequestLoggerFilter filter = new RequestLoggerFilter() {
+            @Override
+            void emit(Dump dump) {
+                dumps.add(dump);
+            }
+        };
+        filter.init(config);
+        try {
+            filter.doFilter(request, response, new FilterChain() {
+                @Override
+                public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+                    ((HttpServletResponse) response).sendError(404);
+                    response.getOutputStream().write(new byte[]{1, 2, 3});
+                }
+            });
+            try {
+                filter.doFilter(request, response, new FilterChain() {
+                    @Override
+                    public void doFilter(ServletRequest request, ServletResponse response) {
+                        throw new IllegalStateException("Fail");
+                    }
+                });
+                Assert.fail("Exception thrown by the chain should be rethrown");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+
+            Assert.assertTrue("Excluded requests should not be dumped", dumps.isEmpty());
+            Mockito.verify(request, Mockito.never()).getInputStream();
+            RouteMetrics[] routes = filter.getMetrics().getRoutes();
+            Assert.assertEquals(Arrays.asList("/orders/**", "/health", RequestMetrics.OTHER),
+                    Arrays.asList(routes[0].getRoute(), routes[1].getRoute(), routes[2].getRoute()));
+            Assert.assertEquals(2, routes[0].getRequestCount());
+            Assert.assertEquals(1, routes[0].getStatus4xxCount());
+            Assert.assertEquals(1, routes[0].getStatus5xxCount());
+            Assert.assertEquals(1, routes[0].getFailureCount());
+            Assert.assertEquals(14, routes[0].getRequestBytes());
+            Assert.assertEquals(3, routes[0].getResponseBytes());
+            Assert.assertEquals(0, routes[2].getRequestCount());
+            Assert.assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(
+                    "fr.xebia.extras:type=RouteMetrics,filter=\"metricsFilter\",route=" + ObjectName.quote("/orders/**"))));
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    @Test
+    public void doFilter_should_dump_only_exchanges_matching_dump_condition() throws Exception {
+        FilterConfig config = Mockito.mock(FilterConfig.class);
+        Mockito.when(config.getInitParameter("dumpOnStatus")).thenReturn("5xx");
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getInputStream()).thenReturn(new HttpServletRequestLoggingWrapperTest().getStreamForString("payload"));
+        HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        final List<Dump> dumps = new ArrayList<Dump>();
+        RequestLoggerFilter filter = new RequestLoggerFilter() {
+            @Override
+            void emit(Dump dump) {
+                dumps.add(dump);
+            }
+        };
+        filter.init(config);
+
+        filter.doFilter(request, response, Mockito.mock(FilterChain.class));
+        Assert.assertTrue("Successful exchange should not be dumped", dumps.isEmpty());
+
+        filter.doFilter(request, response, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+                ((HttpServletResponse) response).sendError(503);
+            }
+        });
+        Assert.assertEquals("Failing exchange should be dumped", 1, dumps.size());
+        Assert.assertTrue(dumps.get(0) instanceof RequestDump);
+
+        try {
+            filter.doFilter(request, response, new FilterChain() {
+                @Override
+                public void doFilter(ServletRequest request, ServletResponse response) {
+                    throw new IllegalStateException("Fail");
+                }
+            });
+            Assert.fail("Exception thrown by the chain should be rethrown");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("Exchange throwing an exception should be dumped", 2, dumps.size());
+        }
+    }
+
+    @Test
+    public void doFilter_should_dump_flight_recorder_when_exchange_fails() throws Exception {
+        FilterConfig config = Mockito.mock(FilterConfig.class);
+        Mockito.when(config.getInitParameter("flightRecorderSize")).thenReturn("2");
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getInputStream()).thenReturn(new HttpServletRequestLoggingWrapperTest().getStreamForString("payload"));
+        HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        final List<Dump> dumps = new ArrayList<Dump>();
+        RequestLoggerFilter filter = new RequestLoggerFilter() {
+            @Override
+            void emit(Dump dump) {
+                dumps.add(dump);
+            }
+        };
+        filter.init(config);
+        try {
+            for (int i = 0; i < 3; i++) {
+                filter.doFilter(request, response, Mockito.mock(FilterChain.class));
+            }
+            Assert.assertTrue("Exchanges should only be recorded", dumps.isEmpty());
+            Assert.assertEquals(2, filter.getFlightRecorder().getRecordedExchanges());
+
+            filter.doFilter(request, response, new FilterChain() {
+                @Override
+                public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+                    ((HttpServletResponse) response).sendError(500);
+                }
+            });
+            Assert.assertEquals("Last exchanges should be dumped", 2, dumps.size());
+            Assert.assertEquals("Oldest exchange should be dumped first", dumps.get(0).id + 1, dumps.get(1).id);
+            Assert.assertEquals(0, filter.getFlightRecorder().getRecordedExchanges());
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    @Test
+    public void flight_recorder_should_be_dumped_when_signal_file_appears_without_traffic() throws Exception {
+        File signalFile = File.createTempFile("flight-recorder", ".signal");
+        Assert.assertTrue(signalFile.delete());
+        FilterConfig config = Mockito.mock(FilterConfig.class);
+        Mockito.when(config.getInitParameter("flightRecorderSize")).thenReturn("2");
+        Mockito.when(config.getInitParameter("flightRecorderSignalFile")).thenReturn(signalFile.getPath());
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getInputStream()).thenReturn(new HttpServletRequestLoggingWrapperTest().getStreamForString("payload"));
+        final List<Dump> dumps = Collections.synchronizedList(new ArrayList<Dump>());
+        RequestLoggerFilter filter = new RequestLoggerFilter() {
+            @Override
+            void emit(Dump dump) {
+                dumps.add(dump);
+            }
+        };
+        filter.init(config);
+        try {
+            filter.doFilter(request, Mockito.mock(HttpServletResponse.class), Mockito.mock(FilterChain.class));
+            Assert.assertTrue("Exchange should only be recorded", dumps.isEmpty());
+
+            Assert.assertTrue(signalFile.createNewFile());
+            long deadline = System.currentTimeMillis() + 10 * RequestLoggerFilter.SIGNAL_FILE_CHECK_PERIOD_MS;
+            while (dumps.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            Assert.assertFalse("Signal file should be deleted once seen", signalFile.exists());
+            Assert.assertEquals("Recorded exchange should be dumped", 1, dumps.size());
+        } finally {
+            filter.destroy();
+            signalFile.delete();
+        }
+    }
+
+    @Test
+    public void doFilter_should_dump_asynchronous_exchange_once_complete() throws Exception {
+        FilterConfig config = Mockito.mock(FilterConfig.class);
+        Mockito.when(config.getInitParameter("dumpOnStatus")).thenReturn("5xx");
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getInputStream()).thenReturn(new HttpServletRequestLoggingWrapperTest().getStreamForString("payload"));
+        Mockito.when(request.isAsyncStarted()).thenReturn(true);
+        final AsyncContext asyncContext = Mockito.mock(AsyncContext.class);
+        Mockito.when(request.getAsyncContext()).thenReturn(asyncContext);
+        final List<AsyncListener> listeners = new ArrayList<AsyncListener>();
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                listeners.add((AsyncListener) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(asyncContext).addListener(Mockito.any(AsyncListener.class));
+        final List<Dump> dumps = new ArrayList<Dump>();
+        RequestLoggerFilter filter = new RequestLoggerFilter() {
+            @Override
+            void emit(Dump dump) {
+                dumps.add(dump);
+            }
+        };
+        filter.init(config);
+        final List<HttpServletResponse> responses = new ArrayList<HttpServletResponse>();
+
+        filter.doFilter(request, Mockito.mock(HttpServletResponse.class), new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                responses.add((HttpServletResponse) response);
+            }
+        });
+        Assert.assertTrue("Exchange should not be dumped before the asynchronous cycle completes", dumps.isEmpty());
+        Assert.assertEquals(1, listeners.size());
+
+        // a new cycle drops the listeners, the filter listens to it again
+        listeners.get(0).onStartAsync(new AsyncEvent(asyncContext));
+        listeners.get(0).onStartAsync(Mockito.mock(AsyncEvent.class));
+        Assert.assertEquals(2, listeners.size());
+        Assert.assertSame(listeners.get(0), listeners.get(1));
+
+        // the asynchronous cycle fails on another thread
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    responses.get(0).sendError(503);
+                    AsyncEvent event = new AsyncEvent(asyncContext, new IllegalStateException("Fail"));
+                    listeners.get(0).onError(event);
+                    listeners.get(0).onComplete(event);
+                    listeners.get(0).onComplete(event);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+
+        Assert.assertEquals("Exchange should be dumped once, when complete", 1, dumps.size());
+        Assert.assertTrue(dumps.get(0) instanceof RequestDump);
+    }
+
     @Test
     public void testDoFilter() throws Exception {
 
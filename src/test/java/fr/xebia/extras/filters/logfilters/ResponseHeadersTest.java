@@ -0,0 +1,114 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class ResponseHeadersTest {
+
+    @Test
+    public void names_should_be_case_insensitive() {
+        ResponseHeaders headers = new ResponseHeaders();
+
+        headers.set("X-Trace", "first");
+        headers.add("x-trace", "second");
+        headers.set("X-TRACE-ID", "id");
+
+        Map<String, List<String>> map = headers.toMap();
+        Assert.assertEquals(2, map.size());
+        Assert.assertEquals(Arrays.asList("first", "second"), map.get("X-Trace"));
+        Assert.assertEquals("second", headers.getLast("X-TRACE"));
+
+        headers.set("X-TRACE", "third");
+        Assert.assertEquals(Arrays.asList("third"), headers.toMap().get("X-Trace"));
+    }
+
+    @Test
+    public void common_names_should_be_shared() {
+        ResponseHeaders headers = new ResponseHeaders();
+
+        headers.set(new String("content-type"), "text/plain");
+
+        String name = headers.toMap().keySet().iterator().next();
+        Assert.assertSame(ResponseHeaders.common("Content-Type", ResponseHeaders.hash("Content-Type")), name);
+        Assert.assertEquals("Content-Type", name);
+        Assert.assertEquals("X-Custom", ResponseHeaders.common("X-Custom", ResponseHeaders.hash("X-Custom")));
+    }
+
+    @Test
+    public void int_and_date_values_should_be_formatted_in_order() {
+        ResponseHeaders headers = new ResponseHeaders();
+
+        headers.setInt("Content-Length", 12);
+        headers.addInt("X-Count", 1);
+        headers.addInt("X-Count", 2);
+        headers.setDate("Expires", 0);
+        headers.add("X-Count", "three");
+
+        Map<String, List<String>> map = headers.toMap();
+        Assert.assertEquals(Arrays.asList("Content-Length", "X-Count", "Expires"), Arrays.asList(map.keySet().toArray()));
+        Assert.assertEquals(Arrays.asList("12"), map.get("Content-Length"));
+        Assert.assertEquals(Arrays.asList("1", "2", "three"), map.get("X-Count"));
+        Assert.assertEquals(Arrays.asList("Thu, 01 Jan 1970 00:00:00 GMT"), map.get("Expires"));
+    }
+
+    @Test
+    public void removed_header_should_not_be_dumped() {
+        ResponseHeaders headers = new ResponseHeaders();
+
+        headers.add("X-Removed", "value");
+        headers.add("X-Kept", "value");
+        headers.remove("x-removed");
+
+        Map<String, List<String>> map = headers.toMap();
+        Assert.assertEquals(1, map.size());
+        Assert.assertNull(headers.getLast("X-Removed"));
+        Assert.assertEquals(Arrays.asList("value"), map.get("X-Kept"));
+    }
+
+    @Test
+    public void table_should_grow_beyond_initial_capacity() {
+        ResponseHeaders headers = new ResponseHeaders();
+
+        for (int i = 0; i < 100; i++) {
+            headers.add("X-Header-" + i, "a" + i);
+            headers.addInt("x-header-" + i, i);
+        }
+
+        Map<String, List<String>> map = headers.toMap();
+        Assert.assertEquals(100, map.size());
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(Arrays.asList("a" + i, String.valueOf(i)), map.get("X-Header-" + i));
+        }
+    }
+
+    @Test
+    public void headers_should_be_read_before_any_is_set() {
+        ResponseHeaders headers = new ResponseHeaders();
+
+        headers.remove("Content-Type");
+        Assert.assertNull(headers.getLast("Content-Type"));
+        Assert.assertTrue(headers.toMap().isEmpty());
+
+        headers.set("Content-Type", "text/plain");
+        Assert.assertEquals("text/plain", headers.getLast("content-type"));
+    }
+}
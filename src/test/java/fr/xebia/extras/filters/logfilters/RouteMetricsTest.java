@@ -0,0 +1,107 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RouteMetricsTest {
+
+    @Test
+    public void buckets_should_hold_their_values() {
+        for (long value = 0; value < 100000; value++) {
+            final int bucket = RouteMetrics.bucket(value);
+            Assert.assertTrue(value <= RouteMetrics.highestValue(bucket));
+            Assert.assertTrue(bucket == 0 || value > RouteMetrics.highestValue(bucket - 1));
+        }
+        Assert.assertEquals(7, RouteMetrics.highestValue(RouteMetrics.bucket(7)));
+        Assert.assertEquals(17, RouteMetrics.highestValue(RouteMetrics.bucket(16)));
+        Assert.assertEquals(RouteMetrics.BUCKET_COUNT - 1, RouteMetrics.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void buckets_should_be_precise_to_one_eighth() {
+        for (long value = 8; value < 1L << 40; value = value * 3 / 2) {
+            final long highest = RouteMetrics.highestValue(RouteMetrics.bucket(value));
+            Assert.assertTrue("Bucket of " + value, highest - value < value / 8 + 1);
+        }
+    }
+
+    @Test
+    public void record_should_count_status_classes_and_bytes() {
+        RouteMetrics metrics = new RouteMetrics("/orders/**");
+        metrics.record(200, false, 10, 100, 1000);
+        metrics.record(302, false, 0, 0, 1000);
+        metrics.record(404, false, 0, 20, 1000);
+        metrics.record(200, true, 5, 0, 1000);
+
+        Assert.assertEquals("/orders/**", metrics.getRoute());
+        Assert.assertEquals(4, metrics.getRequestCount());
+        Assert.assertEquals(0, metrics.getStatus1xxCount());
+        Assert.assertEquals(1, metrics.getStatus2xxCount());
+        Assert.assertEquals(1, metrics.getStatus3xxCount());
+        Assert.assertEquals(1, metrics.getStatus4xxCount());
+        Assert.assertEquals("Failures should count as 5xx", 1, metrics.getStatus5xxCount());
+        Assert.assertEquals(1, metrics.getFailureCount());
+        Assert.assertEquals(15, metrics.getRequestBytes());
+        Assert.assertEquals(120, metrics.getResponseBytes());
+    }
+
+    @Test
+    public void percentiles_should_be_computed_from_histogram() {
+        RouteMetrics metrics = new RouteMetrics("all");
+        Assert.assertEquals(0, metrics.getLatencyP99Micros());
+        for (int i = 1; i <= 1000; i++) {
+            metrics.record(200, false, 0, 0, i * 1000L);
+        }
+
+        Assert.assertEquals(500, metrics.getLatencyMeanMicros());
+        Assert.assertEquals(1000, metrics.getLatencyMaxMicros());
+        assertWithinOneEighth(500, metrics.getLatencyP50Micros());
+        assertWithinOneEighth(990, metrics.getLatencyP99Micros());
+        Assert.assertEquals("Percentiles should not exceed max", 1000, metrics.getLatencyP999Micros());
+    }
+
+    @Test
+    public void record_should_be_thread_safe() throws Exception {
+        final RouteMetrics metrics = new RouteMetrics("all");
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        metrics.record(200, false, 1, 2, 5000000);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(40000, metrics.getRequestCount());
+        Assert.assertEquals(40000, metrics.getRequestBytes());
+        Assert.assertEquals(80000, metrics.getResponseBytes());
+        Assert.assertEquals(5000, metrics.getLatencyP50Micros());
+    }
+
+    private static void assertWithinOneEighth(final long expected, final long actual) {
+        Assert.assertTrue("Expected about " + expected + " but was " + actual,
+                actual >= expected && actual <= expected + expected / 8);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2008-2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.xebia.extras.filters.logfilters;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ *
+ */
+public class SamplerTest {
+
+    private final HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+
+    @Test
+    public void rate_sampler_should_sample_one_request_out_of_rate() throws Exception {
+        Sampler sampler = new Sampler.RateSampler(3);
+        int sampled = 0;
+        for (int i = 0; i < 30; i++) {
+            if (sampler.sample(request)) {
+                sampled++;
+            }
+        }
+        Assert.assertEquals(10, sampled);
+    }
+
+    @Test
+    public void probabilistic_sampler_should_sample_about_the_given_ratio() throws Exception {
+        Assert.assertFalse(new Sampler.ProbabilisticSampler(0).sample(request));
+
+        Sampler sampler = new Sampler.ProbabilisticSampler(0.25);
+        int sampled = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (sampler.sample(request)) {
+                sampled++;
+            }
+        }
+        Assert.assertTrue("Sampled " + sampled, sampled > 23000 && sampled < 27000);
+    }
+
+    @Test
+    public void route_budget_sampler_should_limit_dumps_per_second_and_per_route() throws Exception {
+        Sampler.RouteBudgetSampler sampler = new Sampler.RouteBudgetSampler(2, 10);
+        long now = 0;
+
+        Assert.assertTrue(sampler.sample("/rest/orders", now));
+        Assert.assertTrue(sampler.sample("/rest/orders", now));
+        Assert.assertFalse("Budget of the route should be used up", sampler.sample("/rest/orders", now));
+        Assert.assertTrue("Other routes have their own budget", sampler.sample("/rest/users", now));
+
+        now += 500000000L;
+        Assert.assertTrue("One token should be back after half a second", sampler.sample("/rest/orders", now));
+        Assert.assertFalse(sampler.sample("/rest/orders", now));
+    }
+
+    @Test
+    public void route_budget_sampler_should_share_budget_once_max_routes_is_reached() throws Exception {
+        Sampler.RouteBudgetSampler sampler = new Sampler.RouteBudgetSampler(1, 1);
+
+        Assert.assertTrue(sampler.sample("/rest/orders", 0));
+        Assert.assertTrue(sampler.sample("/rest/orders/1", 0));
+        Assert.assertFalse("New routes should share the same budget", sampler.sample("/rest/orders/2", 0));
+    }
+
+    @Test
+    public void route_budget_sampler_should_key_budget_on_uri_template() throws Exception {
+        Assert.assertEquals("/rest/orders/*/items", Sampler.RouteBudgetSampler.template("/rest/orders/42/items"));
+        Assert.assertEquals("/rest/users/*", Sampler.RouteBudgetSampler.template("/rest/users/3f2504e0-4f89-11d3-9a0c-0305e82c3301"));
+        Assert.assertEquals("/rest/v2/orders/", Sampler.RouteBudgetSampler.template("/rest/v2/orders/;jsessionid=1234"));
+
+        Sampler.RouteBudgetSampler sampler = new Sampler.RouteBudgetSampler(1, 10);
+        HttpServletRequest first = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(first.getRequestURI()).thenReturn("/rest/orders/1");
+        HttpServletRequest second = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(second.getRequestURI()).thenReturn("/rest/orders/2");
+
+        Assert.assertTrue(sampler.sample(first));
+        Assert.assertFalse("Requests of the same template should share the budget", sampler.sample(second));
+        Assert.assertEquals(1, sampler.getRouteCount());
+    }
+
+    @Test
+    public void route_budget_sampler_should_evict_full_buckets() throws Exception {
+        Sampler.RouteBudgetSampler sampler = new Sampler.RouteBudgetSampler(1, 2);
+        long now = System.nanoTime();
+
+        Assert.assertTrue(sampler.sample("/a", now));
+        Assert.assertTrue(sampler.sample("/b", now));
+        Assert.assertTrue(sampler.sample("/c", now));
+        Assert.assertFalse("New routes should share the same budget while buckets are in use", sampler.sample("/d", now));
+
+        now += 2000000000L;
+        Assert.assertTrue("Idle buckets should be evicted for new routes", sampler.sample("/e", now));
+        Assert.assertTrue(sampler.sample("/f", now));
+        Assert.assertEquals(2, sampler.getRouteCount());
+    }
+
+    @Test
+    public void all_sampler_should_sample_only_when_every_sampler_does() throws Exception {
+        Sampler never = new Sampler.ProbabilisticSampler(0);
+        Sampler always = new Sampler.RateSampler(1);
+
+        Assert.assertTrue(new Sampler.AllSampler(always, always).sample(request));
+        Assert.assertFalse(new Sampler.AllSampler(always, never).sample(request));
+    }
+}